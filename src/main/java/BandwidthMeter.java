@@ -0,0 +1,225 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Estimates the traffic that shared state would put on a real link, to find the parts of a program
+ * that are worth slimming down before it runs on constrained radios.
+ *
+ * Every time a device transmits its state (see {@link CachingNetworkManager#shareState(Map)}), each entry
+ * is sized as {@link StateCodec} would encode it, and the size is charged both to the entry's code path
+ * (the nbr or share site of the program that produced it) and to the device; the message header is charged
+ * to the device alone. Each message is counted once, however many neighbors hear it, as on a broadcast radio.
+ * Code path definitions, which the codec sends once per link, are not counted, and neither are states that
+ * a {@link SharePolicy} holds back. Values that would fall back to Java serialization are not sized, since
+ * serializing them would cost more than the cycle that shared them; they are counted per code path instead.
+ */
+public class BandwidthMeter {
+	/** Traffic of one code path */
+	private static class Site {
+		private final CodePath path;
+		/** Id the codec would give the path, in order of first appearance */
+		private final int id;
+		private final LongAdder bytes = new LongAdder(), entries = new LongAdder();
+		/** Entries left out because their value could not be sized */
+		private final LongAdder unsized = new LongAdder();
+
+		private Site(final CodePath path, final int id) {
+			this.path = path;
+			this.id = id;
+		}
+	}
+
+	/** Longest code path description printed in reports */
+	private static final int MAX_LABEL = 48;
+
+	private final ConcurrentMap<CodePath, Site> sites = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	/** Per device: bytes and messages shared */
+	private final long[] deviceBytes, messages;
+	/** Entries whose value could not be sized */
+	private final LongAdder unsized = new LongAdder();
+	private long rounds = 0;
+
+	/** @param devices	Number of devices metered, indexed as in their simulation */
+	public BandwidthMeter(final int devices) {
+		deviceBytes = new long[devices];
+		messages = new long[devices];
+	}
+
+	/** @return number of devices metered */
+	public int size() {
+		return deviceBytes.length;
+	}
+
+	/**
+	 * Charge a message. Messages of different devices may be charged concurrently.
+	 * @param device	Index of the sending device
+	 * @param sender	Identity of the sending device, which heads the message
+	 * @param state		State shared
+	 */
+	public void record(final int device, final DeviceUID sender, final Map<CodePath, Object> state) {
+		// Header: sender, number of new definitions (none) and number of entries
+		long bytes = 1 + StateCodec.sizeOfVarInt(state.size());
+		int senderSize = StateCodec.sizeOf(sender);
+		if (senderSize < 0) {
+			unsized.increment();
+		} else {
+			bytes += senderSize;
+		}
+		for (Map.Entry<CodePath, Object> e : state.entrySet()) {
+			Site site = site(e.getKey());
+			int valueSize = StateCodec.sizeOf(e.getValue());
+			if (valueSize < 0) {
+				site.unsized.increment();
+				unsized.increment();
+			} else {
+				int size = StateCodec.sizeOfVarInt(site.id) + valueSize;
+				site.bytes.add(size);
+				site.entries.increment();
+				bytes += size;
+			}
+		}
+		deviceBytes[device] += bytes;
+		messages[device]++;
+	}
+
+	private Site site(final CodePath path) {
+		Site site = sites.get(path);
+		if (site == null) {
+			Site fresh = new Site(path, nextId.getAndIncrement());
+			site = sites.putIfAbsent(path, fresh);
+			if (site == null) {
+				site = fresh;
+			}
+		}
+		return site;
+	}
+
+	/** Mark the end of a round, by which traffic is averaged */
+	public void endRound() {
+		rounds++;
+	}
+
+	/** @return number of rounds metered */
+	public long getRounds() {
+		return rounds;
+	}
+
+	/** @return bytes shared by device i */
+	public long getDeviceBytes(final int i) {
+		return deviceBytes[i];
+	}
+
+	/** @return messages shared by device i */
+	public long getMessages(final int i) {
+		return messages[i];
+	}
+
+	/** @return bytes shared by all devices */
+	public long getTotalBytes() {
+		long total = 0;
+		for (long b : deviceBytes) {
+			total += b;
+		}
+		return total;
+	}
+
+	/** @return number of entries, and senders, that could not be sized, and were left out */
+	public long getUnsizedCount() {
+		return unsized.sum();
+	}
+
+	/** @return the code paths seen so far, those generating the most traffic first */
+	public List<CodePath> getSites() {
+		List<Site> sorted = sortedSites();
+		List<CodePath> paths = new ArrayList<>(sorted.size());
+		for (Site s : sorted) {
+			paths.add(s.path);
+		}
+		return paths;
+	}
+
+	/** @return bytes charged to a code path */
+	public long getSiteBytes(final CodePath path) {
+		Site s = sites.get(path);
+		return s == null ? 0 : s.bytes.sum();
+	}
+
+	/** @return number of entries of a code path that could not be sized, and were left out */
+	public long getSiteUnsized(final CodePath path) {
+		Site s = sites.get(path);
+		return s == null ? 0 : s.unsized.sum();
+	}
+
+	/** @return number of sized entries shared for a code path */
+	public long getSiteEntries(final CodePath path) {
+		Site s = sites.get(path);
+		return s == null ? 0 : s.entries.sum();
+	}
+
+	private List<Site> sortedSites() {
+		List<Site> sorted = new ArrayList<>(sites.values());
+		Collections.sort(sorted, new Comparator<Site>() {
+			public int compare(final Site a, final Site b) {
+				// Sites that could not be sized at all still show up ahead of idle ones
+				int c = Long.compare(b.bytes.sum(), a.bytes.sum());
+				return c != 0 ? c : Long.compare(b.unsized.sum(), a.unsized.sum());
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Print the traffic per round of the busiest code paths and devices. Must not run concurrently with a round.
+	 * @param out		Stream the report is written to
+	 * @param devices	The metered devices, in simulation order
+	 * @param n			Number of code paths, and of devices, listed
+	 */
+	public void report(final PrintStream out, final List<SimpleDevice> devices, final int n) {
+		double perRound = Math.max(1, rounds);
+		long total = getTotalBytes();
+		out.println(String.format(Locale.ROOT, "%d rounds: %.1f bytes/round in all, %.1f bytes/round per device%s",
+				rounds, total / perRound, total / perRound / Math.max(1, deviceBytes.length),
+				unsized.sum() > 0 ? " (" + unsized.sum() + " entries could not be sized)" : ""));
+		out.println(String.format("%-6s %14s %7s %12s %9s  %s", "site", "bytes/round", "share", "bytes/entry", "unsized",
+				"code path"));
+		List<Site> sorted = sortedSites();
+		for (Site s : sorted.subList(0, Math.min(n, sorted.size()))) {
+			long bytes = s.bytes.sum(), entries = s.entries.sum();
+			out.println(String.format(Locale.ROOT, "%-6s %14.1f %6.1f%% %12.1f %9d  %s", "#" + s.id, bytes / perRound,
+					total == 0 ? 0.0 : 100.0 * bytes / total, entries == 0 ? 0.0 : (double) bytes / entries,
+					s.unsized.sum(), label(s.path)));
+		}
+		List<Integer> busiest = new ArrayList<>();
+		for (int i = 0; i < deviceBytes.length; i++) {
+			busiest.add(i);
+		}
+		Collections.sort(busiest, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				return Long.compare(deviceBytes[b], deviceBytes[a]);
+			}
+		});
+		out.println(String.format("%-12s %14s %14s", "device", "bytes/round", "bytes/message"));
+		for (int i : busiest.subList(0, Math.min(n, busiest.size()))) {
+			out.println(String.format(Locale.ROOT, "%-12s %14.1f %14.1f", devices.get(i).getDeviceUID(),
+					deviceBytes[i] / perRound, messages[i] == 0 ? 0.0 : (double) deviceBytes[i] / messages[i]));
+		}
+	}
+
+	private static String label(final CodePath path) {
+		String s = String.valueOf(path);
+		return s.length() <= MAX_LABEL ? s : s.substring(0, MAX_LABEL - 3) + "...";
+	}
+}
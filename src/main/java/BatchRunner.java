@@ -0,0 +1,232 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a parameter sweep: many headless simulations executed side by side in one JVM.
+ *
+ * The sweep is a properties file in which each parameter is given a comma-separated list of values;
+ * integer parameters may also use inclusive ranges, e.g. "seed = 0..99". Every combination of values
+ * is one run. Parameters and their defaults:
+ * <pre>
+ *   program = hello     Protelis module run by every device
+ *   edge    = 5         devices along each side of the grid
+ *   spacing = 0.002     distance between grid points, in degrees
+ *   range   = 500       communication range, in meters
+ *   seed    = 0         seed of the devices' random numbers
+ *   rounds  = 100       rounds executed per run
+ *   quiescence = false  whether settled devices are skipped (see {@link Simulation#setQuiescence(boolean)})
+ *   pipelined = false   whether each run overlaps its rounds on several threads (see {@link Simulation#runRounds(int)})
+ *   policy  = always    when devices transmit their shared state (see {@link SharePolicy#parse(String)})
+ *   threads = (cores)   number of runs executed at once; a single value
+ * </pre>
+ * Runs are scheduled on a work-stealing pool, largest first, and each writes one CSV row as it finishes.
+ */
+public class BatchRunner {
+	/** Parameters that may be swept, in the order they appear in result rows */
+	private static final String[] PARAMETERS = {"program", "edge", "spacing", "range", "seed", "rounds", "quiescence", "pipelined", "policy"};
+	private static final String[] DEFAULTS = {"hello", "5", "0.002", "500", "0", "100", "false", "false", "always"};
+	private static final String HEADER = "run,program,edge,spacing,range,seed,rounds,quiescence,pipelined,policy,devices,build_ms,run_ms,"
+			+ "rounds_per_s,skipped,suppressed_per_round,reached,mean_" + Simulation.DISPLAY_VALUE + ",max_" + Simulation.DISPLAY_VALUE;
+	private static final RoundStatistics RESULT_STATISTICS = new RoundStatistics(0, RoundStatistics.exported(Simulation.DISPLAY_VALUE));
+
+	/** One point of the sweep */
+	private static class Run {
+		private final int index;
+		private final String program;
+		private final int edge, rounds;
+		private final double spacing, range;
+		private final long seed;
+		private final boolean quiescence, pipelined;
+		private final SharePolicy policy;
+
+		private Run(final int index, final String[] values) {
+			this.index = index;
+			this.program = values[0];
+			this.edge = Integer.parseInt(values[1]);
+			this.spacing = Double.parseDouble(values[2]);
+			this.range = Double.parseDouble(values[3]);
+			this.seed = Long.parseLong(values[4]);
+			this.rounds = Integer.parseInt(values[5]);
+			this.quiescence = Boolean.parseBoolean(values[6]);
+			this.pipelined = Boolean.parseBoolean(values[7]);
+			this.policy = SharePolicy.parse(values[8]);
+		}
+
+		/** @return rough cost of the run, used to start the longest runs first */
+		private long cost() {
+			return (long) edge * edge * rounds;
+		}
+	}
+
+	/**
+	 * Entry point
+	 * Arguments: SWEEP_FILE [RESULT_FILE]; results go to standard out if no file is given.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if(args.length<1) {
+			System.err.println("Usage: BatchRunner SWEEP_FILE [RESULT_FILE]");
+			System.exit(1);
+		}
+		Properties sweep = new Properties();
+		try (InputStream in = new FileInputStream(args[0])) {
+			sweep.load(in);
+		}
+		List<Run> runs = expand(sweep);
+		int threads = Integer.parseInt(sweep.getProperty("threads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())).trim());
+		PrintStream results = args.length > 1 ? new PrintStream(new FileOutputStream(args[1]), true) : System.out;
+		try {
+			long start = System.nanoTime();
+			int failed = run(runs, threads, results);
+			double hours = (System.nanoTime() - start) / 3.6e12;
+			System.err.println(String.format(Locale.ROOT, "%d runs (%d failed) on %d threads in %.1f s: %.0f runs/hour",
+					runs.size(), failed, threads, hours * 3600, runs.size() / hours));
+		} finally {
+			if(results != System.out) {
+				results.close();
+			}
+		}
+	}
+
+	/**
+	 * Execute runs concurrently, writing one result row for each as soon as it finishes.
+	 * @param runs		Runs to be executed
+	 * @param threads	Number of runs executed at once
+	 * @param results	Stream to which the header and result rows are written
+	 * @return number of runs that failed
+	 */
+	private static int run(final List<Run> runs, final int threads, final PrintStream results) throws InterruptedException {
+		results.println(HEADER);
+		// Start the longest runs first, so that the short ones fill in the gaps at the end of the sweep
+		List<Run> queue = new ArrayList<>(runs);
+		Collections.sort(queue, new Comparator<Run>() {
+			public int compare(final Run a, final Run b) {
+				return Long.compare(b.cost(), a.cost());
+			}
+		});
+		ExecutorService pool = Executors.newWorkStealingPool(threads);
+		List<Future<String>> rows = new ArrayList<>();
+		for(final Run r : queue) {
+			rows.add(pool.submit(new Callable<String>() {
+				public String call() throws Exception {
+					String row = execute(r);
+					synchronized (results) {
+						results.println(row);
+					}
+					return row;
+				}
+			}));
+		}
+		int failed = 0;
+		for(int i=0;i<rows.size();i++) {
+			try {
+				rows.get(i).get();
+			} catch (ExecutionException e) {
+				failed++;
+				System.err.println("Run " + queue.get(i).index + " failed: " + e.getCause());
+			}
+		}
+		pool.shutdown();
+		return failed;
+	}
+
+	/**
+	 * Build and execute one simulation on the calling thread.
+	 * @param r	Run to execute
+	 * @return its result row
+	 */
+	private static String execute(final Run r) throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		// Nobody subscribes to the round stream, so no snapshots are taken
+		Simulation simulation = new Simulation(r.program, r.edge, r.spacing, r.range, r.seed, null);
+		simulation.setQuiescence(r.quiescence);
+		simulation.setSharePolicy(r.policy);
+		long built = System.nanoTime();
+		if(r.pipelined) {
+			simulation.runRounds(r.rounds);
+		} else {
+			for(int i=0;i<r.rounds;i++) {
+				simulation.runRound();
+			}
+		}
+		long finished = System.nanoTime();
+
+		// Summarize the value that the program exports, over the devices that have a finite one
+		RoundStatistics.Summary summary = RESULT_STATISTICS.compute(simulation);
+		double runSeconds = (finished - built) / 1e9;
+		return String.format(Locale.ROOT, "%d,%s,%d,%s,%s,%d,%d,%b,%b,%s,%d,%d,%d,%.1f,%.3f,%.1f,%d,%.3f,%.3f",
+				r.index, r.program, r.edge, Double.toString(r.spacing), Double.toString(r.range), r.seed, r.rounds,
+				r.quiescence, r.pipelined, r.policy, simulation.getDevices().size(), (built - start) / 1000000,
+				(finished - built) / 1000000, runSeconds > 0 ? r.rounds / runSeconds : 0.0, simulation.getTotalSkippedFraction(),
+				r.rounds > 0 ? (double) simulation.getTotalSuppressedCount() / r.rounds : 0.0,
+				summary.getCount(0), summary.getMean(0), summary.getMax(0));
+	}
+
+	/**
+	 * Expand a sweep definition into the runs for every combination of parameter values.
+	 * @param sweep	Values of each parameter
+	 * @return the runs, numbered in the order the combinations are enumerated
+	 */
+	private static List<Run> expand(final Properties sweep) {
+		List<List<String>> values = new ArrayList<>();
+		for(int p=0;p<PARAMETERS.length;p++) {
+			values.add(parseValues(PARAMETERS[p], sweep.getProperty(PARAMETERS[p], DEFAULTS[p])));
+		}
+		List<Run> runs = new ArrayList<>();
+		int[] choice = new int[PARAMETERS.length];
+		String[] point = new String[PARAMETERS.length];
+		while(true) {
+			for(int p=0;p<PARAMETERS.length;p++) {
+				point[p] = values.get(p).get(choice[p]);
+			}
+			runs.add(new Run(runs.size(), point));
+			// Advance the last parameter fastest, like an odometer
+			int p = PARAMETERS.length - 1;
+			while(p >= 0 && ++choice[p] == values.get(p).size()) {
+				choice[p--] = 0;
+			}
+			if(p < 0) {
+				return runs;
+			}
+		}
+	}
+
+	/**
+	 * @param name	Name of the parameter, for error messages
+	 * @param text	Comma-separated values, each a single value or an inclusive integer range "a..b"
+	 * @return the individual values
+	 */
+	private static List<String> parseValues(final String name, final String text) {
+		List<String> values = new ArrayList<>();
+		for(String item : text.split(",")) {
+			item = item.trim();
+			int dots = item.indexOf("..");
+			if(dots >= 0) {
+				long from = Long.parseLong(item.substring(0, dots).trim()), to = Long.parseLong(item.substring(dots + 2).trim());
+				for(long v=from;v<=to;v++) {
+					values.add(Long.toString(v));
+				}
+			} else if(!item.isEmpty()) {
+				values.add(item);
+			}
+		}
+		if(values.isEmpty()) {
+			throw new IllegalArgumentException("No values given for sweep parameter " + name);
+		}
+		return values;
+	}
+}
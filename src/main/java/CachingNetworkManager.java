@@ -1,4 +1,6 @@
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.protelis.lang.datatype.DeviceUID;
@@ -16,26 +18,209 @@ import org.protelis.vm.util.CodePath;
  * 
  * This simple implementation just tracks the most recent message sent from this device
  * and the most recent messages received from each neighbor. 
+ * 
+ * A {@link SharePolicy} decides whether each shared state is transmitted; until one is, neighbors
+ * keep the state last transmitted, which is what {@link #getSendCache()} returns.
+ * 
+ * Received messages can be given a time to live, counted in rounds (see {@link #advanceRound()}):
+ * a neighbor not heard from for longer is forgotten. Expiry uses a timing wheel, so each round
+ * only examines the neighbors whose time may have run out, rather than every neighbor.
  */
 public class CachingNetworkManager implements NetworkManager {
 	private Map<CodePath, Object> sendCache = null;
+	/** Latest state shared but not yet transmitted, if it differs from the one last transmitted; otherwise null */
+	private Map<CodePath, Object> pending = null;
+	private SharePolicy policy = SharePolicy.always();
+	/** Whether the state shared this round is being transmitted, and the round it last was */
+	private boolean transmitting = false;
+	private long lastTransmitted = 0;
+	private long suppressed = 0;
 	private final Map<DeviceUID, Map<CodePath, Object>> receiveCache = new HashMap<>();
 	
+	/** When a neighbor was last heard from; one per neighbor in the receive cache */
+	private static class Heard {
+		private final DeviceUID neighbor;
+		private long round;
+		private boolean removed = false;
+
+		private Heard(final DeviceUID neighbor, final long round) {
+			this.neighbor = neighbor;
+			this.round = round;
+		}
+	}
+
+	/** Number of rounds a neighbor is remembered without being heard from; 0 to remember forever */
+	private int ttl = 0;
+	private long round = 0;
+	private final Map<DeviceUID, Heard> heard = new HashMap<>();
+	/** Timing wheel: slot r holds the neighbors due to be checked at a round congruent to r */
+	private List<List<Heard>> wheel = null;
+	/** Largest number of slots in the wheel */
+	private static final int MAX_WHEEL = 1 << 16;
+	private int mask = 0;
+
+	/** Meter charged with every state shared, with this device's index in it and identity; null if not metered */
+	private BandwidthMeter meter = null;
+	private int meterIndex = -1;
+	private DeviceUID owner = null;
+
 	/** External access to sending cache */
 	public Map<CodePath, Object> getSendCache() {
 		return sendCache;
 	}
+
+	/** @return the state last shared by the device, whether or not it has been transmitted */
+	public Map<CodePath, Object> getSharedState() {
+		return pending != null ? pending : sendCache;
+	}
+
+	/** @param policy	When shared state is transmitted */
+	public void setSharePolicy(final SharePolicy policy) {
+		this.policy = policy;
+	}
+
+	/** @return whether the state shared in the current round is being transmitted */
+	public boolean isTransmitting() {
+		return transmitting;
+	}
+
+	/** @return number of shared states not transmitted so far */
+	public long getSuppressedCount() {
+		return suppressed;
+	}
+
+	/**
+	 * Share the same state as last time, for a device that has not run this round, so that it is
+	 * transmitted if the policy calls for it. The latest state not yet transmitted, if any, goes out.
+	 * @return whether neighbors are sent a state different from the one they last received
+	 */
+	public boolean resend() {
+		if(sendCache == null) {
+			return false;
+		}
+		boolean fresh = pending != null;
+		return offer(fresh ? pending : sendCache) && fresh;
+	}
+
+	/**
+	 * Transmit a state if the policy says so, otherwise keep it for later.
+	 * @return whether the state was transmitted
+	 */
+	private boolean offer(final Map<CodePath, Object> state) {
+		transmitting = policy.shouldSend(sendCache, state, round - lastTransmitted);
+		if(!transmitting) {
+			// Holding back the state neighbors already have leaves nothing to send later
+			pending = state.equals(sendCache) ? null : state;
+			suppressed++;
+			return false;
+		}
+		sendCache = state;
+		pending = null;
+		lastTransmitted = round;
+		if(meter != null) {
+			meter.record(meterIndex, owner, state);
+		}
+		return true;
+	}
 	
+	/**
+	 * Set how long received messages are kept.
+	 * @param rounds	Number of rounds a neighbor's last message is kept after it was received;
+	 * 					0 to keep messages until {@link #removeNeighbor(DeviceUID)} is called
+	 */
+	public void setTimeToLive(final int rounds) {
+		ttl = Math.max(0, rounds);
+		heard.clear();
+		if(ttl == 0) {
+			wheel = null;
+			return;
+		}
+		// A neighbor is due at most ttl+1 rounds ahead, so a wheel larger than that never wraps onto itself.
+		// Longer times to live share the largest wheel: a neighbor checked before it is due is put back
+		// in the same slot, for the next turn.
+		int size = ttl >= MAX_WHEEL / 2 ? MAX_WHEEL : Integer.highestOneBit(ttl + 1) << 1;
+		mask = size - 1;
+		wheel = new ArrayList<>(size);
+		for(int i=0;i<size;i++) {
+			wheel.add(new ArrayList<Heard>());
+		}
+		for(DeviceUID neighbor : receiveCache.keySet()) {
+			schedule(new Heard(neighbor, round));
+		}
+	}
+
+	/**
+	 * Charge the size of every state shared from now on to a meter.
+	 * @param meter	Meter to charge, or null to stop metering
+	 * @param index	Index of this device in the meter
+	 * @param owner	Identity of this device
+	 */
+	public void setBandwidthMeter(final BandwidthMeter meter, final int index, final DeviceUID owner) {
+		this.meter = meter;
+		this.meterIndex = index;
+		this.owner = owner;
+	}
+
 	/** External access to put messages into receive cache */
 	public void receiveFromNeighbor(final DeviceUID neighbor, final Map<CodePath, Object> message) {
 		receiveCache.put(neighbor, message);
+		if(wheel != null) {
+			Heard h = heard.get(neighbor);
+			if(h == null) {
+				schedule(new Heard(neighbor, round));
+			} else {
+				h.round = round;
+			}
+		}
 	}
-	
+
 	/** External access to note when a device is no longer a neighbor, wiping cache */
 	public void removeNeighbor(final DeviceUID neighbor) {
 		receiveCache.remove(neighbor);
+		Heard h = heard.remove(neighbor);
+		if(h != null) {
+			h.removed = true;
+		}
 	}
-	
+
+	/**
+	 * Advance the clock by which messages age, forgetting neighbors whose last message has outlived
+	 * its time to live. A message received in round r is available to the next ttl rounds.
+	 * @return number of neighbors forgotten
+	 */
+	public int advanceRound() {
+		round++;
+		if(wheel == null) {
+			return 0;
+		}
+		int index = (int)(round & mask);
+		List<Heard> due = wheel.get(index);
+		if(due.isEmpty()) {
+			return 0;
+		}
+		wheel.set(index, new ArrayList<Heard>());
+		int expired = 0;
+		for(Heard h : due) {
+			if(h.removed) {
+				continue;
+			}
+			if(round - h.round > ttl) {
+				receiveCache.remove(h.neighbor);
+				heard.remove(h.neighbor);
+				expired++;
+			} else {
+				// Heard from again since it was scheduled: check again when the new message runs out
+				wheel.get((int)((h.round + ttl + 1) & mask)).add(h);
+			}
+		}
+		return expired;
+	}
+
+	private void schedule(final Heard h) {
+		heard.put(h.neighbor, h);
+		wheel.get((int)((h.round + ttl + 1) & mask)).add(h);
+	}
+
 	/**
 	 * Called by {@link ProtelisVM} during execution to collect the most recent information available 
 	 * from neighbors.  The call is serial within the execution, so this should probably poll 
@@ -52,12 +237,15 @@ public class CachingNetworkManager implements NetworkManager {
 	 * Called by {@link ProtelisVM} during execution to send its current shared state to neighbors.
 	 * The call is serial within the execution, so this should probably queue up a message to
 	 * be sent, rather than actually carrying out a lengthy operations during this call.
+	 * The state is re-keyed by {@link CodePaths canonical} code paths, so that the caches of all
+	 * devices share the same key instances. The state is transmitted only if the {@link SharePolicy} says so,
+	 * and is then charged to the {@link BandwidthMeter}, if any.
 	 * @param toSend 
 	 * 		Shared state to be transmitted to neighbors.
 	 */
 	@Override
 	public void shareState(Map<CodePath, Object> toSend) {
-		sendCache = toSend;
+		offer(CodePaths.intern(toSend));
 	}
 
 }
@@ -0,0 +1,49 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Global interning table for {@link CodePath}s.
+ *
+ * Every device runs the same program, so every device exports structurally identical code paths each
+ * round. Replacing them by one canonical instance per path lets the state retained in send and receive
+ * caches share its keys, so that the memory taken by keys grows with the size of the program rather than
+ * with the number of devices, and lets map lookups between canonical paths succeed on identity.
+ *
+ * The table is safe to use from many simulations at once. It is never emptied: it holds one entry per
+ * distinct path of the programs that have run, which is bounded by their size.
+ */
+public final class CodePaths {
+	private static final ConcurrentHashMap<CodePath, CodePath> CANONICAL = new ConcurrentHashMap<>();
+
+	private CodePaths() {
+	}
+
+	/**
+	 * @param path	A code path
+	 * @return the canonical instance equal to it
+	 */
+	public static CodePath intern(final CodePath path) {
+		CodePath canonical = CANONICAL.putIfAbsent(path, path);
+		return canonical == null ? path : canonical;
+	}
+
+	/**
+	 * @param state	Shared state keyed by code paths
+	 * @return a copy of the state keyed by canonical code paths
+	 */
+	public static <V> Map<CodePath, V> intern(final Map<CodePath, V> state) {
+		Map<CodePath, V> interned = new HashMap<>(state.size() * 4 / 3 + 1);
+		for (Map.Entry<CodePath, V> e : state.entrySet()) {
+			interned.put(intern(e.getKey()), e.getValue());
+		}
+		return interned;
+	}
+
+	/** @return number of distinct code paths seen so far */
+	public static int size() {
+		return CANONICAL.size();
+	}
+}
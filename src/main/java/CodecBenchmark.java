@@ -0,0 +1,147 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Compares {@link StateCodec} with Java serialization on the shared state of a real simulation: the size
+ * of a message and the number of messages encoded and decoded per second.
+ *
+ * Usage: <code>CodecBenchmark [PROGRAM [EDGE_LENGTH [ROUNDS]]]</code>; the state exported by every device
+ * after the given number of rounds is encoded repeatedly, as it would be by a recorder of the whole swarm.
+ */
+public class CodecBenchmark {
+	/** Time spent measuring each encoding, in nanoseconds */
+	private static final long MEASUREMENT_TIME = 2000000000L;
+
+	public static void main(String[] args) throws InterruptedException, ExecutionException, IOException, ClassNotFoundException {
+		String program = args.length > 0 ? args[0] : "hello";
+		int edge = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		Simulation simulation = new Simulation(program, edge, 0.002, 500, 0, null);
+		for(int i=0;i<rounds;i++) {
+			simulation.runRound();
+		}
+		final List<DeviceUID> senders = new ArrayList<>();
+		final List<Map<CodePath,Object>> messages = new ArrayList<>();
+		int entries = 0, fallbacks = 0;
+		for(SimpleDevice d : simulation.getDevices()) {
+			senders.add(d.getDeviceUID());
+			messages.add(d.accessNetworkManager().getSendCache());
+			for(Object v : d.accessNetworkManager().getSendCache().values()) {
+				entries++;
+				fallbacks += StateCodec.isNative(v) ? 0 : 1;
+			}
+		}
+
+		// Java serialization, as a recorder or socket would use it: one object stream per message
+		long serializedBytes = 0;
+		final List<byte[]> serialized = new ArrayList<>();
+		for(int i=0;i<messages.size();i++) {
+			byte[] b = serialize(senders.get(i), messages.get(i));
+			serialized.add(b);
+			serializedBytes += b.length;
+		}
+		double serializeRate = measure(new Task() {
+			public void run() throws IOException {
+				for(int i=0;i<messages.size();i++) {
+					serialize(senders.get(i), messages.get(i));
+				}
+			}
+		}) * messages.size();
+		double deserializeRate = measure(new Task() {
+			public void run() throws IOException, ClassNotFoundException {
+				for(byte[] b : serialized) {
+					try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b))) {
+						in.readObject();
+						in.readObject();
+					}
+				}
+			}
+		}) * messages.size();
+
+		// The codec, with code paths defined by the first pass over the swarm and reused afterwards
+		final StateCodec.Encoder encoder = new StateCodec.Encoder();
+		final StateCodec.Decoder decoder = new StateCodec.Decoder();
+		long firstBytes = 0, encodedBytes = 0;
+		for(int i=0;i<messages.size();i++) {
+			ByteBuffer b = encoder.encode(senders.get(i), messages.get(i));
+			firstBytes += b.remaining();
+			decoder.decode(b);
+		}
+		final List<ByteBuffer> encoded = new ArrayList<>();
+		for(int i=0;i<messages.size();i++) {
+			ByteBuffer b = encoder.encode(senders.get(i), messages.get(i));
+			encodedBytes += b.remaining();
+			encoded.add(ByteBuffer.allocate(b.remaining()).put(b));
+		}
+		double encodeRate = measure(new Task() {
+			public void run() throws IOException {
+				for(int i=0;i<messages.size();i++) {
+					encoder.encode(senders.get(i), messages.get(i));
+				}
+			}
+		}) * messages.size();
+		double decodeRate = measure(new Task() {
+			public void run() throws IOException {
+				for(ByteBuffer b : encoded) {
+					b.rewind();
+					decoder.decode(b);
+				}
+			}
+		}) * messages.size();
+
+		int n = messages.size();
+		System.out.println(String.format("%d messages from %d devices after %d rounds of %s; %d code paths",
+				n, n, rounds, program, encoder.getDictionarySize()));
+		if(fallbacks > 0) {
+			// Those entries measure Java serialization on both sides, not the codec
+			System.out.println(String.format("%d of %d entries fall back to Java serialization", fallbacks, entries));
+		}
+		System.out.println(String.format("%-20s %14s %16s %16s", "", "bytes/message", "encode msg/s", "decode msg/s"));
+		System.out.println(String.format("%-20s %14.1f %16.0f %16.0f", "Java serialization",
+				(double) serializedBytes / n, serializeRate, deserializeRate));
+		System.out.println(String.format("%-20s %14.1f %16.0f %16.0f", "StateCodec",
+				(double) encodedBytes / n, encodeRate, decodeRate));
+		System.out.println(String.format("%-20s %14.1f", "  first pass", (double) firstBytes / n));
+	}
+
+	/** Body of a measurement */
+	private interface Task {
+		void run() throws IOException, ClassNotFoundException;
+	}
+
+	/**
+	 * Run a task repeatedly, after a warm-up, for a fixed time.
+	 * @return number of runs per second
+	 */
+	private static double measure(final Task task) throws IOException, ClassNotFoundException {
+		for(long end = System.nanoTime() + MEASUREMENT_TIME / 4; System.nanoTime() < end; ) {
+			task.run();
+		}
+		long start = System.nanoTime(), runs = 0;
+		while(System.nanoTime() - start < MEASUREMENT_TIME) {
+			task.run();
+			runs++;
+		}
+		return runs * 1e9 / (System.nanoTime() - start);
+	}
+
+	private static byte[] serialize(final DeviceUID sender, final Map<CodePath,Object> state) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(sender);
+			out.writeObject(state);
+		}
+		return bytes.toByteArray();
+	}
+}
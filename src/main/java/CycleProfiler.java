@@ -0,0 +1,184 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in profile of what each device's cycles cost: the time spent in {@link org.protelis.vm.ProtelisVM#runCycle()}
+ * and the size of the neighbor field it was computed over, i.e., the number of devices whose state it held.
+ *
+ * Each device's totals are kept in a few primitive arrays, written only by the thread running that device,
+ * and every cycle is also counted in two shared power-of-two histograms, so recording a cycle costs two clock
+ * reads and a handful of increments: cheap enough to leave on in full-scale runs. Skipped cycles are not recorded.
+ */
+public class CycleProfiler {
+	/** Number of power-of-two histogram buckets: bucket b counts values from 2^(b-1) up to 2^b, bucket 0 counts 0 */
+	private static final int BUCKETS = 64;
+
+	private final long[] cycles, nanos, maxNanos, fieldSizes;
+	private final LongAdder[] timeHistogram = newHistogram(), fieldHistogram = newHistogram();
+
+	/** @param devices	Number of devices profiled, indexed as in their simulation */
+	public CycleProfiler(final int devices) {
+		cycles = new long[devices];
+		nanos = new long[devices];
+		maxNanos = new long[devices];
+		fieldSizes = new long[devices];
+	}
+
+	private static LongAdder[] newHistogram() {
+		LongAdder[] h = new LongAdder[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			h[b] = new LongAdder();
+		}
+		return h;
+	}
+
+	/** @return number of devices profiled */
+	public int size() {
+		return cycles.length;
+	}
+
+	/**
+	 * Record one cycle of a device. Cycles of different devices may be recorded concurrently.
+	 * @param index		Index of the device
+	 * @param elapsed	Duration of the cycle, in nanoseconds
+	 * @param fieldSize	Number of devices in its neighbor field, itself included
+	 */
+	public void record(final int index, final long elapsed, final int fieldSize) {
+		cycles[index]++;
+		nanos[index] += elapsed;
+		fieldSizes[index] += fieldSize;
+		if (elapsed > maxNanos[index]) {
+			maxNanos[index] = elapsed;
+		}
+		timeHistogram[bucket(elapsed)].increment();
+		fieldHistogram[bucket(fieldSize)].increment();
+	}
+
+	private static int bucket(final long v) {
+		return v <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(v);
+	}
+
+	/** Forget everything recorded so far, e.g., after a warm-up. Must not run concurrently with a round. */
+	public void reset() {
+		for (int i = 0; i < cycles.length; i++) {
+			cycles[i] = nanos[i] = maxNanos[i] = fieldSizes[i] = 0;
+		}
+		for (int b = 0; b < BUCKETS; b++) {
+			timeHistogram[b].reset();
+			fieldHistogram[b].reset();
+		}
+	}
+
+	/** @return number of cycles of device i recorded */
+	public long getCycles(final int i) {
+		return cycles[i];
+	}
+
+	/** @return total time spent in the cycles of device i, in nanoseconds */
+	public long getTotalNanos(final int i) {
+		return nanos[i];
+	}
+
+	/** @return longest cycle of device i, in nanoseconds */
+	public long getMaxNanos(final int i) {
+		return maxNanos[i];
+	}
+
+	/** @return mean duration of the cycles of device i, in nanoseconds, or NaN if none were recorded */
+	public double getMeanNanos(final int i) {
+		return cycles[i] == 0 ? Double.NaN : (double) nanos[i] / cycles[i];
+	}
+
+	/** @return mean size of the neighbor field of device i, or NaN if no cycles were recorded */
+	public double getMeanFieldSize(final int i) {
+		return cycles[i] == 0 ? Double.NaN : (double) fieldSizes[i] / cycles[i];
+	}
+
+	/**
+	 * @return number of cycles by duration: element b counts the cycles that took from 2^(b-1) up to 2^b
+	 * 		nanoseconds
+	 */
+	public long[] getTimeHistogram() {
+		return snapshot(timeHistogram);
+	}
+
+	/** @return number of cycles by neighbor field size, in the same power-of-two buckets as {@link #getTimeHistogram()} */
+	public long[] getFieldSizeHistogram() {
+		return snapshot(fieldHistogram);
+	}
+
+	private static long[] snapshot(final LongAdder[] h) {
+		long[] counts = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			counts[b] = h[b].sum();
+		}
+		return counts;
+	}
+
+	/**
+	 * Find the devices that have taken the most time in total, with a heap of size n.
+	 * @param n	Number of devices wanted
+	 * @return indices of the n most expensive devices, most expensive first
+	 */
+	public List<Integer> hottest(final int n) {
+		Comparator<Integer> byTime = new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				return Long.compare(nanos[a], nanos[b]);
+			}
+		};
+		PriorityQueue<Integer> top = new PriorityQueue<>(Math.max(1, n), byTime);
+		for (int i = 0; i < cycles.length && n > 0; i++) {
+			if (cycles[i] == 0) {
+				continue;
+			}
+			if (top.size() < n) {
+				top.add(i);
+			} else if (nanos[i] > nanos[top.peek()]) {
+				top.poll();
+				top.add(i);
+			}
+		}
+		List<Integer> hot = new ArrayList<>(top);
+		Collections.sort(hot, Collections.reverseOrder(byTime));
+		return hot;
+	}
+
+	/**
+	 * Print the histograms and the most expensive devices. Must not run concurrently with a round.
+	 * @param out		Stream the report is written to
+	 * @param devices	The profiled devices, in simulation order
+	 * @param n			Number of devices listed
+	 */
+	public void report(final PrintStream out, final List<SimpleDevice> devices, final int n) {
+		long total = 0, time = 0;
+		for (int i = 0; i < cycles.length; i++) {
+			total += cycles[i];
+			time += nanos[i];
+		}
+		out.println(String.format(Locale.ROOT, "%d cycles of %d devices, %.1f us each on average",
+				total, cycles.length, total == 0 ? 0.0 : time / 1e3 / total));
+		printHistogram(out, "cycle time (ns)", getTimeHistogram());
+		printHistogram(out, "neighbor field size", getFieldSizeHistogram());
+		out.println(String.format("%-12s %10s %12s %12s %12s %8s", "device", "cycles", "total ms", "mean us", "max us", "field"));
+		for (int i : hottest(n)) {
+			out.println(String.format(Locale.ROOT, "%-12s %10d %12.2f %12.2f %12.2f %8.1f", devices.get(i).getDeviceUID(),
+					cycles[i], nanos[i] / 1e6, getMeanNanos(i) / 1e3, maxNanos[i] / 1e3, getMeanFieldSize(i)));
+		}
+	}
+
+	private static void printHistogram(final PrintStream out, final String name, final long[] counts) {
+		out.println(name + ":");
+		for (int b = 0; b < BUCKETS; b++) {
+			if (counts[b] > 0) {
+				long low = b == 0 ? 0 : 1L << (b - 1);
+				out.println(String.format("  %12d+ %12d", low, counts[b]));
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.protelis.vm.ExecutionEnvironment;
+import org.protelis.vm.impl.SimpleExecutionEnvironment;
+
+/**
+ * Compares the heap taken per device, and the speed of lookups, of a {@link SimpleExecutionEnvironment}
+ * holding its own copy of every variable with a {@link LayeredEnvironment} sharing them.
+ *
+ * Usage: <code>EnvironmentBenchmark [DEVICES [SHARED_VARIABLES [OVERRIDES]]]</code>; every device is given
+ * the same shared variables and then overrides a few of them, as a leader flag would be set.
+ * Run with a heap large enough for the devices, e.g., -Xmx2g.
+ */
+public class EnvironmentBenchmark {
+	/** Number of lookups timed per environment type */
+	private static final int LOOKUPS = 20000000;
+
+	public static void main(String[] args) {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int variables = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int overrides = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		Map<String,Object> constants = new HashMap<>();
+		for(int v=0;v<variables;v++) {
+			constants.put("parameter" + v, (double) v);
+		}
+		final Map<String,Object> shared = LayeredEnvironment.share(constants);
+
+		System.out.println(String.format("%d devices, %d shared variables, %d overrides each", devices, variables, overrides));
+		System.out.println(String.format("%-28s %14s %16s", "", "bytes/device", "lookups/s"));
+		for(int pass=0;pass<2;pass++) {
+			// The first pass warms up the JIT; only the second is reported
+			report(pass == 1, "SimpleExecutionEnvironment", devices, overrides, constants, new Factory() {
+				public ExecutionEnvironment create() {
+					return new SimpleExecutionEnvironment();
+				}
+			});
+			report(pass == 1, "LayeredEnvironment", devices, overrides, Collections.<String,Object>emptyMap(), new Factory() {
+				public ExecutionEnvironment create() {
+					return new LayeredEnvironment(shared);
+				}
+			});
+		}
+	}
+
+	private interface Factory {
+		ExecutionEnvironment create();
+	}
+
+	/**
+	 * Build a swarm's environments, measure the heap they hold and time lookups in them.
+	 * @param print		Whether to print the results
+	 * @param copied	Variables put into every environment after it is created
+	 */
+	private static void report(final boolean print, final String name, final int devices, final int overrides,
+			final Map<String,Object> copied, final Factory factory) {
+		long before = usedHeap();
+		List<ExecutionEnvironment> envs = new ArrayList<>(devices);
+		for(int d=0;d<devices;d++) {
+			ExecutionEnvironment env = factory.create();
+			for(Map.Entry<String,Object> e : copied.entrySet()) {
+				env.put(e.getKey(), e.getValue());
+			}
+			for(int o=0;o<overrides;o++) {
+				env.put("parameter" + o, -1.0);
+			}
+			envs.add(env);
+		}
+		long after = usedHeap();
+
+		String[] keys = {"parameter0", "parameter1", "missing"};
+		long start = System.nanoTime();
+		long found = 0;
+		for(int i=0;i<LOOKUPS;i++) {
+			ExecutionEnvironment env = envs.get(i % devices);
+			String key = keys[i % keys.length];
+			if(env.has(key) && env.get(key) != null) {
+				found++;
+			}
+		}
+		double rate = LOOKUPS * 1e9 / (System.nanoTime() - start);
+		if(print) {
+			System.out.println(String.format("%-28s %14.1f %16.0f", name, (double) (after - before) / devices, rate));
+		}
+		if(found < 0 || envs.isEmpty()) {
+			System.out.println(); // keep the environments and lookups from being optimized away
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for(int i=0;i<3;i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
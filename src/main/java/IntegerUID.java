@@ -9,7 +9,11 @@ public class IntegerUID implements DeviceUID {
 	
 	public int getUID() { return uid; }
 	
-	public boolean equals(final IntegerUID alt) { return this.uid==alt.uid; }
+	@Override
+	public boolean equals(final Object alt) { return alt instanceof IntegerUID && this.uid==((IntegerUID)alt).uid; }
+	
+	@Override
+	public int hashCode() { return uid; }
 	
 	public String toString() { return Integer.toString(uid); }
 }
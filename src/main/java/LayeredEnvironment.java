@@ -0,0 +1,115 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.protelis.vm.ExecutionEnvironment;
+
+/**
+ * Execution environment made of an immutable base layer, shared by every device of a swarm, and a
+ * private overlay holding only the variables a device has changed.
+ *
+ * The overlay is created on the first write, so a device that never writes its environment costs no
+ * more than a reference to the base. Removing a base variable records a tombstone in the overlay.
+ * A lookup takes at most one hash lookup per layer.
+ */
+public class LayeredEnvironment implements ExecutionEnvironment {
+	/** Marks a base variable removed by this device */
+	private static final Object REMOVED = new Object();
+	/** Stands for a null value, so that a single map lookup tells whether a layer has a variable */
+	private static final Object NULL = new Object();
+	/** Initial capacity of an overlay: most devices override only a few variables */
+	private static final int OVERLAY_CAPACITY = 4;
+
+	private final Map<String, Object> base;
+	private Map<String, Object> overlay = null;
+
+	/**
+	 * Create an environment with no shared variables.
+	 */
+	public LayeredEnvironment() {
+		this(Collections.<String, Object>emptyMap());
+	}
+
+	/**
+	 * @param base	Variables shared by every device, as made by {@link #share(Map)}
+	 */
+	public LayeredEnvironment(final Map<String, Object> base) {
+		this.base = base;
+	}
+
+	/**
+	 * @param variables	Variables to be shared
+	 * @return an immutable copy suitable as the base of many environments
+	 */
+	public static Map<String, Object> share(final Map<String, Object> variables) {
+		if (variables.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, Object> base = new HashMap<>(variables.size() * 4 / 3 + 1);
+		for (Map.Entry<String, Object> e : variables.entrySet()) {
+			base.put(e.getKey(), e.getValue() == null ? NULL : e.getValue());
+		}
+		return Collections.unmodifiableMap(base);
+	}
+
+	/** @return number of variables this device has overridden or removed */
+	public int getOverrideCount() {
+		return overlay == null ? 0 : overlay.size();
+	}
+
+	@Override
+	public boolean has(final String id) {
+		Object v = lookup(id);
+		return v != null && v != REMOVED;
+	}
+
+	@Override
+	public Object get(final String id) {
+		return get(id, null);
+	}
+
+	@Override
+	public Object get(final String id, final Object defaultValue) {
+		Object v = lookup(id);
+		return v == null || v == REMOVED ? defaultValue : v == NULL ? null : v;
+	}
+
+	/** @return the stored form of a variable in the topmost layer that has it, or null if none has */
+	private Object lookup(final String id) {
+		if (overlay != null) {
+			Object v = overlay.get(id);
+			if (v != null) {
+				return v;
+			}
+		}
+		return base.get(id);
+	}
+
+	@Override
+	public boolean put(final String id, final Object v) {
+		if (overlay == null) {
+			overlay = new HashMap<>(OVERLAY_CAPACITY);
+		}
+		overlay.put(id, v == null ? NULL : v);
+		return true;
+	}
+
+	@Override
+	public Object remove(final String id) {
+		Object previous = get(id);
+		if (base.containsKey(id)) {
+			put(id, REMOVED);
+		} else if (overlay != null) {
+			overlay.remove(id);
+		}
+		return previous;
+	}
+
+	@Override
+	public void commit() {
+	}
+
+	@Override
+	public void setup() {
+	}
+}
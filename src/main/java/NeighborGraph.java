@@ -0,0 +1,345 @@
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Unit-disc neighbor graph of a set of devices, in compressed sparse row form: the neighbors of device i
+ * are {@link #neighbor(int) neighbor(k)} for k from {@link #start(int) start(i)} up to {@link #end(int) end(i)},
+ * in increasing order. Every device is its own neighbor.
+ *
+ * The graph is built from scratch, in parallel: positions are converted to points, the points are bucketed
+ * into a sparse uniform grid of cells as wide as the range, and each device compares itself only with the
+ * devices in the 27 cells around its own. Blocks of cells write their rows into their own buffers, which
+ * are then copied into place once the row offsets are known.
+ */
+public class NeighborGraph {
+	/** Number of devices, or of cells, handled by one task */
+	private static final int BLOCK = 2048;
+
+	private final int[] offsets;
+	private final int[] neighbors;
+
+	private NeighborGraph(final int[] offsets, final int[] neighbors) {
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+	}
+
+	/** @return number of devices */
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	/** @return index of the first neighbor of device i */
+	public int start(final int i) {
+		return offsets[i];
+	}
+
+	/** @return index after the last neighbor of device i */
+	public int end(final int i) {
+		return offsets[i + 1];
+	}
+
+	/** @return the device that is neighbor number k, counting through all rows */
+	public int neighbor(final int k) {
+		return neighbors[k];
+	}
+
+	/** @return number of edges, counting each direction and self-loops */
+	public int edgeCount() {
+		return neighbors.length;
+	}
+
+	/**
+	 * @param i		A device
+	 * @param other	Graph over the same devices
+	 * @return whether device i has the same neighbors in both graphs
+	 */
+	public boolean sameNeighbors(final int i, final NeighborGraph other) {
+		int a = start(i), b = other.start(i), length = end(i) - a;
+		if (length != other.end(i) - b) {
+			return false;
+		}
+		for (int k = 0; k < length; k++) {
+			if (neighbors[a + k] != other.neighbors[b + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find which devices are within range of each other.
+	 * @param devices	Devices, indexed as in the graph
+	 * @param globe		Globe on which distances are measured, in a straight line
+	 * @param range		Communication range, in meters
+	 * @return the neighbor graph
+	 */
+	public static NeighborGraph build(final List<SimpleDevice> devices, final Globe globe, final double range) {
+		final int n = devices.size();
+		if (n == 0) {
+			return new NeighborGraph(new int[1], new int[0]);
+		}
+		final double[] x = new double[n], y = new double[n], z = new double[n];
+		final int blocks = Math.max(1, (n + BLOCK - 1) / BLOCK);
+		forEachBlock(blocks, new Block() {
+			public void run(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+					Vec4 p = globe.computePointFromPosition(devices.get(i).getPosition());
+					x[i] = p.x;
+					y[i] = p.y;
+					z[i] = p.z;
+				}
+			}
+		}, n);
+		final CellGrid grid = new CellGrid(x, y, z, range);
+
+		// Rows are found cell by cell, in the grid's order, so that the devices of neighboring cells are
+		// usually still in cache; each block of cells writes its rows into its own buffer, in grid order
+		final int cellBlocks = Math.max(1, (grid.cells.length + BLOCK - 1) / BLOCK);
+		final int[][] rows = new int[cellBlocks][];
+		final int[] rowAt = new int[n], degree = new int[n];
+		final double range2 = range * range;
+		forEachBlock(cellBlocks, new Block() {
+			public void run(final int from, final int to) {
+				int[] start = grid.start, count = grid.count, order = grid.order;
+				double[] gx = grid.x, gy = grid.y, gz = grid.z;
+				int[] near = new int[27];
+				int[] buffer = new int[Math.max(16, 8 * (start[grid.cells[to - 1]] + count[grid.cells[to - 1]] - start[grid.cells[from]]))];
+				int used = 0;
+				for (int j = from; j < to; j++) {
+					int slot = grid.cells[j];
+					int found = grid.near(slot, near);
+					for (int k = start[slot], last = k + count[slot]; k < last; k++) {
+						double px = gx[k], py = gy[k], pz = gz[k];
+						rowAt[k] = used;
+						for (int m = 0; m < found; m++) {
+							for (int q = start[near[m]], end = q + count[near[m]]; q < end; q++) {
+								double dx = px - gx[q], dy = py - gy[q], dz = pz - gz[q];
+								if (dx * dx + dy * dy + dz * dz <= range2) {
+									if (used == buffer.length) {
+										buffer = Arrays.copyOf(buffer, buffer.length * 2);
+									}
+									buffer[used++] = order[q];
+								}
+							}
+						}
+						Arrays.sort(buffer, rowAt[k], used);
+						degree[k] = used - rowAt[k];
+					}
+				}
+				rows[from / BLOCK] = buffer;
+			}
+		}, grid.cells.length);
+
+		final int[] offsets = new int[n + 1];
+		for (int k = 0; k < n; k++) {
+			offsets[grid.order[k] + 1] = degree[k];
+		}
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		final int[] neighbors = new int[offsets[n]];
+		forEachBlock(cellBlocks, new Block() {
+			public void run(final int from, final int to) {
+				int[] buffer = rows[from / BLOCK];
+				int first = grid.start[grid.cells[from]];
+				int last = grid.start[grid.cells[to - 1]] + grid.count[grid.cells[to - 1]];
+				for (int k = first; k < last; k++) {
+					System.arraycopy(buffer, rowAt[k], neighbors, offsets[grid.order[k]], degree[k]);
+				}
+			}
+		}, grid.cells.length);
+		return new NeighborGraph(offsets, neighbors);
+	}
+
+	/**
+	 * Devices bucketed by cell of a uniform grid, with cells as wide as the range. Devices lie near
+	 * the surface of the globe, so most cells of their bounding box are empty: only occupied cells are
+	 * stored, in an open-addressing hash table from cell coordinates to the cell's devices. Devices are
+	 * laid out by cell, with cells in order of their coordinates, so that nearby cells are nearby in memory.
+	 */
+	private static class CellGrid {
+		/** Bits per cell coordinate in a cell key */
+		private static final int BITS = 21;
+		private static final int SIDE = 1 << BITS;
+		private static final long EMPTY = -1;
+
+		private final double minX, minY, minZ, size;
+		private final long[] keys;
+		/** For each slot of the table: index into {@link #order} of the cell's first device, and number of devices */
+		private final int[] start, count;
+		/** Slots of the occupied cells, in order of their keys */
+		private final int[] cells;
+		/** Device indices, sorted by cell, and their points in the same order so that a cell is read sequentially */
+		private final int[] order;
+		private final double[] x, y, z;
+		private final int mask;
+
+		private CellGrid(final double[] x, final double[] y, final double[] z, final double range) {
+			int n = x.length;
+			double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+			for (int i = 0; i < n; i++) {
+				minX = Math.min(minX, x[i]);
+				maxX = Math.max(maxX, x[i]);
+				minY = Math.min(minY, y[i]);
+				maxY = Math.max(maxY, y[i]);
+				minZ = Math.min(minZ, z[i]);
+				maxZ = Math.max(maxZ, z[i]);
+			}
+			this.minX = minX;
+			this.minY = minY;
+			this.minZ = minZ;
+			// Cells no narrower than the range, so that neighbors are never more than one cell apart,
+			// and wide enough that every coordinate fits in a key
+			double size = Math.max(range, 1e-6);
+			while (Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / size >= SIDE - 1) {
+				size *= 2;
+			}
+			this.size = size;
+
+			int capacity = Integer.highestOneBit(Math.max(1, n)) << 2;
+			mask = capacity - 1;
+			keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			start = new int[capacity];
+			count = new int[capacity];
+			int[] slots = new int[n];
+			for (int i = 0; i < n; i++) {
+				long key = key(cell(x[i], minX), cell(y[i], minY), cell(z[i], minZ));
+				int slot = probe(key);
+				keys[slot] = key;
+				count[slot]++;
+				slots[i] = slot;
+			}
+			int occupied = 0;
+			for (int slot = 0; slot < capacity; slot++) {
+				if (count[slot] > 0) {
+					occupied++;
+				}
+			}
+			long[] sorted = new long[occupied];
+			for (int slot = 0, j = 0; slot < capacity; slot++) {
+				if (count[slot] > 0) {
+					sorted[j++] = keys[slot];
+				}
+			}
+			Arrays.sort(sorted);
+			cells = new int[occupied];
+			for (int j = 0, total = 0; j < occupied; j++) {
+				int slot = probe(sorted[j]);
+				cells[j] = slot;
+				start[slot] = total;
+				total += count[slot];
+			}
+			order = new int[n];
+			this.x = new double[n];
+			this.y = new double[n];
+			this.z = new double[n];
+			int[] fill = new int[capacity];
+			for (int i = 0; i < n; i++) {
+				int k = start[slots[i]] + fill[slots[i]]++;
+				order[k] = i;
+				this.x[k] = x[i];
+				this.y[k] = y[i];
+				this.z[k] = z[i];
+			}
+		}
+
+		private static long key(final int cx, final int cy, final int cz) {
+			return ((long) cx << (2 * BITS)) | ((long) cy << BITS) | cz;
+		}
+
+		/** @return the slot holding a key, or the empty slot where it would go */
+		private int probe(final long key) {
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while (keys[slot] != EMPTY && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		/** @return the slot of an occupied cell, or -1 if the cell has no devices or is off the grid */
+		private int find(final int cx, final int cy, final int cz) {
+			if (cx < 0 || cy < 0 || cz < 0 || cx >= SIDE || cy >= SIDE || cz >= SIDE) {
+				return -1;
+			}
+			int slot = probe(key(cx, cy, cz));
+			return keys[slot] == EMPTY ? -1 : slot;
+		}
+
+		/**
+		 * Find the occupied cells around a cell, itself included.
+		 * @param slot	Slot of an occupied cell
+		 * @param near	Receives the slots found; room for 27
+		 * @return number of slots found
+		 */
+		private int near(final int slot, final int[] near) {
+			long key = keys[slot];
+			int cx = (int) (key >>> (2 * BITS)), cy = (int) (key >>> BITS) & (SIDE - 1), cz = (int) key & (SIDE - 1);
+			int found = 0;
+			for (int a = cx - 1; a <= cx + 1; a++) {
+				for (int b = cy - 1; b <= cy + 1; b++) {
+					for (int c = cz - 1; c <= cz + 1; c++) {
+						int s = find(a, b, c);
+						if (s >= 0) {
+							near[found++] = s;
+						}
+					}
+				}
+			}
+			return found;
+		}
+
+		private int cell(final double v, final double min) {
+			return (int) ((v - min) / size);
+		}
+	}
+
+	/** Work on a block of consecutive devices or cells */
+	private interface Block {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Run a task on every block of items, in parallel if there is more than one block.
+	 * @param blocks	Number of blocks
+	 * @param task		Work on one block
+	 * @param n			Number of items
+	 */
+	private static void forEachBlock(final int blocks, final Block task, final int n) {
+		if (blocks <= 1) {
+			task.run(0, n);
+		} else {
+			new BlockAction(0, blocks, task, n).invoke();
+		}
+	}
+
+	/** Runs a range of blocks, split in halves until there is one block per task */
+	private static class BlockAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int first, last;
+		private final Block task;
+		private final int n;
+
+		private BlockAction(final int first, final int last, final Block task, final int n) {
+			this.first = first;
+			this.last = last;
+			this.task = task;
+			this.n = n;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first == 1) {
+				task.run(first * BLOCK, Math.min(n, (first + 1) * BLOCK));
+			} else {
+				int middle = (first + last) >>> 1;
+				invokeAll(new BlockAction(first, middle, task, n), new BlockAction(middle, last, task, n));
+			}
+		}
+	}
+}
@@ -0,0 +1,397 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Per-round aggregate statistics over the devices of a {@link Simulation}: count, minimum, maximum,
+ * mean and an equal-width histogram of each of a set of columns, such as a value exported by the
+ * Protelis program, the number of neighbors, or position.
+ *
+ * Columns are read straight from the devices in two passes (extremes and sums, then the histogram between
+ * the extremes), each a parallel reduction over ranges of devices into a few primitive arrays, so no
+ * per-device values are ever collected. Alternatively, the columns can be recorded into a {@link Sample}
+ * device by device, as the devices reach the end of a round, and summarized later on another thread.
+ */
+public class RoundStatistics {
+	/** Number of devices below which a range of devices is reduced on a single thread */
+	private static final int SEQUENTIAL_THRESHOLD = 4096;
+
+	/** A quantity sampled from every device */
+	public abstract static class Column {
+		private final String name;
+
+		/** @param name	Name of the column, used in the header of the time series */
+		protected Column(final String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param simulation	Simulation the device belongs to
+		 * @param index			Index of the device in the simulation
+		 * @param device		Device to be sampled
+		 * @return the device's value, or NaN if it has none
+		 */
+		public abstract double sample(Simulation simulation, int index, SimpleDevice device);
+	}
+
+	/**
+	 * @param key	Environment variable set by the Protelis program
+	 * @return column of the variable's numerical value; devices with no value or a non-numerical one are skipped
+	 */
+	public static Column exported(final String key) {
+		return new Column(key) {
+			public double sample(final Simulation simulation, final int index, final SimpleDevice device) {
+				Object value = device.getExecutionEnvironment().get(key);
+				return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+			}
+		};
+	}
+
+	/** @return column of the number of neighbors of each device */
+	public static Column neighborCount() {
+		return new Column("neighbors") {
+			public double sample(final Simulation simulation, final int index, final SimpleDevice device) {
+				return simulation.getNeighborCount(index);
+			}
+		};
+	}
+
+	/** @return column of the latitude of each device, in degrees */
+	public static Column latitude() {
+		return new Column("latitude") {
+			public double sample(final Simulation simulation, final int index, final SimpleDevice device) {
+				return device.getPosition().getLatitude().degrees;
+			}
+		};
+	}
+
+	/** @return column of the longitude of each device, in degrees */
+	public static Column longitude() {
+		return new Column("longitude") {
+			public double sample(final Simulation simulation, final int index, final SimpleDevice device) {
+				return device.getPosition().getLongitude().degrees;
+			}
+		};
+	}
+
+	/** @return column of the altitude of each device, in meters */
+	public static Column altitude() {
+		return new Column("altitude") {
+			public double sample(final Simulation simulation, final int index, final SimpleDevice device) {
+				return device.getPosition().getAltitude();
+			}
+		};
+	}
+
+	/**
+	 * Values of every column recorded from every device at the end of one round, to be summarized by
+	 * {@link RoundStatistics#compute(Sample)}. Different devices may be recorded concurrently.
+	 */
+	public final class Sample {
+		private final long round;
+		private final double[] values;
+
+		private Sample(final long round, final int devices) {
+			this.round = round;
+			this.values = new double[devices * columns.length];
+		}
+
+		/**
+		 * Record the columns of a device.
+		 * @param simulation	Simulation the device belongs to
+		 * @param index			Index of the device in the simulation
+		 * @param device		Device to be sampled
+		 */
+		public void record(final Simulation simulation, final int index, final SimpleDevice device) {
+			for (int c = 0; c < columns.length; c++) {
+				values[index * columns.length + c] = columns[c].sample(simulation, index, device);
+			}
+		}
+	}
+
+	/** Statistics of one round */
+	public static class Summary {
+		private final long round;
+		private final List<String> names;
+		private final long[] count;
+		private final double[] min, max, mean;
+		private final long[][] histogram;
+
+		private Summary(final long round, final List<String> names, final long[] count, final double[] min,
+				final double[] max, final double[] mean, final long[][] histogram) {
+			this.round = round;
+			this.names = names;
+			this.count = count;
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+			this.histogram = histogram;
+		}
+
+		/** @return number of rounds completed when the statistics were taken */
+		public long getRound() {
+			return round;
+		}
+
+		/** @return names of the columns, in order */
+		public List<String> getNames() {
+			return names;
+		}
+
+		/** @return number of devices with a finite value in column c */
+		public long getCount(final int c) {
+			return count[c];
+		}
+
+		/** @return smallest value in column c, or NaN if there are none */
+		public double getMin(final int c) {
+			return min[c];
+		}
+
+		/** @return largest value in column c, or NaN if there are none */
+		public double getMax(final int c) {
+			return max[c];
+		}
+
+		/** @return mean of the values in column c, or NaN if there are none */
+		public double getMean(final int c) {
+			return mean[c];
+		}
+
+		/**
+		 * @return number of values of column c in each of the equal-width bins between its minimum
+		 * 		and maximum; the maximum is counted in the last bin
+		 */
+		public long[] getHistogram(final int c) {
+			return histogram[c].clone();
+		}
+
+		/** @return header line matching {@link #toCsv()} */
+		public String csvHeader() {
+			StringBuilder b = new StringBuilder("round");
+			for (String n : names) {
+				b.append(',').append(n).append("_count,").append(n).append("_min,").append(n).append("_max,")
+						.append(n).append("_mean,").append(n).append("_histogram");
+			}
+			return b.toString();
+		}
+
+		/** @return the statistics as one CSV line, with each histogram as space-separated counts */
+		public String toCsv() {
+			StringBuilder b = new StringBuilder().append(round);
+			for (int c = 0; c < names.size(); c++) {
+				b.append(',').append(count[c]).append(',').append(format(min[c])).append(',').append(format(max[c]))
+						.append(',').append(format(mean[c])).append(',');
+				for (int i = 0; i < histogram[c].length; i++) {
+					b.append(i > 0 ? " " : "").append(histogram[c][i]);
+				}
+			}
+			return b.toString();
+		}
+
+		private static String format(final double v) {
+			return Double.isNaN(v) ? "" : String.format(Locale.ROOT, "%.6g", v);
+		}
+	}
+
+	private final Column[] columns;
+	private final List<String> names;
+	private final int bins;
+
+	/**
+	 * @param bins		Number of histogram bins per column; 0 for no histograms
+	 * @param columns	Quantities to be summarized
+	 */
+	public RoundStatistics(final int bins, final Column... columns) {
+		this.bins = bins;
+		this.columns = columns.clone();
+		List<String> names = new ArrayList<>(columns.length);
+		for (Column c : columns) {
+			names.add(c.getName());
+		}
+		this.names = Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Summarize the current state of a simulation. Must not run concurrently with a round.
+	 * @param simulation	Simulation to be summarized
+	 * @return statistics of every column
+	 */
+	public Summary compute(final Simulation simulation) {
+		final List<SimpleDevice> devices = simulation.getDevices();
+		return summarize(simulation.getRound(), devices.size(), new Source() {
+			public double value(final int column, final int index) {
+				return columns[column].sample(simulation, index, devices.get(index));
+			}
+		});
+	}
+
+	/**
+	 * @param round		Number of rounds completed when the sample is taken
+	 * @param devices	Number of devices in the simulation
+	 * @return an empty sample, to be filled in with {@link Sample#record(Simulation, int, SimpleDevice)}
+	 */
+	public Sample newSample(final long round, final int devices) {
+		return new Sample(round, devices);
+	}
+
+	/**
+	 * Summarize a sample in which every device has been recorded.
+	 * @param sample	Sample taken by {@link #newSample(long, int)}
+	 * @return statistics of every column
+	 */
+	public Summary compute(final Sample sample) {
+		final double[] values = sample.values;
+		return summarize(sample.round, values.length / Math.max(1, columns.length), new Source() {
+			public double value(final int column, final int index) {
+				return values[index * columns.length + column];
+			}
+		});
+	}
+
+	private Summary summarize(final long round, final int devices, final Source source) {
+		Moments m = new Moments(source, 0, devices).reduce();
+		int n = columns.length;
+		double[] mean = new double[n];
+		for (int c = 0; c < n; c++) {
+			if (m.count[c] == 0) {
+				m.min[c] = m.max[c] = mean[c] = Double.NaN;
+			} else {
+				mean[c] = m.sum[c] / m.count[c];
+			}
+		}
+		long[][] histogram = bins > 0
+				? new Histogram(source, 0, devices, m.min, m.max).reduce().counts
+				: new long[n][0];
+		return new Summary(round, names, m.count, m.min, m.max, mean, histogram);
+	}
+
+	/** Where the reductions read the value of a column for a device */
+	private interface Source {
+		double value(int column, int index);
+	}
+
+	/** Reduction over a range of devices, split in halves until the ranges are small */
+	private abstract class Reduction<R extends Reduction<R>> extends RecursiveTask<R> {
+		private static final long serialVersionUID = 1L;
+		protected final Source source;
+		private final int from, to;
+
+		protected Reduction(final Source source, final int from, final int to) {
+			this.source = source;
+			this.from = from;
+			this.to = to;
+		}
+
+		/** @return the reduction of the range, computed in parallel if it is large */
+		R reduce() {
+			return to - from <= SEQUENTIAL_THRESHOLD ? compute() : invoke();
+		}
+
+		@Override
+		protected R compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				R r = part(from, to);
+				for (int i = from; i < to; i++) {
+					r.accumulate(i);
+				}
+				return r;
+			}
+			int middle = (from + to) >>> 1;
+			R right = part(middle, to);
+			right.fork();
+			R left = part(from, middle).compute();
+			left.merge(right.join());
+			return left;
+		}
+
+		/** @return an empty reduction over a subrange */
+		protected abstract R part(int from, int to);
+
+		protected abstract void accumulate(int i);
+
+		protected abstract void merge(R other);
+	}
+
+	/** First pass: count, sum and extremes of each column */
+	private class Moments extends Reduction<Moments> {
+		private static final long serialVersionUID = 1L;
+		private final long[] count = new long[columns.length];
+		private final double[] sum = new double[columns.length];
+		private final double[] min = new double[columns.length], max = new double[columns.length];
+
+		Moments(final Source source, final int from, final int to) {
+			super(source, from, to);
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+
+		protected Moments part(final int from, final int to) {
+			return new Moments(source, from, to);
+		}
+
+		protected void accumulate(final int i) {
+			for (int c = 0; c < columns.length; c++) {
+				double v = source.value(c, i);
+				if (!Double.isNaN(v) && !Double.isInfinite(v)) {
+					count[c]++;
+					sum[c] += v;
+					min[c] = Math.min(min[c], v);
+					max[c] = Math.max(max[c], v);
+				}
+			}
+		}
+
+		protected void merge(final Moments other) {
+			for (int c = 0; c < columns.length; c++) {
+				count[c] += other.count[c];
+				sum[c] += other.sum[c];
+				min[c] = Math.min(min[c], other.min[c]);
+				max[c] = Math.max(max[c], other.max[c]);
+			}
+		}
+	}
+
+	/** Second pass: histogram of each column between the extremes found by the first */
+	private class Histogram extends Reduction<Histogram> {
+		private static final long serialVersionUID = 1L;
+		private final double[] low, high;
+		private final long[][] counts = new long[columns.length][bins];
+
+		Histogram(final Source source, final int from, final int to, final double[] low, final double[] high) {
+			super(source, from, to);
+			this.low = low;
+			this.high = high;
+		}
+
+		protected Histogram part(final int from, final int to) {
+			return new Histogram(source, from, to, low, high);
+		}
+
+		protected void accumulate(final int i) {
+			for (int c = 0; c < columns.length; c++) {
+				double v = source.value(c, i);
+				if (!Double.isNaN(v) && !Double.isInfinite(v)) {
+					double width = high[c] - low[c];
+					int bin = width > 0 ? (int) ((v - low[c]) / width * bins) : 0;
+					counts[c][Math.max(0, Math.min(bins - 1, bin))]++;
+				}
+			}
+		}
+
+		protected void merge(final Histogram other) {
+			for (int c = 0; c < columns.length; c++) {
+				for (int b = 0; b < bins; b++) {
+					counts[c][b] += other.counts[c][b];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+import java.util.Map;
+import java.util.Objects;
+
+import org.protelis.lang.datatype.Tuple;
+import org.protelis.vm.util.CodePath;
+
+/**
+ * When a {@link CachingNetworkManager} actually transmits the state its device shares, trading the staleness
+ * of what neighbors hold for bandwidth. A state that is not transmitted is kept, and the latest one goes out
+ * at the next transmission; meanwhile, neighbors keep what they last received.
+ *
+ * Every policy transmits at least once per {@link #getRefreshInterval() refresh interval}, so that neighbors
+ * can tell a silent device from one that has left.
+ */
+public final class SharePolicy {
+	/** How the decision to transmit is made */
+	public enum Mode {
+		/** Transmit every round */
+		ALWAYS,
+		/** Transmit once every refresh interval, whatever the state */
+		PERIODIC,
+		/** Transmit when the state has changed, or when the refresh interval has run out */
+		ON_CHANGE
+	}
+
+	private static final SharePolicy ALWAYS = new SharePolicy(Mode.ALWAYS, 1, 0);
+
+	private final Mode mode;
+	private final int refresh;
+	private final double epsilon;
+
+	private SharePolicy(final Mode mode, final int refresh, final double epsilon) {
+		if (refresh < 1 || !(epsilon >= 0)) {
+			throw new IllegalArgumentException("Refresh interval must be positive and threshold non-negative");
+		}
+		this.mode = mode;
+		this.refresh = refresh;
+		this.epsilon = epsilon;
+	}
+
+	/** @return policy that transmits every round, as an unconstrained link would */
+	public static SharePolicy always() {
+		return ALWAYS;
+	}
+
+	/**
+	 * @param rounds	Number of rounds between transmissions
+	 * @return policy that transmits once every given number of rounds
+	 */
+	public static SharePolicy every(final int rounds) {
+		return new SharePolicy(Mode.PERIODIC, rounds, 0);
+	}
+
+	/**
+	 * @param refresh	Longest number of rounds between transmissions
+	 * @return policy that transmits whenever any shared value has changed
+	 */
+	public static SharePolicy onChange(final int refresh) {
+		return new SharePolicy(Mode.ON_CHANGE, refresh, 0);
+	}
+
+	/**
+	 * @param epsilon	Largest change of a numerical value, alone or in a tuple, that is not worth transmitting
+	 * @param refresh	Longest number of rounds between transmissions
+	 * @return policy that transmits whenever a number has changed by more than epsilon, or any other value has changed
+	 */
+	public static SharePolicy onChange(final double epsilon, final int refresh) {
+		return new SharePolicy(Mode.ON_CHANGE, refresh, epsilon);
+	}
+
+	/**
+	 * Read a policy written as by {@link #toString()}: "always", "every:K", "change:REFRESH" or
+	 * "change:REFRESH:EPSILON".
+	 * @param text	Written policy
+	 * @return the policy
+	 * @throws IllegalArgumentException if the text is not a policy
+	 */
+	public static SharePolicy parse(final String text) {
+		String[] parts = text.trim().split(":");
+		try {
+			if (parts.length == 1 && parts[0].equals("always")) {
+				return always();
+			} else if (parts.length == 2 && parts[0].equals("every")) {
+				return every(Integer.parseInt(parts[1]));
+			} else if (parts.length == 2 && parts[0].equals("change")) {
+				return onChange(Integer.parseInt(parts[1]));
+			} else if (parts.length == 3 && parts[0].equals("change")) {
+				return onChange(Double.parseDouble(parts[2]), Integer.parseInt(parts[1]));
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad number in share policy: " + text, e);
+		}
+		throw new IllegalArgumentException("Unknown share policy: " + text);
+	}
+
+	/** @return how the decision to transmit is made */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/** @return longest number of rounds between transmissions */
+	public int getRefreshInterval() {
+		return refresh;
+	}
+
+	/** @return largest change of a number that is not transmitted */
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	/**
+	 * @param previous	State last transmitted, or null if none has been
+	 * @param state		State now shared
+	 * @param age		Number of rounds since the last transmission
+	 * @return whether to transmit the state
+	 */
+	boolean shouldSend(final Map<CodePath, Object> previous, final Map<CodePath, Object> state, final long age) {
+		if (previous == null || age >= refresh) {
+			return true;
+		}
+		switch (mode) {
+		case ALWAYS:
+			return true;
+		case ON_CHANGE:
+			return differs(previous, state);
+		default:
+			return false;
+		}
+	}
+
+	private boolean differs(final Map<CodePath, Object> previous, final Map<CodePath, Object> state) {
+		if (previous.size() != state.size()) {
+			return true;
+		}
+		for (Map.Entry<CodePath, Object> e : state.entrySet()) {
+			Object old = previous.get(e.getKey());
+			if ((old == null && !previous.containsKey(e.getKey())) || differs(old, e.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean differs(final Object a, final Object b) {
+		if (Objects.equals(a, b)) {
+			return false;
+		}
+		if (a instanceof Number && b instanceof Number) {
+			double x = ((Number) a).doubleValue(), y = ((Number) b).doubleValue();
+			// NaN and infinities only ever match themselves, which equals() has already ruled out
+			return !(Math.abs(x - y) <= epsilon);
+		}
+		if (a instanceof Tuple && b instanceof Tuple) {
+			Tuple s = (Tuple) a, t = (Tuple) b;
+			if (s.size() != t.size()) {
+				return true;
+			}
+			for (int i = 0; i < s.size(); i++) {
+				if (differs(s.get(i), t.get(i))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		switch (mode) {
+		case ALWAYS:
+			return "always";
+		case PERIODIC:
+			return "every:" + refresh;
+		default:
+			return "change:" + refresh + (epsilon > 0 ? ":" + epsilon : "");
+		}
+	}
+}
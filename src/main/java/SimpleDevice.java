@@ -4,6 +4,14 @@ import gov.nasa.worldwind.globes.Earth;
 import gov.nasa.worldwind.globes.Globe;
 import java8.util.function.Function;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
 import org.protelis.lang.datatype.DeviceUID;
 import org.protelis.lang.datatype.Field;
 import org.protelis.lang.datatype.Tuple;
@@ -11,7 +19,6 @@ import org.protelis.lang.datatype.impl.ArrayTupleImpl;
 import org.protelis.vm.ProtelisProgram;
 import org.protelis.vm.ProtelisVM;
 import org.protelis.vm.impl.AbstractExecutionContext;
-import org.protelis.vm.impl.SimpleExecutionEnvironment;
 
 /**
  * A simple implementation of a Protelis-based device, encapsulating
@@ -22,17 +29,38 @@ public class SimpleDevice extends AbstractExecutionContext {
 	private final IntegerUID uid;
 	/** The Protelis VM to be executed by the device */
 	private final ProtelisVM vm;
+	/** The program run by the VM, whose tree holds what rep and other stateful constructs keep between cycles */
+	private final ProtelisProgram program;
+	/** Serialized form of the program after the last cycle compared, or null if there is none */
+	private byte[] storedState = null;
 	private Position position;
+	/** Source of random numbers for the program, seeded so that runs can be repeated */
+	private final Random random;
+	/** Whether the current cycle has read the clock or random numbers, or moved the device */
+	private boolean readClockOrRandom = false, moved = false;
 	
 	/**
 	 * Standard constructor
+	 * @param seed	Seed of the simulation; each device derives its own random sequence from it
 	 */
-	public SimpleDevice(ProtelisProgram program, int uid, Position position) {
-		super(new SimpleExecutionEnvironment(), new CachingNetworkManager());
+	public SimpleDevice(ProtelisProgram program, int uid, Position position, long seed) {
+		this(program, uid, position, seed, Collections.<String,Object>emptyMap());
+	}
+	
+	/**
+	 * Constructor for devices of a swarm sharing environment variables
+	 * @param seed		Seed of the simulation; each device derives its own random sequence from it
+	 * @param shared	Environment variables common to the swarm, as made by {@link LayeredEnvironment#share(Map)};
+	 * 					the device keeps only its own changes to them
+	 */
+	public SimpleDevice(ProtelisProgram program, int uid, Position position, long seed, Map<String,Object> shared) {
+		super(new VersionedEnvironment(new LayeredEnvironment(shared)), new CachingNetworkManager());
 		this.uid = new IntegerUID(uid);
 		this.position = position;
+		this.random = new Random(seed * 0x9E3779B97F4A7C15L + uid);
 		
 		// Finish making the new device and add it to our collection
+		this.program = program;
 		vm = new ProtelisVM(program, this);
 	}
 	
@@ -40,9 +68,11 @@ public class SimpleDevice extends AbstractExecutionContext {
 	 * Internal-only lightweight constructor to support "instance"
 	 */
 	private SimpleDevice(IntegerUID uid) {
-		super(new SimpleExecutionEnvironment(), new CachingNetworkManager());
+		super(new VersionedEnvironment(new LayeredEnvironment()), new CachingNetworkManager());
 		this.uid = uid;
 		vm = null;
+		program = null;
+		random = new Random();
 	}
 	
 	/** 
@@ -51,6 +81,55 @@ public class SimpleDevice extends AbstractExecutionContext {
 	public ProtelisVM getVM() {
 		return vm;
 	}
+	/** @return environment of the device, which counts its own modifications */
+	public VersionedEnvironment accessEnvironment() {
+		return (VersionedEnvironment)getExecutionEnvironment();
+	}
+	
+	/**
+	 * Forget what earlier cycles depended on, before running another.
+	 * See {@link #dependsOnClockOrRandom()} and {@link #hasMoved()}.
+	 */
+	public void clearDependencies() {
+		readClockOrRandom = false;
+		moved = false;
+	}
+	
+	/** @return whether the program has read the clock or random numbers since the last {@link #clearDependencies()} */
+	public boolean dependsOnClockOrRandom() {
+		return readClockOrRandom;
+	}
+	
+	/** @return whether the device has moved since the last {@link #clearDependencies()} */
+	public boolean hasMoved() {
+		return moved;
+	}
+
+	/**
+	 * Compare the state that the program keeps from one cycle to the next, e.g., a counter kept by rep,
+	 * with the state it had when this was last called. That state is neither shared nor part of the
+	 * program's value, so it is compared through the program's serialized form.
+	 * @return false only if the state is known to be the same as at the last call; true if there was none
+	 * 	since {@link #forgetStoredState()}, or the program cannot be serialized
+	 */
+	public boolean hasStoredStateChanged() {
+		byte[] previous = storedState;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(previous == null ? 1024 : previous.length);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(program);
+		} catch (IOException e) {
+			storedState = null;
+			return true;
+		}
+		storedState = bytes.toByteArray();
+		return previous == null || !Arrays.equals(previous, storedState);
+	}
+
+	/** Forget the stored state last compared, e.g., when cycles have run without being compared */
+	public void forgetStoredState() {
+		storedState = null;
+	}
+	
 	/** 
 	 * Test actuator that dumps a string message to the output
 	 */
@@ -72,6 +151,7 @@ public class SimpleDevice extends AbstractExecutionContext {
 		double newLat = position.latitude.degrees + degreesPerMeter * (Double)vector.get(1);
 		double newElevation = position.elevation + (Double)vector.get(2);
 		position = Position.fromDegrees(newLat, newLon, newElevation);
+		moved = true;
 	}
 
 	public Position getPosition() {
@@ -91,32 +171,46 @@ public class SimpleDevice extends AbstractExecutionContext {
 		return uid;
 	}
 
-	/** @return Field of distances to neighbors */
+	/**
+	 * @return Field of distances to neighbors. Positions are shared as they were when each neighbor ran,
+	 * 		rather than read from the neighbors themselves, which may already be moving in their next cycle.
+	 */
 	public Field nbrRange() {
 		Vec4 v = EARTH.computePointFromPosition(getPosition());
 		return buildField(new Function<Object,Double>() {
-			public Double apply(final Object otherNode) {
-				Vec4 vOther = EARTH.computePointFromPosition(((SimpleDevice)otherNode).getPosition());
+			public Double apply(final Object otherPosition) {
+				Vec4 vOther = EARTH.computePointFromPosition(toPosition((Tuple)otherPosition));
 				return v.distanceTo3(vOther);
 			}
-		}, this);
+		}, fromPosition(getPosition()));
 	}
 	
-	/** @return Field of vectors to neighbors */
+	/** @return Field of vectors to neighbors, from their shared positions as in {@link #nbrRange()} */
 	public Field nbrVector() {
 		return buildField(new Function<Object,Tuple>() {
-			public Tuple apply(final Object otherNode) {
-				Position pDelta = ((SimpleDevice)otherNode).getPosition().subtract(getPosition());
+			public Tuple apply(final Object otherPosition) {
+				Position pDelta = toPosition((Tuple)otherPosition).subtract(getPosition());
 				// TODO: note that this conversion is an approximation that will not hold near the poles
 				double dN = pDelta.getLatitude().getRadians() * Earth.WGS84_POLAR_RADIUS;
 				double dE = pDelta.getLongitude().getRadians() * Earth.WGS84_EQUATORIAL_RADIUS;
 				return new ArrayTupleImpl(dN, dE, pDelta.getAltitude());
 			}
-		}, this);
+		}, fromPosition(getPosition()));
+	}
+	
+	/** @return position as an immutable tuple of latitude and longitude in degrees and elevation */
+	static Tuple fromPosition(final Position p) {
+		return new ArrayTupleImpl(p.latitude.degrees, p.longitude.degrees, p.elevation);
+	}
+	
+	/** @return position shared by {@link #fromPosition(Position)} */
+	static Position toPosition(final Tuple t) {
+		return Position.fromDegrees((Double)t.get(0), (Double)t.get(1), (Double)t.get(2));
 	}
 	
 	@Override
 	public Number getCurrentTime() {
+		readClockOrRandom = true;
 		return System.currentTimeMillis();
 	}
 
@@ -130,6 +224,7 @@ public class SimpleDevice extends AbstractExecutionContext {
 	 */
 	@Override
 	public double nextRandomDouble() {
-		return Math.random();
+		readClockOrRandom = true;
+		return random.nextDouble();
 	}
 }
@@ -1,7 +1,4 @@
 import gov.nasa.worldwind.geom.Position;
-import gov.nasa.worldwind.geom.Vec4;
-import gov.nasa.worldwind.globes.Earth;
-import gov.nasa.worldwind.globes.Globe;
 import gov.nasa.worldwind.symbology.BasicTacticalSymbolAttributes;
 import gov.nasa.worldwind.symbology.SymbologyConstants;
 import gov.nasa.worldwind.symbology.TacticalSymbol;
@@ -10,39 +7,71 @@ import gov.nasa.worldwind.symbology.milstd2525.MilStd2525TacticalSymbol;
 import gov.nasa.worldwind.symbology.milstd2525.SymbolCode;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import org.protelis.lang.ProtelisLoader;
-import org.protelis.vm.ProtelisProgram;
-import org.protelis.vm.util.CodePath;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import stream.BufferPolicy;
+import visualizer.AppConfiguration;
+import visualizer.DeviceSymbolFactory;
+import visualizer.HeadlessFrameExporter;
 import visualizer.WorldWindVisualization;
-import visualizer.util.NetworkConnectionVisualization;
+import visualizer.util.SymbolAttributeRamp;
 
 /**
  * Minimal demonstration of an application using Protelis.
  * This demonstration does the following:
  * - Uses ProtelisLoader to obtain a program from the Protelis classes
  * - Create a collection of Protelis-based devices, each encapsulating a 
- *   ProtelisVM, execution environment, and network interface
- * - Run several rounds of synchronous execution
+ *   ProtelisVM, execution environment, and network interface (see {@link Simulation})
+ * - Run several rounds of synchronous execution, showing them in a WorldWind window
  */
 public class SimpleVisualizedSimulation {
-	/** Collection of devices */
-	private static List<SimpleDevice> devices = new ArrayList<>();
-	/** Network for moving messages between devices */
-	private static Map<SimpleDevice,Set<SimpleDevice>> network = new HashMap<>();
+	static {
+		// WorldWind reads its configuration when first used, which must not happen before it is told where ours is
+		AppConfiguration.configure();
+	}
+	
+	/** The simulated swarm */
+	private static Simulation simulation = null;
+	/** Grid size, spacing (in degrees), communication range (in meters) and random seed of the demonstration */
+	private static final int EDGE_LENGTH = 5;
+	private static final double SPACING = 0.002, COMMUNICATION_RANGE = 500;
+	private static final long SEED = 0;
+	
+	/** WorldWind visualization; null when running headless */
+	private static WorldWindVisualization vis = null;
+	/** Software frame export for runs without a display; null unless running headless */
+	private static HeadlessFrameExporter exporter = null;
+	/** Image size and interval (in rounds) of headless frame export */
+	private static final int EXPORT_WIDTH = 1024, EXPORT_HEIGHT = 768, EXPORT_INTERVAL = 10;
+	/** Largest number of devices given symbols at once; only devices in view are shown */
+	private static final int MAX_SHOWN_DEVICES = 5000;
 	
-	/** WorldWind visualization */
-	private static WorldWindVisualization vis = new WorldWindVisualization("Visualized Protelis");
-	private static Map<SimpleDevice,TacticalSymbol> visualizations = new HashMap<>();
-	private static Map<SimpleDevice,NetworkConnectionVisualization> networkVis = new HashMap<>();
+	/** Statistics time series of every round; null unless requested */
+	private static StatisticsLog statisticsLog = null;
+	/** Number of histogram bins in the statistics */
+	private static final int STATISTICS_BINS = 10;
+	
+	/** Whether devices whose cycles would repeat themselves are skipped */
+	private static boolean quiescence = false;
+	/** Whether rounds are pipelined across cores, and how many are run between progress reports */
+	private static boolean pipelined = false;
+	private static final int PIPELINED_ROUNDS = 10;
+	/** Whether the cost of each device is profiled, shown on the map and reported every few rounds */
+	private static boolean profiling = false;
+	/** Whether the traffic generated by shared state is metered and reported every few rounds */
+	private static boolean bandwidth = false;
+	/** When devices transmit their shared state */
+	private static SharePolicy sharePolicy = SharePolicy.always();
+	/** Number of rounds between reports, and number of devices or code sites listed in each */
+	private static final int REPORT_INTERVAL = 100, REPORT_LENGTH = 10;
 	
 	/** Kludged output to either standard out or a string */
 	public static PrintStream out = System.out;
@@ -50,72 +79,153 @@ public class SimpleVisualizedSimulation {
 	
 	/**
 	 * Entry point for executing this demonstration
+	 * Arguments: "string" logs to a string rather than standard out; "headless DIR" 
+	 * runs without a window, writing a PNG frame every few rounds into directory DIR;
+	 * "stats FILE" writes statistics of every round to FILE as CSV; "quiescent" skips devices that have settled
+	 * (none do under hello.pt, which reads self.nextRandomDouble() every round);
+	 * "pipelined" overlaps consecutive rounds on all cores; "profile" measures what each device costs to run;
+	 * "bandwidth" measures the traffic of each code site and device; "policy SPEC" limits when devices
+	 * transmit their shared state (see {@link SharePolicy#parse(String)}).
 	 */
-	public static void main(String[] args) {
-		// if the first argument is "string", then log to a string; otherwise, log to standard out
-		if(args.length>0 && args[0].equals("string")) {
-			outBuffer = new ByteArrayOutputStream();
-			out = new PrintStream(outBuffer);
+	public static void main(String[] args) throws InterruptedException, ExecutionException, FileNotFoundException {
+		final StartupTimeline timeline = new StartupTimeline();
+		for(int a=0;a<args.length;a++) {
+			// if an argument is "string", then log to a string; otherwise, log to standard out
+			if(args[a].equals("string")) {
+				outBuffer = new ByteArrayOutputStream();
+				out = new PrintStream(outBuffer);
+			} else if(args[a].equals("headless") && a+1<args.length) {
+				exporter = new HeadlessFrameExporter(new File(args[++a]), EXPORT_WIDTH, EXPORT_HEIGHT,
+						EXPORT_INTERVAL, Runtime.getRuntime().availableProcessors());
+			} else if(args[a].equals("quiescent")) {
+				quiescence = true;
+			} else if(args[a].equals("pipelined")) {
+				pipelined = true;
+			} else if(args[a].equals("profile")) {
+				profiling = true;
+			} else if(args[a].equals("bandwidth")) {
+				bandwidth = true;
+			} else if(args[a].equals("policy") && a+1<args.length) {
+				sharePolicy = SharePolicy.parse(args[++a]);
+			} else if(args[a].equals("stats") && a+1<args.length) {
+				statisticsLog = new StatisticsLog(new PrintStream(new File(args[++a])));
+			}
 		}
 		
-		vis.orderLayers("Network","Symbols");
+		// Bring up the window and its layers on a separate thread, while the devices are being built
+		FutureTask<WorldWindVisualization> window = null;
+		if(exporter==null) {
+			window = new FutureTask<>(new Callable<WorldWindVisualization>() {
+				public WorldWindVisualization call() {
+					StartupTimeline.Timer t = timeline.begin("WorldWind window");
+					WorldWindVisualization v = new WorldWindVisualization("Visualized Protelis");
+					v.clusterLayers("Symbols");
+					v.indexLayers("Network");
+					v.orderLayers("Network","Symbols");
+					v.setValueColoring(new SymbolAttributeRamp(16, 0.15, 0.3));
+					v.showDevices(new DeviceSymbolFactory() {
+						public TacticalSymbol createSymbol() {
+							return makeUAVSymbol();
+						}
+					}, "Symbols", "Network", MAX_SHOWN_DEVICES);
+					if(profiling) {
+						v.showCosts("Cost", MAX_SHOWN_DEVICES);
+					}
+					t.end();
+					return v;
+				}
+			});
+			new Thread(window, "startup-window").start();
+		}
 		// Create the network of devices and connections
 		out.println("Creating grid network");
-		createNetwork("hello");
+		createNetwork("hello", window, timeline);
 		
 		// Run until window signals to exit
-		int round = 0;
+		StartupTimeline.Timer firstRound = timeline.begin("First round");
+		simulation.runRound();
+		firstRound.end();
+		timeline.report(out);
+		long nextReport = REPORT_INTERVAL;
 		while(true) {
-			out.println("Executing round "+round++);
-			synchronousUpdate();
+			if(simulation.getRound()>=nextReport) {
+				if(profiling) {
+					out.println("Most expensive devices after round "+simulation.getRound());
+					simulation.getProfiler().report(out, simulation.getDevices(), REPORT_LENGTH);
+				}
+				if(bandwidth) {
+					out.println("Traffic of shared state after round "+simulation.getRound());
+					simulation.getBandwidthMeter().report(out, simulation.getDevices(), REPORT_LENGTH);
+				}
+				nextReport += REPORT_INTERVAL;
+			}
+			if(pipelined) {
+				out.println(String.format("Executing rounds %d to %d", simulation.getRound(), simulation.getRound()+PIPELINED_ROUNDS-1));
+				simulation.runRounds(PIPELINED_ROUNDS);
+				continue;
+			}
+			String note = "";
+			if(quiescence) {
+				note += String.format(", %.1f%% of devices skipped", 100 * simulation.getSkippedFraction());
+			}
+			if(sharePolicy.getMode()!=SharePolicy.Mode.ALWAYS) {
+				note += String.format(", %d devices held back their state", simulation.getSuppressedCount());
+			}
+			if(note.isEmpty()) {
+				out.println("Executing round "+simulation.getRound());
+			} else {
+				out.println(String.format("Executing round %d (last round%s)", simulation.getRound(), note));
+			}
+			simulation.runRound();
 		}
 	}
 	
 	/**
-	 * Create an N x N grid of devices, each running the inducated program.
-	 * @param program
+	 * Create the grid of devices, building them in parallel while the window is being created,
+	 * and connect the visualization or frame exporter to the round stream.
+	 * @param protelisModuleName	Program to be run by every device
+	 * @param window	Visualization being created concurrently, or null if there is none
+	 * @param timeline	Timeline on which the startup phases are recorded
 	 */
-	private static void createNetwork(String protelisModuleName) {
-		// Make a square grid of EDGE_LENGTH x EDGE_LENGTH devices
-		final int EDGE_LENGTH = 5;
-		// One of these devices will be marked in its environment as a leader
-		final int LEADER_ID = 5; // should have neighbors 1, 4, 6, 9
-
-		SimpleDevice[][] cache = new SimpleDevice[EDGE_LENGTH][EDGE_LENGTH];
-		// Create devices
-		for(int i=0;i<EDGE_LENGTH;i++) {
-			for(int j=0;j<EDGE_LENGTH;j++) {
-				int id = i*4+j;
-	    		Position pos = Position.fromDegrees(42.3858+(i*0.002), -71.1515+(j*0.002), 300);
-	    		
-				// Parse a new copy of the program for each device:
-				// it will be marked up with values as the interpreter runs
-				ProtelisProgram program = ProtelisLoader.parse(protelisModuleName);
-
-				// Create the device
-				SimpleDevice executionContext = new SimpleDevice(program,id,pos);
-				devices.add(executionContext);
-				visualizations.put(executionContext,makeUAVSymbol(executionContext));
-				// Mark the leader
-				if(id==LEADER_ID) { 
-					executionContext.getExecutionEnvironment().put("leader", true); 
-				}
-				// Remember the devices in a grid, for later setting up the network
-				cache[i][j] = executionContext;
-				
-				// Create holders for network information
-		    	network.put(executionContext,new HashSet<>());
-		    	NetworkConnectionVisualization net = new NetworkConnectionVisualization(pos,new HashSet<>());
-		    	vis.addVisualization(net,"Network");
-		    	networkVis.put(executionContext,net);
-			}
+	private static void createNetwork(final String protelisModuleName, final Future<WorldWindVisualization> window,
+			final StartupTimeline timeline) throws InterruptedException, ExecutionException {
+		StartupTimeline.Timer t = timeline.begin("Devices");
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(EDGE_LENGTH, Runtime.getRuntime().availableProcessors()));
+		try {
+			simulation = new Simulation(protelisModuleName, EDGE_LENGTH, SPACING, COMMUNICATION_RANGE, SEED, pool);
+		} finally {
+			pool.shutdown();
+		}
+		simulation.setQuiescence(quiescence);
+		simulation.setSharePolicy(sharePolicy);
+		if(profiling) {
+			simulation.setProfiler(new CycleProfiler(simulation.getDevices().size()));
+		}
+		if(bandwidth) {
+			simulation.setBandwidthMeter(new BandwidthMeter(simulation.getDevices().size()));
 		}
+		t.end();
 		
-		// Link up the network
-		updateNetwork();
+		// The first scene is published once the window exists
+		if(window != null) {
+			vis = window.get();
+			// The window only ever needs the latest scene
+			simulation.getRounds().subscribe(vis, BufferPolicy.dropOldest(1));
+		}
+		if(exporter != null) {
+			// The exporter skips rounds between frames itself, and drops frames it cannot keep up with
+			simulation.getRounds().subscribe(exporter);
+		}
+		if(statisticsLog != null) {
+			simulation.setStatistics(new RoundStatistics(STATISTICS_BINS, RoundStatistics.exported(Simulation.DISPLAY_VALUE),
+					RoundStatistics.neighborCount(), RoundStatistics.latitude(), RoundStatistics.longitude()));
+			// The series must be complete, so the log may hold up the simulation if it falls far behind
+			simulation.getStatistics().subscribe(statisticsLog, BufferPolicy.block(1024));
+		}
+		simulation.publishScene(0);
 	}
 
-	private static TacticalSymbol makeUAVSymbol(SimpleDevice device) {
+	private static TacticalSymbol makeUAVSymbol() {
 		// Get symbol code for UAV
     	SymbolCode code = new SymbolCode();
     	code.setBattleDimension(SymbologyConstants.BATTLE_DIMENSION_AIR);
@@ -127,82 +237,11 @@ public class SimpleVisualizedSimulation {
     	code.setFunctionId("MFQ"); // Drone
     	
     	
-		TacticalSymbol symbol = new MilStd2525TacticalSymbol(code.toString(), device.getPosition());
+		TacticalSymbol symbol = new MilStd2525TacticalSymbol(code.toString(), Position.ZERO);
 		TacticalSymbolAttributes attrs = new BasicTacticalSymbolAttributes();
 		attrs.setScale(0.2); // Make the symbol 20% its normal size.
 		symbol.setAttributes(attrs);
 		symbol.setShowTextModifiers(false);
-    	vis.addVisualization(symbol,"Symbols");
-    	
 		return symbol;
 	}
-
-	/**
-	 * Execute every device once, then deliver updates to all neighbors.
-	 */
-	private static void synchronousUpdate() {
-		// Execute one cycle at each device
-		for(SimpleDevice d : devices) {
-			d.getVM().runCycle();
-		}
-		// Update network connectivity
-		updateNetwork();
-		
-		// Deliver shared-state updates over the network
-		for(SimpleDevice src : network.keySet()) {
-			Map<CodePath,Object> message = src.accessNetworkManager().getSendCache();
-			for(SimpleDevice dst : network.get(src)) {
-				dst.accessNetworkManager().receiveFromNeighbor(src.getDeviceUID(),message);
-			}
-		}
-		
-		// update positions of visualization
-		for(SimpleDevice src : network.keySet()) {
-			TacticalSymbol symbol = visualizations.get(src);
-			symbol.setPosition(src.getPosition());
-		}
-		vis.triggerRedraw();
-	}
-	
-	private static final Globe EARTH = new Earth();
-	private static final double COMMUNICATION_RANGE = 500; // meters
-	/**
-	 * Simple unit-disc network model, implemented naively.
-	 * A real application will want to run its updates using a more efficient data
-	 * structure like a quad tree
-	 */
-	private static void updateNetwork() {
-		for(SimpleDevice self : devices) {
-			Vec4 pSelf = EARTH.computePointFromPosition(self.getPosition());
-			Set<SimpleDevice> nbrs = network.get(self);
-			for(SimpleDevice other : devices) {
-				Vec4 pOther = EARTH.computePointFromPosition(other.getPosition());
-				double distance = pSelf.distanceTo3(pOther);
-				if(distance <= COMMUNICATION_RANGE) {
-					if(!nbrs.contains(other)) {
-						nbrs.add(other);
-					}
-				} else {
-					if(nbrs.contains(other)) {
-						nbrs.remove(other);
-					}
-				}
-			}
-		}
-		
-		for(SimpleDevice self : devices) {
-			NetworkConnectionVisualization netvis = networkVis.get(self);
-			netvis.setPosition(self.getPosition());
-			
-			Set<Position> i = new HashSet<>();
-			//Set<Position> i = (Set<Position>) netvis.getPositions();
-			//i.clear();
-			for(SimpleDevice nbr : network.get(self)) {
-				i.add(self.getPosition());
-				i.add(nbr.getPosition());
-			}
-			netvis.setNeighbors(i);
-		}
-		
-	}
 }
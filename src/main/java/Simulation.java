@@ -0,0 +1,669 @@
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.globes.Earth;
+import gov.nasa.worldwind.globes.Globe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.vm.ProtelisProgram;
+import org.protelis.vm.util.CodePath;
+
+import stream.RoundPublisher;
+import visualizer.SceneSnapshot;
+
+/**
+ * One simulated swarm: a square grid of devices running a Protelis program, linked by a unit-disc network.
+ * Simulations share nothing but immutable data, so any number of them can run side by side in one JVM.
+ *
+ * Rounds are run either one at a time on the calling thread ({@link #runRound()}), or several at a time
+ * in a pipeline that overlaps consecutive rounds on many threads ({@link #runRounds(int)}); both give the
+ * same results.
+ */
+public class Simulation {
+	/** Southwest corner of the device grid */
+	private static final double ORIGIN_LAT = 42.3858, ORIGIN_LON = -71.1515;
+	/** Altitude of the devices, in meters */
+	private static final double ALTITUDE = 300;
+	/** Number of devices below which a range of devices is stepped on a single thread */
+	private static final int STEP_THRESHOLD = 256;
+	/** Default number of rounds a neighbor's message is kept without being renewed */
+	public static final int DEFAULT_NEIGHBOR_TTL = 1;
+	/** Environment variable, set by the Protelis program, that is recorded in scene snapshots */
+	public static final String DISPLAY_VALUE = "distance";
+	private static final Globe EARTH = new Earth();
+
+	/** Collection of devices */
+	private final List<SimpleDevice> devices = new ArrayList<>();
+	/** Network for moving messages between devices, indexed like {@link #devices} */
+	private NeighborGraph network = null;
+	/** Snapshots of each round, published to visualizations and any other subscriber */
+	private final RoundPublisher<SceneSnapshot> rounds = new RoundPublisher<>("rounds");
+	/** Per-round statistics, published to subscribers of {@link #getStatistics()} */
+	private final RoundPublisher<RoundStatistics.Summary> statistics = new RoundPublisher<>("statistics");
+	private RoundStatistics statisticsPass = null;
+	/** Profile of the cost of each device's cycles; null unless profiling */
+	private CycleProfiler profiler = null;
+	/** Meter of the traffic generated by shared state; null unless metering */
+	private BandwidthMeter bandwidth = null;
+	/** Range of the unit-disc network, in meters */
+	private final double range;
+	private long round = 0;
+
+	/** Position of each device in {@link #devices} */
+	private final Map<SimpleDevice,Integer> indices = new HashMap<>();
+	/** Whether devices that would only repeat their last cycle are skipped */
+	private boolean quiescence = false;
+	/** Per device: whether it must run next round, version of its environment and value of its program
+	 *  after its last cycle, and its last export */
+	private boolean[] awake;
+	private long[] envVersion;
+	private Object[] lastValue;
+	private List<Map<CodePath,Object>> lastExport;
+	/** Per round parity, per device: the message sent, and whether the export or position changed.
+	 *  A round's messages are kept apart from the next round's, which pipelined devices may already be sending. */
+	private final Object[][] sent = new Object[2][];
+	private final boolean[][] changed = new boolean[2][];
+	private int lastSkipped = 0, lastSuppressed = 0;
+	private long totalSkipped = 0, totalExecutions = 0, totalSuppressed = 0;
+	/** Number of rounds a neighbor's message is kept without being renewed; 0 to keep it forever */
+	private int neighborTtl = 0;
+
+	/**
+	 * Create an N x N grid of devices, each running the indicated program.
+	 * The device one step diagonally in from the southwest corner is marked as the leader.
+	 * @param protelisModuleName	Program to be run by every device
+	 * @param edgeLength			Number of devices along each side of the grid
+	 * @param spacing				Distance between neighboring grid points, in degrees
+	 * @param range					Communication range of the devices, in meters
+	 * @param seed					Seed of the devices' random number generators
+	 * @param builders				Pool on which devices are built in parallel, one grid row per task;
+	 * 								null to build them on the calling thread
+	 * @throws InterruptedException if interrupted while waiting for the builders
+	 * @throws ExecutionException if a device cannot be built
+	 */
+	public Simulation(final String protelisModuleName, final int edgeLength, final double spacing, final double range,
+			final long seed, final ExecutorService builders) throws InterruptedException, ExecutionException {
+		this(protelisModuleName, edgeLength, spacing, range, seed, Collections.<String,Object>emptyMap(), builders);
+	}
+
+	/**
+	 * Create an N x N grid of devices, each running the indicated program, with environment variables
+	 * common to the whole swarm (e.g., scenario constants). The variables are stored once and shared by
+	 * every device; each device keeps only the variables it changes.
+	 * @param protelisModuleName	Program to be run by every device
+	 * @param edgeLength			Number of devices along each side of the grid
+	 * @param spacing				Distance between neighboring grid points, in degrees
+	 * @param range					Communication range of the devices, in meters
+	 * @param seed					Seed of the devices' random number generators
+	 * @param constants				Environment variables given to every device
+	 * @param builders				Pool on which devices are built in parallel, one grid row per task;
+	 * 								null to build them on the calling thread
+	 * @throws InterruptedException if interrupted while waiting for the builders
+	 * @throws ExecutionException if a device cannot be built
+	 */
+	public Simulation(final String protelisModuleName, final int edgeLength, final double spacing, final double range,
+			final long seed, final Map<String,Object> constants, final ExecutorService builders)
+			throws InterruptedException, ExecutionException {
+		this.range = range;
+		final Map<String,Object> shared = LayeredEnvironment.share(constants);
+		final int leaderId = Math.min(edgeLength - 1, 1) * (edgeLength + 1);
+		final SimpleDevice[][] cache = new SimpleDevice[edgeLength][edgeLength];
+		List<Callable<Void>> rows = new ArrayList<>();
+		for(int r=0;r<edgeLength;r++) {
+			final int i = r;
+			rows.add(new Callable<Void>() {
+				public Void call() {
+					for(int j=0;j<edgeLength;j++) {
+						int id = i*edgeLength+j;
+						Position pos = Position.fromDegrees(ORIGIN_LAT+(i*spacing), ORIGIN_LON+(j*spacing), ALTITUDE);
+
+						// Parse a new copy of the program for each device:
+						// it will be marked up with values as the interpreter runs
+						ProtelisProgram program = ProtelisLoader.parse(protelisModuleName);
+
+						// Create the device
+						SimpleDevice executionContext = new SimpleDevice(program,id,pos,seed,shared);
+						// Mark the leader
+						if(id==leaderId) {
+							executionContext.getExecutionEnvironment().put("leader", true);
+						}
+						// Remember the devices in a grid, for later setting up the network
+						cache[i][j] = executionContext;
+					}
+					return null;
+				}
+			});
+		}
+		if(builders!=null) {
+			for(Future<Void> row : builders.invokeAll(rows)) {
+				row.get(); // rethrow any failure
+			}
+		} else {
+			for(Callable<Void> row : rows) {
+				try {
+					row.call();
+				} catch (Exception e) {
+					throw new ExecutionException(e);
+				}
+			}
+		}
+		for(int i=0;i<edgeLength;i++) {
+			for(int j=0;j<edgeLength;j++) {
+				indices.put(cache[i][j], devices.size());
+				devices.add(cache[i][j]);
+			}
+		}
+
+		setNeighborTimeToLive(DEFAULT_NEIGHBOR_TTL);
+		int n = devices.size();
+		awake = new boolean[n];
+		for(int p=0;p<2;p++) {
+			sent[p] = new Object[n];
+			changed[p] = new boolean[n];
+		}
+		envVersion = new long[n];
+		lastValue = new Object[n];
+		lastExport = new ArrayList<>(Collections.<Map<CodePath,Object>>nCopies(n, null));
+		Arrays.fill(awake, true);
+
+		// Link up the network
+		updateNetwork();
+	}
+
+	/** @return the devices, in grid order */
+	public List<SimpleDevice> getDevices() {
+		return devices;
+	}
+
+	/** @return number of rounds executed so far */
+	public long getRound() {
+		return round;
+	}
+
+	/**
+	 * Stream of snapshots taken at the end of every round, to which visualizations, recorders
+	 * and statistics can subscribe, each with its own buffering policy.
+	 * @return the round stream
+	 */
+	public RoundPublisher<SceneSnapshot> getRounds() {
+		return rounds;
+	}
+
+	/**
+	 * Stream of aggregate statistics taken at the end of every round, once
+	 * {@link #setStatistics(RoundStatistics) chosen}. Statistics are only computed while someone is subscribed.
+	 * @return the statistics stream
+	 */
+	public RoundPublisher<RoundStatistics.Summary> getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Choose the statistics published each round.
+	 * @param pass	Statistics to compute, or null for none
+	 */
+	public void setStatistics(final RoundStatistics pass) {
+		this.statisticsPass = pass;
+	}
+
+	/**
+	 * Choose whether to profile the cost of each device's cycles. The mean cost of each device is also
+	 * recorded in the published scenes, so that visualizations can show it.
+	 * @param profiler	Profile to record cycles into, sized for the devices of this simulation; null to stop profiling
+	 */
+	public void setProfiler(final CycleProfiler profiler) {
+		if(profiler!=null && profiler.size()!=devices.size()) {
+			throw new IllegalArgumentException("Profiler is for " + profiler.size() + " devices, not " + devices.size());
+		}
+		this.profiler = profiler;
+	}
+
+	/** @return profile of the devices' cycles, or null if not profiling */
+	public CycleProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Choose whether to meter the traffic that the devices' shared state would generate on a real link.
+	 * @param meter	Meter to charge, sized for the devices of this simulation; null to stop metering
+	 */
+	public void setBandwidthMeter(final BandwidthMeter meter) {
+		if(meter!=null && meter.size()!=devices.size()) {
+			throw new IllegalArgumentException("Meter is for " + meter.size() + " devices, not " + devices.size());
+		}
+		bandwidth = meter;
+		for(int i=0;i<devices.size();i++) {
+			devices.get(i).accessNetworkManager().setBandwidthMeter(meter, i, devices.get(i).getDeviceUID());
+		}
+	}
+
+	/** @return meter of the devices' traffic, or null if not metering */
+	public BandwidthMeter getBandwidthMeter() {
+		return bandwidth;
+	}
+
+	/**
+	 * @param device	One of the devices of this simulation
+	 * @return number of other devices within communication range of it
+	 */
+	public int getNeighborCount(final SimpleDevice device) {
+		return getNeighborCount(indices.get(device));
+	}
+
+	/**
+	 * @param index	Index of a device in {@link #getDevices()}
+	 * @return number of other devices within communication range of it
+	 */
+	public int getNeighborCount(final int index) {
+		// Every device is in range of itself
+		return network.end(index) - network.start(index) - 1;
+	}
+
+	/** @return the current neighbor graph, indexed like {@link #getDevices()} */
+	public NeighborGraph getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Set how long devices keep the state of a neighbor they no longer hear from. Every device in range
+	 * is heard from every round, so the default of one round forgets exactly the devices that have left.
+	 * @param rounds	Number of rounds a message is kept; 0 to keep it forever
+	 */
+	public void setNeighborTimeToLive(final int rounds) {
+		neighborTtl = Math.max(0, rounds);
+		for(SimpleDevice d : devices) {
+			d.accessNetworkManager().setTimeToLive(rounds);
+		}
+	}
+
+	/**
+	 * Choose when devices transmit the state they share; states that are not transmitted are not delivered,
+	 * and neighbors keep what they last received. So that a device is not forgotten while its policy keeps
+	 * it silent, the {@link #setNeighborTimeToLive(int) neighbor time to live} is raised to the policy's
+	 * refresh interval if it is shorter.
+	 * @param policy	Policy of every device
+	 */
+	public void setSharePolicy(final SharePolicy policy) {
+		for(SimpleDevice d : devices) {
+			d.accessNetworkManager().setSharePolicy(policy);
+		}
+		if(neighborTtl!=0 && neighborTtl<policy.getRefreshInterval()) {
+			setNeighborTimeToLive(policy.getRefreshInterval());
+		}
+	}
+
+	/**
+	 * Choose whether to skip the cycles of quiescent devices. A device is quiescent once a cycle of it
+	 * has left its export, environment, program value and stored state (e.g., the values kept by rep)
+	 * as they were, without reading the clock or random numbers or moving; it then sleeps, re-exporting
+	 * its last state, until a neighbor's export or position changes, its neighbors change, or its
+	 * environment is modified from outside.
+	 *
+	 * This assumes that a cycle with the same inputs as the last one would produce the same outputs.
+	 * @param enabled	true to skip quiescent devices; false to run every device every round
+	 */
+	public void setQuiescence(final boolean enabled) {
+		quiescence = enabled;
+		Arrays.fill(awake, true);
+	}
+
+	/** @return number of device cycles skipped in the last round */
+	public int getSkippedCount() {
+		return lastSkipped;
+	}
+
+	/** @return fraction of device cycles skipped in the last round */
+	public double getSkippedFraction() {
+		return devices.isEmpty() ? 0 : (double) lastSkipped / devices.size();
+	}
+
+	/** @return number of devices whose shared state was held back by the share policy in the last round */
+	public int getSuppressedCount() {
+		return lastSuppressed;
+	}
+
+	/** @return number of shared states held back by the share policy over all rounds so far */
+	public long getTotalSuppressedCount() {
+		return totalSuppressed;
+	}
+
+	/** @return fraction of device cycles skipped over all rounds so far */
+	public double getTotalSkippedFraction() {
+		return totalExecutions + totalSkipped == 0 ? 0 : (double) totalSkipped / (totalExecutions + totalSkipped);
+	}
+
+	/**
+	 * Execute every device once, then deliver updates to all neighbors.
+	 */
+	public void runRound() {
+		// Execute one cycle at each device, unless it would only repeat its last one
+		int next = (int) ((round + 1) & 1);
+		int skipped = 0;
+		for(int i=0;i<devices.size();i++) {
+			if(cycle(i, next)) {
+				skipped++;
+			}
+		}
+		finishCycles(skipped, next);
+		// Update network connectivity
+		updateNetwork();
+
+		// Deliver shared-state updates over the network, age received messages and wake devices
+		for(int i=0;i<devices.size();i++) {
+			receive(i, next);
+		}
+
+		// Hand the new scene to the subscribers; only those that asked to block can hold up the next round
+		publishScene(++round);
+		if(statisticsPass!=null && statistics.hasSubscribers()) {
+			statistics.publish(statisticsPass.compute(this));
+		}
+	}
+
+	/**
+	 * Execute a number of rounds, overlapping consecutive rounds. The devices run in parallel, and as soon
+	 * as a device has received its messages of one round, and its state has been recorded for the round's
+	 * scene and statistics, it executes its cycle of the next round; meanwhile, the scene and statistics of
+	 * the previous round are built and published on another thread. Only the network update waits for
+	 * every device.
+	 *
+	 * Devices see exactly the messages, in the same order, as in {@link #runRound()}, so the results are
+	 * the same as calling it as many times, as long as the program does not share mutable state between devices.
+	 * @param count	Number of rounds to execute
+	 * @throws InterruptedException if interrupted while waiting for a round to be published
+	 * @throws ExecutionException if a round cannot be published
+	 */
+	public void runRounds(final int count) throws InterruptedException, ExecutionException {
+		if(count<=0) {
+			return;
+		}
+		ExecutorService handOff = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "round-hand-off");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			Future<?> published = null;
+			int skipped = new Step(0, devices.size(), false, true, null, null).invoke();
+			for(int r=0;r<count;r++) {
+				finishCycles(skipped, (int) ((round + 1) & 1));
+				updateNetwork();
+				round++;
+				final Frame frame = rounds.hasSubscribers() ? new Frame(round) : null;
+				final RoundStatistics pass = statisticsPass;
+				final RoundStatistics.Sample sample = pass!=null && statistics.hasSubscribers()
+						? pass.newSample(round, devices.size()) : null;
+				// Deliver this round and execute the next, except after the last round
+				skipped = new Step(0, devices.size(), true, r<count-1, frame, sample).invoke();
+				// Keep at most one round waiting to be published, so that blocking subscribers hold up the pipeline
+				if(published!=null) {
+					published.get();
+				}
+				published = handOff.submit(new Runnable() {
+					public void run() {
+						if(frame!=null) {
+							rounds.publish(frame.build());
+						}
+						if(sample!=null) {
+							statistics.publish(pass.compute(sample));
+						}
+					}
+				});
+			}
+			published.get();
+		} finally {
+			handOff.shutdown();
+		}
+	}
+
+	/**
+	 * Steps a range of devices through the end of one round and the start of the next,
+	 * split in halves until the ranges are small.
+	 * @return number of cycles skipped
+	 */
+	private class Step extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+		private final boolean deliver, execute;
+		private final Frame frame;
+		private final RoundStatistics.Sample sample;
+
+		/**
+		 * @param deliver	Whether to deliver the messages of the current round
+		 * @param execute	Whether to execute the cycles of the next round
+		 * @param frame		Scene in which devices are recorded after delivery, or null
+		 * @param sample	Statistics in which devices are recorded after delivery, or null
+		 */
+		private Step(final int from, final int to, final boolean deliver, final boolean execute,
+				final Frame frame, final RoundStatistics.Sample sample) {
+			this.from = from;
+			this.to = to;
+			this.deliver = deliver;
+			this.execute = execute;
+			this.frame = frame;
+			this.sample = sample;
+		}
+
+		@Override
+		protected Integer compute() {
+			if(to-from>STEP_THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				Step right = new Step(middle, to, deliver, execute, frame, sample);
+				right.fork();
+				int left = new Step(from, middle, deliver, execute, frame, sample).compute();
+				return left + right.join();
+			}
+			int current = (int) (round & 1), next = (int) ((round + 1) & 1);
+			int skipped = 0;
+			for(int i=from;i<to;i++) {
+				if(deliver) {
+					receive(i, current);
+					if(frame!=null) {
+						frame.record(i);
+					}
+					if(sample!=null) {
+						sample.record(Simulation.this, i, devices.get(i));
+					}
+				}
+				if(execute && cycle(i, next)) {
+					skipped++;
+				}
+			}
+			return skipped;
+		}
+	}
+
+	/**
+	 * Execute one cycle of a device, unless it would only repeat its last one, and keep the message it sends,
+	 * if any.
+	 * @param i			Index of the device
+	 * @param parity	Parity of the round being executed
+	 * @return whether the cycle was skipped
+	 */
+	private boolean cycle(final int i, final int parity) {
+		SimpleDevice d = devices.get(i);
+		CachingNetworkManager manager = d.accessNetworkManager();
+		boolean skip = quiescence && !awake[i] && envVersion[i]==d.accessEnvironment().getVersion();
+		if(skip) {
+			// Sleeping devices re-send their last export, which may carry a change held back by the share policy
+			changed[parity][i] = manager.resend();
+		} else {
+			long before = d.accessEnvironment().getVersion();
+			d.clearDependencies();
+			CycleProfiler p = profiler;
+			long start = p!=null ? System.nanoTime() : 0;
+			d.getVM().runCycle();
+			if(p!=null) {
+				p.record(i, System.nanoTime()-start, manager.getNeighborState().size());
+			}
+			if(quiescence) {
+				settle(i, d, before, changed[parity]);
+			}
+		}
+		sent[parity][i] = manager.isTransmitting() ? manager.getSendCache() : null;
+		return skip;
+	}
+
+	/**
+	 * Hand a device the messages its neighbors transmitted, in order of their index, then age the messages it holds,
+	 * forgetting neighbors that have not been heard from for too long. The device is woken if a neighbor's
+	 * export or position changed, or if it forgot a neighbor.
+	 * @param i			Index of the device
+	 * @param parity	Parity of the round whose messages are delivered
+	 */
+	private void receive(final int i, final int parity) {
+		CachingNetworkManager manager = devices.get(i).accessNetworkManager();
+		for(int k=network.start(i);k<network.end(i);k++) {
+			int j = network.neighbor(k);
+			@SuppressWarnings("unchecked")
+			Map<CodePath,Object> message = (Map<CodePath,Object>) sent[parity][j];
+			if(message!=null) {
+				manager.receiveFromNeighbor(devices.get(j).getDeviceUID(), message);
+			}
+			if(quiescence && changed[parity][j]) {
+				awake[i] = true;
+			}
+		}
+		if(manager.advanceRound() > 0) {
+			awake[i] = true;
+		}
+	}
+
+	/**
+	 * Account for the cycles of a round once every device has run.
+	 * @param skipped	Number of cycles skipped
+	 * @param parity	Parity of the round
+	 */
+	private void finishCycles(final int skipped, final int parity) {
+		lastSkipped = skipped;
+		totalSkipped += skipped;
+		totalExecutions += devices.size() - skipped;
+		int suppressed = 0;
+		for(Object message : sent[parity]) {
+			if(message==null) {
+				suppressed++;
+			}
+		}
+		lastSuppressed = suppressed;
+		totalSuppressed += suppressed;
+		if(bandwidth!=null) {
+			bandwidth.endRound();
+		}
+	}
+
+	/**
+	 * Decide whether a device that has just run can sleep.
+	 * Exports are compared by value: the VM hands a new map to {@link CachingNetworkManager#shareState(Map)} each cycle.
+	 * @param i			Index of the device
+	 * @param d			The device
+	 * @param before	Version of its environment before the cycle
+	 * @param changed	Receives whether its export or position changed
+	 */
+	private void settle(final int i, final SimpleDevice d, final long before, final boolean[] changed) {
+		// What the cycle shared, even if the share policy held it back: the device has not settled until it stops changing
+		Map<CodePath,Object> export = d.accessNetworkManager().getSharedState();
+		Object value = d.getVM().getCurrentValue();
+		long after = d.accessEnvironment().getVersion();
+		changed[i] = d.hasMoved() || !Objects.equals(export, lastExport.get(i));
+		boolean quiet = !changed[i] && !d.dependsOnClockOrRandom() && after == before && Objects.equals(value, lastValue[i]);
+		// The program's own stored state is an input of the next cycle too; it is only compared, which takes
+		// serializing the program, on cycles that changed nothing else, so a device sleeps after two such cycles
+		if(!quiet) {
+			d.forgetStoredState();
+		}
+		awake[i] = !quiet || d.hasStoredStateChanged();
+		lastExport.set(i, export);
+		lastValue[i] = value;
+		envVersion[i] = after;
+	}
+
+	/**
+	 * Record the current device positions and links as an immutable snapshot and publish it to the
+	 * round stream. Nothing is recorded if nobody is subscribed.
+	 * @param round	number of rounds completed
+	 */
+	public void publishScene(final long round) {
+		if(!rounds.hasSubscribers()) {
+			return;
+		}
+		Frame frame = new Frame(round);
+		for(int i=0;i<devices.size();i++) {
+			frame.record(i);
+		}
+		rounds.publish(frame.build());
+	}
+
+	/**
+	 * Positions, display values and mean cycle costs of the devices at the end of a round, with the round's links.
+	 * Devices are recorded one by one, possibly concurrently, and the scene is built afterwards, possibly on
+	 * another thread.
+	 */
+	private class Frame {
+		private final long round;
+		private final NeighborGraph links = network;
+		private final Position[] positions = new Position[devices.size()];
+		private final double[] values = new double[devices.size()];
+		private final CycleProfiler costs = profiler;
+		private final double[] meanNanos = costs!=null ? new double[devices.size()] : null;
+
+		private Frame(final long round) {
+			this.round = round;
+		}
+
+		private void record(final int i) {
+			SimpleDevice self = devices.get(i);
+			Object value = self.getExecutionEnvironment().get(DISPLAY_VALUE);
+			positions[i] = self.getPosition();
+			values[i] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+			if(costs!=null) {
+				meanNanos[i] = costs.getMeanNanos(i);
+			}
+		}
+
+		private SceneSnapshot build() {
+			SceneSnapshot.Builder scene = new SceneSnapshot.Builder(round, positions.length);
+			for (int i = 0; i < positions.length; i++) {
+				List<Position> nbrPositions = new ArrayList<>(links.end(i) - links.start(i));
+				for (int k = links.start(i); k < links.end(i); k++) {
+					if (links.neighbor(k) != i) {
+						nbrPositions.add(positions[links.neighbor(k)]);
+					}
+				}
+				DeviceUID id = devices.get(i).getDeviceUID();
+				scene.add(id, "Device " + id, positions[i], nbrPositions, values[i],
+						meanNanos!=null ? meanNanos[i] : Double.NaN);
+			}
+			return scene.build();
+		}
+	}
+
+	/**
+	 * Unit-disc network model, rebuilt from scratch each round (see {@link NeighborGraph}).
+	 * Devices whose neighbors have changed are woken.
+	 */
+	private void updateNetwork() {
+		NeighborGraph previous = network;
+		network = NeighborGraph.build(devices, EARTH, range);
+		for(int i=0;i<devices.size();i++) {
+			if(previous==null || !network.sameNeighbors(i, previous)) {
+				awake[i] = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records when each phase of application startup ran, and on which thread, so that overlapping
+ * phases and the critical path to the first round can be seen at a glance.
+ * Phases may be recorded from any thread.
+ */
+public class StartupTimeline {
+	/** Width of the bar chart in the report, in characters */
+	private static final int CHART_WIDTH = 50;
+
+	/** One completed phase */
+	private static class Phase {
+		private final String name, thread;
+		private final long start, end;
+
+		private Phase(final String name, final String thread, final long start, final long end) {
+			this.name = name;
+			this.thread = thread;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/** Handle for a phase in progress */
+	public class Timer {
+		private final String name;
+		private final long start = System.nanoTime();
+
+		private Timer(final String name) {
+			this.name = name;
+		}
+
+		/** Mark the phase as finished */
+		public void end() {
+			synchronized (phases) {
+				phases.add(new Phase(name, Thread.currentThread().getName(), start, System.nanoTime()));
+			}
+		}
+	}
+
+	private final long origin = System.nanoTime();
+	private final List<Phase> phases = new ArrayList<>();
+
+	/**
+	 * Start timing a phase.
+	 * @param name	Name of the phase
+	 * @return handle whose {@link Timer#end()} marks the end of the phase
+	 */
+	public Timer begin(final String name) {
+		return new Timer(name);
+	}
+
+	/** @return milliseconds since the timeline was created */
+	public long elapsedMillis() {
+		return (System.nanoTime() - origin) / 1000000;
+	}
+
+	/**
+	 * Print each phase with its start, duration and thread, and a bar showing where it falls in the timeline.
+	 * @param out	Stream to print to
+	 */
+	public void report(final PrintStream out) {
+		List<Phase> snapshot;
+		synchronized (phases) {
+			snapshot = new ArrayList<>(phases);
+		}
+		long end = origin + 1;
+		for (Phase p : snapshot) {
+			end = Math.max(end, p.end);
+		}
+		double scale = (double) CHART_WIDTH / (end - origin);
+		out.println(String.format("Startup timeline (%d ms total):", (end - origin) / 1000000));
+		for (Phase p : snapshot) {
+			int from = (int) ((p.start - origin) * scale), to = Math.max(from + 1, (int) ((p.end - origin) * scale));
+			StringBuilder bar = new StringBuilder(CHART_WIDTH);
+			for (int i = 0; i < CHART_WIDTH; i++) {
+				bar.append(i >= from && i < to ? '#' : '.');
+			}
+			out.println(String.format("  %-24s %7d ms +%7d ms  |%s|  %s", p.name, (p.start - origin) / 1000000,
+					(p.end - p.start) / 1000000, bar, p.thread));
+		}
+	}
+}
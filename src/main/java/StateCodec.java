@@ -0,0 +1,467 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.lang.datatype.Tuple;
+import org.protelis.lang.datatype.impl.ArrayTupleImpl;
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Compact binary encoding of the shared state that devices exchange through {@link CachingNetworkManager}.
+ *
+ * Each {@link CodePath} is replaced by a small integer id. The first message that uses a path carries its
+ * definition (the path in Java serialized form); later messages carry only the id, so the cost of a path is
+ * paid once per stream. Common values (integers, longs, doubles, floats, booleans, strings, tuples,
+ * {@link IntegerUID}s) are written in a tagged binary form that decodes to the same type; anything else,
+ * including shorts and bytes, falls back to Java serialization.
+ *
+ * A message is laid out as: sender, number of new definitions, the definitions (id, length, bytes),
+ * number of entries, then the entries (id, value). Integers are written as variable-length quantities.
+ *
+ * An {@link Encoder} and the {@link Decoder} reading its output must see the same sequence of messages, as
+ * on a recording or a reliable link. For lossy links, {@link Encoder#redefineAll()} repeats every definition
+ * in the next message.
+ *
+ * Decoders check every length, id and nesting depth against the message and fixed bounds, and code path
+ * definitions may only hold code path classes and the primitives, strings and arrays they are made of.
+ * A decoder for untrusted input, e.g., from the network, can also refuse values that fell back to Java
+ * serialization, which could instantiate any class.
+ */
+public class StateCodec {
+	private static final byte NULL = 0, FALSE = 1, TRUE = 2, INT = 3, LONG = 4, DOUBLE = 5, FLOAT = 6,
+			STRING = 7, TUPLE = 8, UID = 9, SERIALIZED = 10;
+	/** Initial size of an encoder's buffer */
+	private static final int INITIAL_CAPACITY = 1024;
+	/** Largest number of code paths in a dictionary */
+	private static final int MAX_PATHS = 1 << 16;
+	/** Deepest nesting of tuples decoded */
+	private static final int MAX_DEPTH = 32;
+
+	/** Writes messages into a buffer that is reused from one message to the next */
+	public static class Encoder {
+		private final Map<CodePath, Integer> ids = new HashMap<>();
+		private final List<CodePath> paths = new ArrayList<>();
+		/** Paths with an id up to this one have been defined in an earlier message */
+		private int defined = 0;
+		private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+		/**
+		 * Encode a message.
+		 * @param sender	Device sending the state
+		 * @param state		State being shared
+		 * @return buffer holding the message between its position and limit; valid until the next call
+		 * @throws IOException if a value falls back to Java serialization and cannot be serialized
+		 */
+		public ByteBuffer encode(final DeviceUID sender, final Map<CodePath, Object> state) throws IOException {
+			// Assign ids first, so that the definitions can precede the entries
+			for (CodePath path : state.keySet()) {
+				if (!ids.containsKey(path)) {
+					if (paths.size() == MAX_PATHS) {
+						throw new IOException("More than " + MAX_PATHS + " code paths");
+					}
+					ids.put(path, paths.size());
+					paths.add(path);
+				}
+			}
+			while (true) {
+				buffer.clear();
+				try {
+					writeMessage(sender, state);
+					break;
+				} catch (BufferOverflowException e) {
+					buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+				}
+			}
+			defined = paths.size();
+			buffer.flip();
+			return buffer;
+		}
+
+		/** Repeat every definition in the next message, e.g., for receivers that have joined late */
+		public void redefineAll() {
+			defined = 0;
+		}
+
+		/** @return number of code paths given ids so far */
+		public int getDictionarySize() {
+			return paths.size();
+		}
+
+		private void writeMessage(final DeviceUID sender, final Map<CodePath, Object> state) throws IOException {
+			writeValue(buffer, sender);
+			writeVarInt(buffer, paths.size() - defined);
+			for (int id = defined; id < paths.size(); id++) {
+				writeVarInt(buffer, id);
+				byte[] definition = serialize(paths.get(id));
+				writeVarInt(buffer, definition.length);
+				buffer.put(definition);
+			}
+			writeVarInt(buffer, state.size());
+			for (Map.Entry<CodePath, Object> e : state.entrySet()) {
+				writeVarInt(buffer, ids.get(e.getKey()));
+				writeValue(buffer, e.getValue());
+			}
+		}
+	}
+
+	/** Reads messages, learning code path definitions as they arrive */
+	public static class Decoder {
+		private final List<CodePath> paths = new ArrayList<>();
+		private final boolean acceptSerialized;
+		private DeviceUID sender = null;
+
+		/** Decoder of trusted input, e.g., a recording, accepting values that fell back to Java serialization */
+		public Decoder() {
+			this(true);
+		}
+
+		/** @param acceptSerialized	Whether to accept values that fell back to Java serialization; false for untrusted input */
+		public Decoder(final boolean acceptSerialized) {
+			this.acceptSerialized = acceptSerialized;
+		}
+
+		/**
+		 * Decode a message.
+		 * @param in	Buffer holding the message from its position; its position is moved past the message
+		 * @return the shared state
+		 * @throws IOException if the message is malformed, refers to an undefined code path or holds a value
+		 * 		that is not accepted
+		 */
+		public Map<CodePath, Object> decode(final ByteBuffer in) throws IOException {
+			try {
+				sender = (DeviceUID) readValue(in, acceptSerialized, 0);
+				for (int n = readLength(in); n > 0; n--) {
+					int id = readId(in);
+					byte[] definition = new byte[readLength(in)];
+					in.get(definition);
+					while (paths.size() <= id) {
+						paths.add(null);
+					}
+					paths.set(id, CodePaths.intern((CodePath) deserializePath(definition)));
+				}
+				int entries = readLength(in);
+				// Sized so that the map never rehashes
+				Map<CodePath, Object> state = new HashMap<>(entries * 4 / 3 + 1);
+				for (int n = 0; n < entries; n++) {
+					int id = readId(in);
+					CodePath path = id < paths.size() ? paths.get(id) : null;
+					if (path == null) {
+						throw new IOException("Undefined code path " + id);
+					}
+					state.put(path, readValue(in, acceptSerialized, 0));
+				}
+				return state;
+			} catch (BufferUnderflowException | ClassCastException e) {
+				throw new IOException("Malformed message", e);
+			}
+		}
+
+		/** @return sender of the last message decoded */
+		public DeviceUID getSender() {
+			return sender;
+		}
+	}
+
+	private static void writeValue(final ByteBuffer out, final Object v) throws IOException {
+		if (v == null) {
+			out.put(NULL);
+		} else if (v instanceof Boolean) {
+			out.put((Boolean) v ? TRUE : FALSE);
+		} else if (v instanceof Double) {
+			out.put(DOUBLE);
+			out.putDouble((Double) v);
+		} else if (v instanceof Integer) {
+			out.put(INT);
+			writeVarLong(out, zigZag(((Number) v).longValue()));
+		} else if (v instanceof Long) {
+			out.put(LONG);
+			writeVarLong(out, zigZag((Long) v));
+		} else if (v instanceof Float) {
+			out.put(FLOAT);
+			out.putFloat((Float) v);
+		} else if (v instanceof String) {
+			out.put(STRING);
+			byte[] bytes = ((String) v).getBytes(StandardCharsets.UTF_8);
+			writeVarInt(out, bytes.length);
+			out.put(bytes);
+		} else if (v instanceof IntegerUID) {
+			out.put(UID);
+			writeVarLong(out, zigZag(((IntegerUID) v).getUID()));
+		} else if (v instanceof Tuple) {
+			Tuple t = (Tuple) v;
+			out.put(TUPLE);
+			writeVarInt(out, t.size());
+			for (int i = 0; i < t.size(); i++) {
+				writeValue(out, t.get(i));
+			}
+		} else {
+			out.put(SERIALIZED);
+			byte[] bytes = serialize(v);
+			writeVarInt(out, bytes.length);
+			out.put(bytes);
+		}
+	}
+
+	/** @return whether the value, and every element of it if it is a tuple, is encoded without Java serialization */
+	public static boolean isNative(final Object v) {
+		if (v instanceof Tuple) {
+			Tuple t = (Tuple) v;
+			for (int i = 0; i < t.size(); i++) {
+				if (!isNative(t.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return v == null || v instanceof Boolean || v instanceof Double || v instanceof Integer || v instanceof Long
+				|| v instanceof Float || v instanceof String || v instanceof IntegerUID;
+	}
+
+	/**
+	 * Size of a value once encoded, computed without encoding it. Values that fall back to Java serialization
+	 * are not sized, as that would take serializing them.
+	 * @param v	Value to be sized
+	 * @return number of bytes the value takes in a message, or -1 if it, or an element of it, is not native
+	 */
+	public static int sizeOf(final Object v) {
+		if (v == null || v instanceof Boolean) {
+			return 1;
+		} else if (v instanceof Double) {
+			return 1 + 8;
+		} else if (v instanceof Integer || v instanceof Long) {
+			return 1 + sizeOfVarLong(zigZag(((Number) v).longValue()));
+		} else if (v instanceof Float) {
+			return 1 + 4;
+		} else if (v instanceof String) {
+			int length = utf8Length((String) v);
+			return 1 + sizeOfVarInt(length) + length;
+		} else if (v instanceof IntegerUID) {
+			return 1 + sizeOfVarLong(zigZag(((IntegerUID) v).getUID()));
+		} else if (v instanceof Tuple) {
+			Tuple t = (Tuple) v;
+			int size = 1 + sizeOfVarInt(t.size());
+			for (int i = 0; i < t.size(); i++) {
+				int element = sizeOf(t.get(i));
+				if (element < 0) {
+					return -1;
+				}
+				size += element;
+			}
+			return size;
+		} else {
+			return -1;
+		}
+	}
+
+	/** @return number of bytes of a length or id written as a variable-length quantity */
+	public static int sizeOfVarInt(final int v) {
+		return sizeOfVarLong(v & 0xFFFFFFFFL);
+	}
+
+	private static int sizeOfVarLong(final long v) {
+		// 7 bits per byte, and at least one byte
+		return Math.max(1, (64 - Long.numberOfLeadingZeros(v) + 6) / 7);
+	}
+
+	private static int utf8Length(final String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				// An unpaired surrogate is encoded as '?'
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @param acceptSerialized	Whether values that fell back to Java serialization are accepted
+	 * @param depth				Number of tuples the value is nested in
+	 */
+	private static Object readValue(final ByteBuffer in, final boolean acceptSerialized, final int depth)
+			throws IOException {
+		byte tag = in.get();
+		switch (tag) {
+		case NULL:
+			return null;
+		case FALSE:
+			return Boolean.FALSE;
+		case TRUE:
+			return Boolean.TRUE;
+		case DOUBLE:
+			return in.getDouble();
+		case INT:
+			return (int) unZigZag(readVarLong(in));
+		case LONG:
+			return unZigZag(readVarLong(in));
+		case FLOAT:
+			return in.getFloat();
+		case STRING: {
+			int length = readLength(in);
+			String s;
+			if (in.hasArray()) {
+				s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+				in.position(in.position() + length);
+			} else {
+				byte[] bytes = new byte[length];
+				in.get(bytes);
+				s = new String(bytes, StandardCharsets.UTF_8);
+			}
+			return s;
+		}
+		case UID:
+			return new IntegerUID((int) unZigZag(readVarLong(in)));
+		case TUPLE: {
+			if (depth == MAX_DEPTH) {
+				throw new IOException("Tuples nested more than " + MAX_DEPTH + " deep");
+			}
+			// Every element takes at least a byte
+			Object[] elements = new Object[readLength(in)];
+			for (int i = 0; i < elements.length; i++) {
+				elements[i] = readValue(in, acceptSerialized, depth + 1);
+			}
+			return new ArrayTupleImpl(elements);
+		}
+		case SERIALIZED: {
+			if (!acceptSerialized) {
+				throw new IOException("Java-serialized values are not accepted");
+			}
+			byte[] bytes = new byte[readLength(in)];
+			in.get(bytes);
+			return deserialize(bytes);
+		}
+		default:
+			throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	private static long zigZag(final long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unZigZag(final long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVarInt(final ByteBuffer out, final int v) {
+		writeVarLong(out, v & 0xFFFFFFFFL);
+	}
+
+	private static void writeVarLong(final ByteBuffer out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	private static int readVarInt(final ByteBuffer in) throws IOException {
+		long v = readVarLong(in);
+		if (v > Integer.MAX_VALUE) {
+			throw new IOException("Length or id out of range: " + v);
+		}
+		return (int) v;
+	}
+
+	/** @return a length or count, which cannot exceed the bytes left in the message */
+	private static int readLength(final ByteBuffer in) throws IOException {
+		int length = readVarInt(in);
+		if (length > in.remaining()) {
+			throw new IOException("Length " + length + " runs past the end of the message");
+		}
+		return length;
+	}
+
+	private static int readId(final ByteBuffer in) throws IOException {
+		int id = readVarInt(in);
+		if (id >= MAX_PATHS) {
+			throw new IOException("Code path id out of range: " + id);
+		}
+		return id;
+	}
+
+	private static long readVarLong(final ByteBuffer in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IOException("Variable-length integer too long");
+	}
+
+	private static byte[] serialize(final Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(o);
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Reads code path definitions, refusing any class a code path is not made of */
+	private static class PathInputStream extends ObjectInputStream {
+		private PathInputStream(final byte[] bytes) throws IOException {
+			super(new ByteArrayInputStream(bytes));
+		}
+
+		@Override
+		protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			Class<?> c = super.resolveClass(desc);
+			Class<?> element = c;
+			while (element.isArray()) {
+				element = element.getComponentType();
+			}
+			if (!(element.isPrimitive() || element == String.class || CodePath.class.isAssignableFrom(element)
+					|| (Number.class.isAssignableFrom(element) && element.getName().startsWith("java.lang.")))) {
+				throw new InvalidClassException(desc.getName(), "not allowed in a code path definition");
+			}
+			return c;
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException {
+			throw new InvalidClassException("proxy", "not allowed in a code path definition");
+		}
+	}
+
+	private static Object deserializePath(final byte[] bytes) throws IOException {
+		try (ObjectInputStream in = new PathInputStream(bytes)) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown class in message", e);
+		}
+	}
+
+	private static Object deserialize(final byte[] bytes) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown class in message", e);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+import java.io.PrintStream;
+
+import stream.Flow;
+
+/**
+ * Writes the per-round statistics of a simulation as a CSV time series, one line per round,
+ * preceded by a header line.
+ */
+public class StatisticsLog implements Flow.Subscriber<RoundStatistics.Summary> {
+	private final PrintStream out;
+	private boolean headerWritten = false;
+
+	/** @param out	Stream the time series is written to; closed when the statistics stream ends */
+	public StatisticsLog(final PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void onSubscribe(final Flow.Subscription subscription) {
+		subscription.request(Long.MAX_VALUE);
+	}
+
+	@Override
+	public void onNext(final RoundStatistics.Summary item) {
+		if (!headerWritten) {
+			out.println(item.csvHeader());
+			headerWritten = true;
+		}
+		out.println(item.toCsv());
+	}
+
+	@Override
+	public void onError(final Throwable throwable) {
+		out.close();
+	}
+
+	@Override
+	public void onComplete() {
+		out.close();
+	}
+}
@@ -0,0 +1,142 @@
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Earth;
+import gov.nasa.worldwind.globes.EllipsoidalGlobe;
+import gov.nasa.worldwind.globes.Globe;
+import java8.util.function.Function;
+
+import java.util.Random;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.lang.datatype.Field;
+import org.protelis.lang.datatype.Tuple;
+import org.protelis.lang.datatype.impl.ArrayTupleImpl;
+import org.protelis.vm.ProtelisProgram;
+import org.protelis.vm.ProtelisVM;
+import org.protelis.vm.impl.AbstractExecutionContext;
+import org.protelis.vm.impl.SimpleExecutionEnvironment;
+
+/**
+ * A Protelis device that runs on its own, e.g., one per process, talking to its neighbors through a
+ * {@link UdpNetworkManager}. It offers the program the same sensors and actuators as a {@link SimpleDevice}
+ * but, since neighbors are in other processes, fields of distances and vectors are computed from positions
+ * shared as tuples rather than from the neighboring devices themselves.
+ */
+public class UdpDevice extends AbstractExecutionContext {
+	/** The WGS84 ellipsoid, without the elevation model that {@link Earth} would start downloading in every process */
+	private static final Globe EARTH = new EllipsoidalGlobe(Earth.WGS84_EQUATORIAL_RADIUS, Earth.WGS84_POLAR_RADIUS,
+			Earth.WGS84_ES, null);
+
+	private final IntegerUID uid;
+	private final ProtelisVM vm;
+	private Position position;
+	private final Random random;
+
+	/**
+	 * @param program	Program run by the device
+	 * @param uid		Device numerical identifier
+	 * @param position	Initial position
+	 * @param seed		Seed of the swarm; each device derives its own random sequence from it
+	 * @param network	Network manager, which sends the device's packets from its own identity
+	 */
+	public UdpDevice(final ProtelisProgram program, final int uid, final Position position, final long seed,
+			final UdpNetworkManager network) {
+		super(new SimpleExecutionEnvironment(), network);
+		this.uid = new IntegerUID(uid);
+		this.position = position;
+		this.random = new Random(seed * 0x9E3779B97F4A7C15L + uid);
+		vm = new ProtelisVM(program, this);
+	}
+
+	/** Lightweight copy, to support "instance"; like that of a SimpleDevice, it is not on the network */
+	private UdpDevice(final IntegerUID uid) {
+		super(new SimpleExecutionEnvironment(), new CachingNetworkManager());
+		this.uid = uid;
+		vm = null;
+		random = new Random();
+	}
+
+	/** @return virtual machine, to trigger the device's cycles */
+	public ProtelisVM getVM() {
+		return vm;
+	}
+
+	/** @return network manager of the device */
+	public UdpNetworkManager accessNetworkManager() {
+		return (UdpNetworkManager) super.getNetworkManager();
+	}
+
+	@Override
+	public DeviceUID getDeviceUID() {
+		return uid;
+	}
+
+	public Position getPosition() {
+		return position;
+	}
+
+	/** Test actuator that dumps a string message to the output */
+	public void announce(final String message) {
+		System.out.println(uid + ": " + message);
+	}
+
+	/**
+	 * Move in a direction specified by the 3-tuple vector in meters, +X being East and +Y North,
+	 * as {@link SimpleDevice#move(Tuple)} does.
+	 */
+	public void move(final Tuple vector) {
+		double radius = Earth.WGS84_EQUATORIAL_RADIUS + position.elevation;
+		double degreesPerMeter = 360 / (2 * Math.PI * radius);
+		position = Position.fromDegrees(position.latitude.degrees + degreesPerMeter * (Double) vector.get(1),
+				position.longitude.degrees + degreesPerMeter * (Double) vector.get(0),
+				position.elevation + (Double) vector.get(2));
+	}
+
+	/** @return Field of distances to neighbors */
+	public Field nbrRange() {
+		final Vec4 v = EARTH.computePointFromPosition(position);
+		return buildField(new Function<Object,Double>() {
+			public Double apply(final Object other) {
+				return v.distanceTo3(EARTH.computePointFromPosition(toPosition((Tuple) other)));
+			}
+		}, fromPosition(position));
+	}
+
+	/** @return Field of vectors to neighbors */
+	public Field nbrVector() {
+		final Position here = position;
+		return buildField(new Function<Object,Tuple>() {
+			public Tuple apply(final Object other) {
+				Position pDelta = toPosition((Tuple) other).subtract(here);
+				// As in SimpleDevice, an approximation that will not hold near the poles
+				double dN = pDelta.getLatitude().getRadians() * Earth.WGS84_POLAR_RADIUS;
+				double dE = pDelta.getLongitude().getRadians() * Earth.WGS84_EQUATORIAL_RADIUS;
+				return new ArrayTupleImpl(dN, dE, pDelta.getAltitude());
+			}
+		}, fromPosition(position));
+	}
+
+	/** @return position as a tuple of latitude and longitude in degrees and elevation, which the codec can encode */
+	private static Tuple fromPosition(final Position p) {
+		return new ArrayTupleImpl(p.latitude.degrees, p.longitude.degrees, p.elevation);
+	}
+
+	private static Position toPosition(final Tuple t) {
+		return Position.fromDegrees((Double) t.get(0), (Double) t.get(1), (Double) t.get(2));
+	}
+
+	@Override
+	public Number getCurrentTime() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	protected AbstractExecutionContext instance() {
+		return new UdpDevice(uid);
+	}
+
+	@Override
+	public double nextRandomDouble() {
+		return random.nextDouble();
+	}
+}
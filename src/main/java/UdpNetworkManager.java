@@ -0,0 +1,401 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.vm.NetworkManager;
+import org.protelis.vm.util.CodePath;
+
+/**
+ * A {@link NetworkManager} that exchanges shared state as UDP datagrams, so that devices can run as separate
+ * processes and see real packets, with their loss and delay, e.g., many processes on one host over loopback.
+ *
+ * Which devices hear each other is given by a table of neighbor addresses (see {@link #setNeighbors(List)}),
+ * standing in for radio range. The device's thread only encodes its state with a {@link StateCodec} and
+ * hands the packet over; a dedicated I/O thread sends it to every neighbor from a non-blocking
+ * {@link DatagramChannel}, then receives, decodes and stores the neighbors' states. Each packet carries one
+ * state: since a state supersedes the ones before it, states shared faster than the I/O thread can send
+ * them are coalesced, only the latest being sent, rather than batched together. Received states are kept
+ * in a lock-free table with one slot per neighbor, which the device reads without ever waiting on the
+ * I/O thread; a neighbor not heard from for longer than the time to live is left out of its neighbor state.
+ *
+ * Packets are decoded as untrusted input: bounded, without Java-serialized values, and any packet that
+ * fails to decode is dropped and counted, without disturbing the I/O thread.
+ *
+ * Every packet carries a sequence number, so that late packets are dropped, and the sender's
+ * {@link System#nanoTime()}, from which latency is measured: this is only meaningful between processes
+ * on the same host.
+ */
+public class UdpNetworkManager implements NetworkManager, Closeable {
+	/** Largest payload of a UDP datagram over IPv4 */
+	public static final int MAX_PACKET = 65507;
+	/** Bytes ahead of the encoded state: sequence number and send time */
+	private static final int HEADER = 16;
+	/** Number of packets between repeats of every code path definition, for neighbors that missed one */
+	private static final int REDEFINE_INTERVAL = 32;
+	/** Size of the socket's receive buffer, so that bursts from many neighbors are not dropped by the kernel */
+	private static final int RECEIVE_BUFFER = 1 << 20;
+	/** Number of power-of-two latency buckets, as in {@link CycleProfiler} */
+	private static final int BUCKETS = 64;
+	private static final Logger LOGGER = Logger.getLogger(UdpNetworkManager.class.getName());
+
+	/** State last received from a neighbor */
+	private static class Received {
+		private final DeviceUID sender;
+		private final Map<CodePath, Object> state;
+		/** When it arrived, by {@link System#nanoTime()} */
+		private final long time;
+
+		private Received(final DeviceUID sender, final Map<CodePath, Object> state, final long time) {
+			this.sender = sender;
+			this.state = state;
+			this.time = time;
+		}
+	}
+
+	/** Neighbors, by slot; replaced as a whole, by the I/O thread, when the neighbors change */
+	private static class Table {
+		private final InetSocketAddress[] addresses;
+		private final Map<SocketAddress, Integer> slots = new HashMap<>();
+		/** Written by the I/O thread, read by the device */
+		private final AtomicReferenceArray<Received> received;
+		/** Used by the I/O thread only */
+		private final StateCodec.Decoder[] decoders;
+		private final long[] lastSequence;
+
+		private Table(final List<InetSocketAddress> neighbors, final Table old) {
+			addresses = neighbors.toArray(new InetSocketAddress[neighbors.size()]);
+			received = new AtomicReferenceArray<>(addresses.length);
+			decoders = new StateCodec.Decoder[addresses.length];
+			lastSequence = new long[addresses.length];
+			for (int s = 0; s < addresses.length; s++) {
+				slots.put(addresses[s], s);
+				// Neighbors that stay keep their state and the code paths they defined
+				Integer o = old == null ? null : old.slots.get(addresses[s]);
+				if (o == null) {
+					// Packets come from the network: refuse anything that would be Java-deserialized
+					decoders[s] = new StateCodec.Decoder(false);
+				} else {
+					decoders[s] = old.decoders[o];
+					lastSequence[s] = old.lastSequence[o];
+					received.set(s, old.received.get(o));
+				}
+			}
+		}
+	}
+
+	private final DeviceUID owner;
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Thread io;
+	private volatile boolean running = true;
+	/** What stopped the I/O thread before it was closed, or null */
+	private volatile Throwable failure = null;
+	/** Written by the I/O thread, read by the device */
+	private volatile Table table;
+	/** Neighbors set by the device and not yet installed in the table by the I/O thread, or null */
+	private final AtomicReference<List<InetSocketAddress>> nextNeighbors = new AtomicReference<>();
+	/** Time to live of received states, in nanoseconds; 0 to keep them until the neighbor is removed */
+	private volatile long ttl = 0;
+
+	/** Used by the device only */
+	private final StateCodec.Encoder encoder = new StateCodec.Encoder();
+	private long exports = 0;
+	private volatile boolean redefine = false;
+	/** Latest packet not yet sent, with room for its header */
+	private final AtomicReference<ByteBuffer> outbox = new AtomicReference<>();
+	/** Used by the I/O thread only */
+	private long sequence = 0;
+
+	private final LongAdder packetsSent = new LongAdder(), packetsReceived = new LongAdder(),
+			bytesSent = new LongAdder(), bytesReceived = new LongAdder(),
+			coalesced = new LongAdder(), sendDrops = new LongAdder(), receiveDrops = new LongAdder(),
+			latencySum = new LongAdder();
+	private final LongAdder[] latencies = new LongAdder[BUCKETS];
+	private volatile long maxLatency = 0;
+
+	/**
+	 * Open a socket and start its I/O thread. The device has no neighbors until {@link #setNeighbors(List)}.
+	 * @param owner	Identity of the device, which heads its packets
+	 * @param local	Address to listen on; port 0 picks a free port
+	 * @throws IOException if the socket cannot be opened
+	 */
+	public UdpNetworkManager(final DeviceUID owner, final InetSocketAddress local) throws IOException {
+		this.owner = owner;
+		for (int b = 0; b < BUCKETS; b++) {
+			latencies[b] = new LongAdder();
+		}
+		table = new Table(Collections.<InetSocketAddress>emptyList(), null);
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+		channel.bind(local);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		io = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, "udp-io-" + getLocalAddress().getPort());
+		io.setDaemon(true);
+		io.start();
+	}
+
+	/** @return address the socket listens on */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * Set the devices this one hears and is heard by. The I/O thread puts the new table in place between two
+	 * packets, so that nothing received meanwhile is lost. Neighbors that stay keep the state received from
+	 * them; every code path definition is repeated in the next packet, for the sake of new neighbors.
+	 * @param neighbors	Addresses of the neighbors
+	 */
+	public void setNeighbors(final List<InetSocketAddress> neighbors) {
+		nextNeighbors.set(new ArrayList<>(neighbors));
+		redefine = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Set how long received states are kept.
+	 * @param millis	Milliseconds a neighbor's last state is kept after it arrived; 0 to keep it while
+	 * 					the device remains a neighbor
+	 */
+	public void setTimeToLive(final long millis) {
+		ttl = Math.max(0, millis) * 1000000;
+	}
+
+	@Override
+	public Map<DeviceUID, Map<CodePath, Object>> getNeighborState() {
+		Table t = table;
+		long now = System.nanoTime(), limit = ttl;
+		Map<DeviceUID, Map<CodePath, Object>> states = new HashMap<>();
+		for (int s = 0; s < t.addresses.length; s++) {
+			Received r = t.received.get(s);
+			if (r != null && (limit == 0 || now - r.time <= limit)) {
+				states.put(r.sender, r.state);
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Encode the state and hand it to the I/O thread, which sends it to every neighbor. A state that
+	 * cannot be encoded, or that does not fit in a datagram, is counted as dropped.
+	 * @param toSend	Shared state to be transmitted to neighbors
+	 */
+	@Override
+	public void shareState(final Map<CodePath, Object> toSend) {
+		// A packet still waiting to be sent is superseded, and with it any definitions it carries
+		if (redefine || outbox.get() != null || exports % REDEFINE_INTERVAL == 0) {
+			redefine = false;
+			encoder.redefineAll();
+		}
+		exports++;
+		ByteBuffer message;
+		try {
+			message = encoder.encode(owner, toSend);
+		} catch (IOException e) {
+			sendDrops.increment();
+			return;
+		}
+		if (HEADER + message.remaining() > MAX_PACKET) {
+			sendDrops.increment();
+			return;
+		}
+		ByteBuffer packet = ByteBuffer.allocate(HEADER + message.remaining());
+		packet.position(HEADER);
+		packet.put(message);
+		packet.flip();
+		if (outbox.getAndSet(packet) != null) {
+			coalesced.increment();
+		}
+		selector.wakeup();
+	}
+
+	/** Body of the I/O thread: send what the device hands over, receive what arrives */
+	private void loop() {
+		ByteBuffer in = ByteBuffer.allocateDirect(MAX_PACKET);
+		try {
+			while (running) {
+				selector.select();
+				selector.selectedKeys().clear();
+				List<InetSocketAddress> neighbors = nextNeighbors.getAndSet(null);
+				if (neighbors != null) {
+					table = new Table(neighbors, table);
+					// Packets encoded before the new neighbors were in place may lack definitions they need
+					redefine = true;
+				}
+				ByteBuffer packet = outbox.getAndSet(null);
+				if (packet != null) {
+					send(packet);
+				}
+				receive(in);
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			if (running) {
+				failure = e;
+				LOGGER.severe("UDP I/O stopped on " + owner + ": " + e);
+			}
+		}
+	}
+
+	private void send(final ByteBuffer packet) {
+		packet.putLong(0, ++sequence);
+		packet.putLong(8, System.nanoTime());
+		for (InetSocketAddress neighbor : table.addresses) {
+			packet.rewind();
+			int sent;
+			try {
+				sent = channel.send(packet, neighbor);
+			} catch (IOException | RuntimeException e) {
+				sent = 0;
+			}
+			if (sent == 0) {
+				// The socket's send buffer is full: like a lossy link, drop rather than wait
+				sendDrops.increment();
+			} else {
+				packetsSent.increment();
+				bytesSent.add(sent);
+			}
+		}
+	}
+
+	private void receive(final ByteBuffer in) throws IOException {
+		while (true) {
+			in.clear();
+			SocketAddress from = channel.receive(in);
+			if (from == null) {
+				return;
+			}
+			in.flip();
+			int length = in.remaining();
+			Table t = table;
+			Integer slot = t.slots.get(from);
+			if (slot == null || length < HEADER) {
+				// Not a neighbor, or not one of our packets
+				receiveDrops.increment();
+				continue;
+			}
+			long seq = in.getLong(), stamp = in.getLong();
+			if (seq <= t.lastSequence[slot]) {
+				// Overtaken by a later packet
+				receiveDrops.increment();
+				continue;
+			}
+			StateCodec.Decoder decoder = t.decoders[slot];
+			Map<CodePath, Object> state;
+			try {
+				state = decoder.decode(in);
+			} catch (IOException | RuntimeException e) {
+				// Malformed or refused; if it refers to a definition that was lost, a later packet repeats it
+				receiveDrops.increment();
+				continue;
+			}
+			long now = System.nanoTime();
+			t.lastSequence[slot] = seq;
+			t.received.set(slot, new Received(decoder.getSender(), state, now));
+			packetsReceived.increment();
+			bytesReceived.add(length);
+			long latency = Math.max(0, now - stamp);
+			latencies[latency == 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(latency)].increment();
+			latencySum.add(latency);
+			if (latency > maxLatency) {
+				maxLatency = latency;
+			}
+		}
+	}
+
+	/** @return number of packets sent, one per neighbor for each state */
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	/** @return number of packets received and decoded */
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	/** @return bytes of UDP payload sent */
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	/** @return bytes of UDP payload received and decoded */
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	/** @return number of states superseded by a later one before the I/O thread could send them */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/** @return number of packets not sent: unencodable or oversized states, or a full send buffer */
+	public long getSendDrops() {
+		return sendDrops.sum();
+	}
+
+	/** @return number of packets received but dropped: unknown sender, late, malformed, refused or undecodable */
+	public long getReceiveDrops() {
+		return receiveDrops.sum();
+	}
+
+	/** @return total latency of the packets received, in nanoseconds */
+	public long getTotalLatencyNanos() {
+		return latencySum.sum();
+	}
+
+	/** @return longest latency of a packet received, in nanoseconds */
+	public long getMaxLatencyNanos() {
+		return maxLatency;
+	}
+
+	/**
+	 * @return number of packets received by latency: element b counts the packets that took from 2^(b-1)
+	 * 		up to 2^b nanoseconds
+	 */
+	public long[] getLatencyHistogram() {
+		long[] counts = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			counts[b] = latencies[b].sum();
+		}
+		return counts;
+	}
+
+	/** @return what stopped the I/O thread, which no longer sends or receives, or null if it is running */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/** Stop the I/O thread and close the socket */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			io.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		selector.close();
+		channel.close();
+	}
+}
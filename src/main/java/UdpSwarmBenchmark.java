@@ -0,0 +1,199 @@
+import gov.nasa.worldwind.geom.Position;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import org.protelis.lang.ProtelisLoader;
+
+/**
+ * Runs a swarm of devices as separate processes exchanging their state over UDP on loopback, each with a
+ * {@link UdpNetworkManager}, and reports the packets per second delivered and their latency.
+ *
+ * Usage: <code>UdpSwarmBenchmark [DEVICES [SECONDS [PROGRAM [PERIOD_MS]]]]</code>. Devices are laid out on a
+ * square grid as in {@link Simulation}, and each one's neighbor table lists the (up to eight) devices around
+ * it; device i listens on port BASE_PORT + i. Once every process is listening, all of them run a cycle every
+ * PERIOD_MS milliseconds for the given time, then report their counters, which are added up here.
+ */
+public class UdpSwarmBenchmark {
+	private static final int BASE_PORT = 47000;
+	private static final double ORIGIN_LAT = 42.3858, ORIGIN_LON = -71.1515, SPACING = 0.002, ALTITUDE = 300;
+	/** Number of periods after which a neighbor not heard from is forgotten */
+	private static final int TTL_PERIODS = 10;
+	/** Time allowed for the last packets to arrive, in milliseconds */
+	private static final long LINGER = 500;
+	/** Number of power-of-two latency buckets reported by each device */
+	private static final int BUCKETS = 64;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if(args.length > 0 && args[0].equals("device")) {
+			runDevice(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), args[4],
+					Long.parseLong(args[5]));
+			return;
+		}
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 36;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		String program = args.length > 2 ? args[2] : "hello";
+		long period = args.length > 3 ? Long.parseLong(args[3]) : 20;
+
+		// One JVM per device, with this one's classpath
+		String java = System.getProperty("java.home") + "/bin/java";
+		List<Process> processes = new ArrayList<>();
+		List<BufferedReader> outputs = new ArrayList<>();
+		try {
+			for(int i=0;i<devices;i++) {
+				ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						UdpSwarmBenchmark.class.getName(), "device", Integer.toString(i), Integer.toString(devices),
+						Integer.toString(seconds), program, Long.toString(period));
+				pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+				Process p = pb.start();
+				processes.add(p);
+				outputs.add(new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8")));
+			}
+			for(int i=0;i<devices;i++) {
+				readLine(outputs.get(i), "READY", i);
+			}
+			System.out.println(String.format("%d device processes listening; running for %d s, one cycle every %d ms",
+					devices, seconds, period));
+			for(Process p : processes) {
+				PrintStream in = new PrintStream(p.getOutputStream(), true, "UTF-8");
+				in.println("GO");
+			}
+
+			long cycles = 0, sent = 0, received = 0, bytesSent = 0, coalesced = 0, sendDrops = 0, receiveDrops = 0;
+			long latencySum = 0, maxLatency = 0;
+			long[] histogram = new long[BUCKETS];
+			double minDistance = Double.POSITIVE_INFINITY, maxDistance = 0;
+			for(int i=0;i<devices;i++) {
+				String[] f = readLine(outputs.get(i), "RESULT", i).split(" ");
+				cycles += Long.parseLong(f[1]);
+				sent += Long.parseLong(f[2]);
+				received += Long.parseLong(f[3]);
+				bytesSent += Long.parseLong(f[4]);
+				coalesced += Long.parseLong(f[5]);
+				sendDrops += Long.parseLong(f[6]);
+				receiveDrops += Long.parseLong(f[7]);
+				latencySum += Long.parseLong(f[8]);
+				maxLatency = Math.max(maxLatency, Long.parseLong(f[9]));
+				String[] buckets = f[10].split(",");
+				for(int b=0;b<BUCKETS;b++) {
+					histogram[b] += Long.parseLong(buckets[b]);
+				}
+				double distance = Double.parseDouble(f[11]);
+				minDistance = Math.min(minDistance, distance);
+				maxDistance = Math.max(maxDistance, distance);
+			}
+			System.out.println(String.format(Locale.ROOT, "%d cycles: %.0f packets/s sent, %.0f packets/s received (%.1f%% delivered), "
+					+ "%.1f bytes/packet", cycles, (double) sent / seconds, (double) received / seconds,
+					sent == 0 ? 0.0 : 100.0 * received / sent, sent == 0 ? 0.0 : (double) bytesSent / sent));
+			System.out.println(String.format(Locale.ROOT, "latency: mean %.1f us, median < %.1f us, 99th percentile < %.1f us, max %.1f us",
+					received == 0 ? 0.0 : latencySum / 1e3 / received, percentile(histogram, 0.5) / 1e3,
+					percentile(histogram, 0.99) / 1e3, maxLatency / 1e3));
+			System.out.println(String.format("%d states coalesced, %d packets not sent, %d packets dropped on receipt",
+					coalesced, sendDrops, receiveDrops));
+			System.out.println(String.format(Locale.ROOT, "distance values at the end: %.3f to %.3f", minDistance, maxDistance));
+		} finally {
+			for(Process p : processes) {
+				p.destroy();
+			}
+		}
+	}
+
+	/**
+	 * @param device	Index of the device whose output is read
+	 * @return the first line of the device's output starting with the prefix; other lines are echoed
+	 * @throws IOException if the device has exited first
+	 */
+	private static String readLine(final BufferedReader output, final String prefix, final int device) throws IOException {
+		for(String line = output.readLine(); line != null; line = output.readLine()) {
+			if(line.startsWith(prefix)) {
+				return line;
+			}
+			System.out.println(line);
+		}
+		throw new IOException("Device " + device + " exited before reporting " + prefix);
+	}
+
+	/** @return upper bound, in nanoseconds, of the latency below which the given fraction of packets arrived */
+	private static double percentile(final long[] histogram, final double fraction) {
+		long total = 0;
+		for(long c : histogram) {
+			total += c;
+		}
+		long seen = 0;
+		for(int b=0;b<BUCKETS;b++) {
+			seen += histogram[b];
+			if(seen > 0 && seen >= fraction * total) {
+				return b == 0 ? 0 : Math.pow(2, b);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Body of a device process: listen, report "READY", wait for a line on standard input, run the
+	 * device for the given time, then report its counters on one "RESULT" line.
+	 */
+	private static void runDevice(final int index, final int devices, final int seconds, final String program,
+			final long period) throws IOException {
+		int edge = (int) Math.ceil(Math.sqrt(devices));
+		int row = index / edge, column = index % edge;
+		List<InetSocketAddress> neighbors = new ArrayList<>();
+		for(int r=row-1;r<=row+1;r++) {
+			for(int c=column-1;c<=column+1;c++) {
+				int j = r * edge + c;
+				if(r >= 0 && c >= 0 && c < edge && j < devices && j != index) {
+					neighbors.add(address(j));
+				}
+			}
+		}
+
+		IntegerUID uid = new IntegerUID(index);
+		try (UdpNetworkManager network = new UdpNetworkManager(uid, address(index))) {
+			network.setNeighbors(neighbors);
+			network.setTimeToLive(TTL_PERIODS * period);
+			Position position = Position.fromDegrees(ORIGIN_LAT + row * SPACING, ORIGIN_LON + column * SPACING, ALTITUDE);
+			UdpDevice device = new UdpDevice(ProtelisLoader.parse(program), index, position, 0, network);
+			// The same leader as in a simulated grid of this size
+			if(index == Math.min(edge - 1, 1) * (edge + 1)) {
+				device.getExecutionEnvironment().put("leader", true);
+			}
+			System.out.println("READY");
+			new BufferedReader(new InputStreamReader(System.in, "UTF-8")).readLine();
+
+			long cycles = 0, next = System.nanoTime(), end = next + seconds * 1000000000L;
+			while(next < end) {
+				device.getVM().runCycle();
+				cycles++;
+				next += period * 1000000;
+				LockSupport.parkNanos(next - System.nanoTime());
+			}
+			LockSupport.parkNanos(LINGER * 1000000);
+
+			if(network.getFailure() != null) {
+				System.err.println("Device " + index + " lost its network: " + network.getFailure());
+			}
+			StringBuilder histogram = new StringBuilder();
+			for(long c : network.getLatencyHistogram()) {
+				histogram.append(histogram.length() == 0 ? "" : ",").append(c);
+			}
+			Object distance = device.getExecutionEnvironment().get("distance");
+			System.out.println(String.format(Locale.ROOT, "RESULT %d %d %d %d %d %d %d %d %d %s %s", cycles,
+					network.getPacketsSent(), network.getPacketsReceived(), network.getBytesSent(),
+					network.getCoalescedCount(), network.getSendDrops(), network.getReceiveDrops(),
+					network.getTotalLatencyNanos(), network.getMaxLatencyNanos(), histogram,
+					distance instanceof Number ? distance : Double.NaN));
+		}
+	}
+
+	private static InetSocketAddress address(final int device) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + device);
+	}
+}
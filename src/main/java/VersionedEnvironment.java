@@ -0,0 +1,64 @@
+import java.util.Objects;
+
+import org.protelis.vm.ExecutionEnvironment;
+
+/**
+ * Execution environment that counts modifications to another environment, so that a device can tell
+ * cheaply whether its environment is the same as when it last ran. Writing a variable's current value
+ * again is not counted as a modification.
+ */
+public class VersionedEnvironment implements ExecutionEnvironment {
+	private final ExecutionEnvironment env;
+	private long version = 0;
+
+	/** @param env	Environment holding the variables */
+	public VersionedEnvironment(final ExecutionEnvironment env) {
+		this.env = env;
+	}
+
+	/** @return number of modifications made so far */
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public boolean has(final String id) {
+		return env.has(id);
+	}
+
+	@Override
+	public Object get(final String id) {
+		return env.get(id);
+	}
+
+	@Override
+	public Object get(final String id, final Object defaultValue) {
+		return env.get(id, defaultValue);
+	}
+
+	@Override
+	public boolean put(final String id, final Object v) {
+		if (!env.has(id) || !Objects.equals(env.get(id), v)) {
+			version++;
+		}
+		return env.put(id, v);
+	}
+
+	@Override
+	public Object remove(final String id) {
+		if (env.has(id)) {
+			version++;
+		}
+		return env.remove(id);
+	}
+
+	@Override
+	public void commit() {
+		env.commit();
+	}
+
+	@Override
+	public void setup() {
+		env.setup();
+	}
+}
@@ -0,0 +1,71 @@
+package stream;
+
+/**
+ * How a {@link RoundPublisher} buffers items for a subscriber that has not yet taken them.
+ */
+public final class BufferPolicy {
+	/** What happens to a new item when the buffer is full */
+	public enum Overflow {
+		/** Discard the oldest buffered item; the publisher never waits */
+		DROP_OLDEST,
+		/** Make the publisher wait for space, slowing the simulation down to the subscriber's pace */
+		BLOCK
+	}
+
+	private final int capacity;
+	private final Overflow overflow;
+	private final int interval;
+
+	private BufferPolicy(final int capacity, final Overflow overflow, final int interval) {
+		if (capacity < 1 || interval < 1) {
+			throw new IllegalArgumentException("Buffer capacity and sampling interval must be positive");
+		}
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.interval = interval;
+	}
+
+	/**
+	 * @param capacity	Number of items buffered
+	 * @return policy that keeps the most recent items, discarding older ones the subscriber has not taken
+	 */
+	public static BufferPolicy dropOldest(final int capacity) {
+		return new BufferPolicy(capacity, Overflow.DROP_OLDEST, 1);
+	}
+
+	/**
+	 * @param capacity	Number of items buffered
+	 * @return policy that never loses an item, making the publisher wait while the buffer is full
+	 */
+	public static BufferPolicy block(final int capacity) {
+		return new BufferPolicy(capacity, Overflow.BLOCK, 1);
+	}
+
+	/**
+	 * @param interval	Only one item in this many is considered
+	 * @return policy that offers every interval-th item and keeps only the most recent of them
+	 */
+	public static BufferPolicy sample(final int interval) {
+		return new BufferPolicy(1, Overflow.DROP_OLDEST, interval);
+	}
+
+	/** @return number of items buffered */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @return what happens to a new item when the buffer is full */
+	public Overflow getOverflow() {
+		return overflow;
+	}
+
+	/** @return only one item in this many is offered to the subscriber */
+	public int getInterval() {
+		return interval;
+	}
+
+	@Override
+	public String toString() {
+		return overflow + "(capacity " + capacity + (interval > 1 ? ", every " + interval + ")" : ")");
+	}
+}
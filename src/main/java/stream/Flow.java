@@ -0,0 +1,59 @@
+package stream;
+
+/**
+ * Interfaces for publishing a stream of items to independent subscribers with demand-driven flow control.
+ * They mirror <code>java.util.concurrent.Flow</code> of Java 9, which is not available to this Java 8 code base,
+ * so that code written against them can later move to the JDK interfaces unchanged.
+ */
+public final class Flow {
+	private Flow() {
+	}
+
+	/**
+	 * Source of items for any number of subscribers.
+	 * @param <T> type of the items
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Add a subscriber. Its {@link Subscriber#onSubscribe(Subscription)} is called before any item is delivered.
+		 * @param subscriber	Subscriber to be added
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receiver of items. Methods of a subscriber are called by one thread at a time, in order.
+	 * @param <T> type of the items
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called once, before any other method. No items are delivered until some are requested.
+		 * @param subscription	Link to the publisher, used to request items or cancel
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/** @param item	Next item */
+		void onNext(T item);
+
+		/**
+		 * Called if the stream fails; no further methods are called.
+		 * @param throwable	Cause of the failure
+		 */
+		void onError(Throwable throwable);
+
+		/** Called when the stream ends; no further methods are called. */
+		void onComplete();
+	}
+
+	/** Link between a publisher and one subscriber */
+	public interface Subscription {
+		/**
+		 * Allow the publisher to deliver more items.
+		 * @param n	Number of additional items; {@link Long#MAX_VALUE} for no limit
+		 */
+		void request(long n);
+
+		/** Stop delivery; items not yet delivered are discarded. */
+		void cancel();
+	}
+}
@@ -0,0 +1,215 @@
+package stream;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the results of simulation rounds to independent subscribers.
+ *
+ * Every subscriber has its own buffer, governed by a {@link BufferPolicy}, and its own delivery thread,
+ * so a slow subscriber only ever loses items from its own buffer. {@link #publish(Object)} never waits
+ * unless a subscriber was added with a {@link BufferPolicy.Overflow#BLOCK blocking} policy.
+ * @param <T> type of the items
+ */
+public class RoundPublisher<T> implements Flow.Publisher<T> {
+	/** Policy used for subscribers added through {@link #subscribe(Flow.Subscriber)} */
+	private static final BufferPolicy DEFAULT_POLICY = BufferPolicy.dropOldest(16);
+	private static final Logger LOGGER = Logger.getLogger(RoundPublisher.class.getName());
+
+	private final String name;
+	private final List<BufferedSubscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+	private final AtomicInteger threadCount = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	/** Held while a subscriber is added and while the stream is closed, so that no subscriber misses the end */
+	private final Object lifecycle = new Object();
+	private volatile boolean closed = false;
+
+	/** @param name	Name of the stream, used to name delivery threads */
+	public RoundPublisher(final String name) {
+		this.name = name;
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+		subscribe(subscriber, DEFAULT_POLICY);
+	}
+
+	/**
+	 * Add a subscriber with a chosen buffering policy.
+	 * @param subscriber	Subscriber to be added
+	 * @param policy		How items are buffered for the subscriber
+	 */
+	public void subscribe(final Flow.Subscriber<? super T> subscriber, final BufferPolicy policy) {
+		BufferedSubscription<T> s = new BufferedSubscription<>(this, subscriber, policy);
+		synchronized (lifecycle) {
+			if (closed) {
+				s.complete();
+			} else {
+				subscriptions.add(s);
+			}
+		}
+		Thread t = new Thread(s, name + "-subscriber-" + threadCount.incrementAndGet());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** @return whether any subscriber is still taking items, i.e., whether items are worth producing */
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	/** @return number of items discarded from subscriber buffers so far */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Offer an item to every subscriber. Waits only for subscribers with a blocking policy.
+	 * @param item	Item to be published
+	 */
+	public void publish(final T item) {
+		if (closed) {
+			throw new IllegalStateException("Stream " + name + " is closed");
+		}
+		for (BufferedSubscription<T> s : subscriptions) {
+			s.offer(item);
+		}
+	}
+
+	/**
+	 * End the stream. Subscribers receive the items already buffered, then {@link Flow.Subscriber#onComplete()}.
+	 */
+	public void close() {
+		synchronized (lifecycle) {
+			closed = true;
+			for (BufferedSubscription<T> s : subscriptions) {
+				s.complete();
+			}
+		}
+	}
+
+	/** Buffer and delivery thread of one subscriber */
+	private static class BufferedSubscription<T> implements Flow.Subscription, Runnable {
+		private final RoundPublisher<T> publisher;
+		private final Flow.Subscriber<? super T> subscriber;
+		private final BufferPolicy policy;
+		private final ArrayDeque<T> buffer;
+		private long demand = 0;
+		private long offered = 0;
+		private boolean cancelled = false, completed = false;
+		private Throwable error = null;
+
+		private BufferedSubscription(final RoundPublisher<T> publisher, final Flow.Subscriber<? super T> subscriber,
+				final BufferPolicy policy) {
+			this.publisher = publisher;
+			this.subscriber = subscriber;
+			this.policy = policy;
+			this.buffer = new ArrayDeque<>(policy.getCapacity());
+		}
+
+		private synchronized void offer(final T item) {
+			if (cancelled || completed || offered++ % policy.getInterval() != 0) {
+				return;
+			}
+			while (buffer.size() >= policy.getCapacity() && !cancelled) {
+				if (policy.getOverflow() == BufferPolicy.Overflow.DROP_OLDEST) {
+					buffer.poll();
+					publisher.dropped.incrementAndGet();
+				} else {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Give up on this item rather than on the publisher's interruption
+						Thread.currentThread().interrupt();
+						publisher.dropped.incrementAndGet();
+						return;
+					}
+				}
+			}
+			if (!cancelled) {
+				buffer.add(item);
+				notifyAll();
+			}
+		}
+
+		private synchronized void complete() {
+			completed = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void request(final long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Non-positive request: " + n);
+				cancelled = true;
+			} else {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void cancel() {
+			cancelled = true;
+			buffer.clear();
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			// Whether onComplete or onError has been called, after which the subscriber is sent nothing more
+			boolean terminated = false;
+			try {
+				subscriber.onSubscribe(this);
+				boolean finished = false;
+				while (true) {
+					T item;
+					synchronized (this) {
+						while (!cancelled && (buffer.isEmpty() || demand == 0) && !(completed && buffer.isEmpty())) {
+							wait();
+						}
+						if (cancelled) {
+							break;
+						}
+						if (buffer.isEmpty()) {
+							finished = true;
+							break;
+						}
+						item = buffer.poll();
+						if (demand != Long.MAX_VALUE) {
+							demand--;
+						}
+						notifyAll(); // a blocked publisher may continue
+					}
+					subscriber.onNext(item);
+				}
+				if (finished) {
+					terminated = true;
+					subscriber.onComplete();
+				} else if (error != null) {
+					terminated = true;
+					subscriber.onError(error);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				LOGGER.warning("Subscriber " + subscriber + " failed and was removed: " + e);
+				cancel();
+				if (!terminated) {
+					// Give the subscriber a chance to release what it holds, e.g., to close its file
+					try {
+						subscriber.onError(e);
+					} catch (RuntimeException again) {
+						LOGGER.warning("Subscriber " + subscriber + " failed handling its failure: " + again);
+					}
+				}
+			} finally {
+				publisher.subscriptions.remove(this);
+			}
+		}
+	}
+}
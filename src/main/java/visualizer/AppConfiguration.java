@@ -0,0 +1,27 @@
+package visualizer;
+
+/**
+ * Points WorldWind at this application's configuration document. WorldWind reads its configuration the
+ * first time any of its classes needs it, so {@link #configure()} must be called before that, e.g., from
+ * the static initializer of a class with a main method. This class itself uses no WorldWind, GL or Swing
+ * class, so that headless code can call it too.
+ */
+public final class AppConfiguration {
+	/** System property WorldWind reads the location of the application configuration from */
+	private static final String CONFIG_DOCUMENT_PROPERTY = "gov.nasa.worldwind.app.config.document";
+	/** Configuration document of the application, on the class path */
+	public static final String CONFIG_DOCUMENT = "config/protelisww.xml";
+
+	private static boolean configured = false;
+
+	private AppConfiguration() {
+	}
+
+	/** Make sure that WorldWind will be configured for this application; later calls do nothing */
+	public static synchronized void configure() {
+		if (!configured) {
+			System.setProperty(CONFIG_DOCUMENT_PROPERTY, CONFIG_DOCUMENT);
+			configured = true;
+		}
+	}
+}
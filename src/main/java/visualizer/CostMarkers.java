@@ -0,0 +1,108 @@
+package visualizer;
+
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.layers.RenderableLayer;
+import gov.nasa.worldwind.render.PointPlacemark;
+import gov.nasa.worldwind.render.PointPlacemarkAttributes;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shows how much each device of the published scenes costs to run, as a dot colored from blue for the
+ * cheapest devices to red for the most expensive. Costs are spread over the ramp on a logarithmic scale,
+ * since a few devices may cost many times more than the rest.
+ *
+ * As with {@link DeviceRenderablePool}, only the devices in or near the view are given a marker, and the
+ * markers are reused from one scene to the next. Used only on the render thread.
+ */
+class CostMarkers {
+	/** Number of distinct colors */
+	private static final int LEVELS = 16;
+
+	private final RenderableLayer layer;
+	private final int limit;
+	private final PointPlacemarkAttributes[] levels = new PointPlacemarkAttributes[LEVELS];
+	private final PointPlacemarkAttributes missing = attributes(Color.LIGHT_GRAY);
+	/** Markers created so far; the first {@link #shown} are in the layer */
+	private final List<PointPlacemark> markers = new ArrayList<>();
+	private int shown = 0;
+
+	private SceneSnapshot scene = null;
+	/** Area whose devices currently hold markers */
+	private Sector area = null;
+	private final List<SceneSnapshot.DeviceState> visible = new ArrayList<>();
+
+	/**
+	 * @param layer	Layer the markers are shown in
+	 * @param limit	Largest number of devices shown at once
+	 */
+	CostMarkers(final RenderableLayer layer, final int limit) {
+		this.layer = layer;
+		this.limit = limit;
+		for (int i = 0; i < LEVELS; i++) {
+			float f = (float) i / (LEVELS - 1);
+			levels[i] = attributes(Color.getHSBColor((1 - f) * 2f / 3f, 0.9f, 1f));
+		}
+	}
+
+	private static PointPlacemarkAttributes attributes(final Color color) {
+		PointPlacemarkAttributes attrs = new PointPlacemarkAttributes();
+		attrs.setUsePointAsDefaultImage(true);
+		attrs.setScale(8d);
+		attrs.setImageColor(color);
+		return attrs;
+	}
+
+	/**
+	 * Bring the markers up to date with the latest scene and the current view.
+	 * @param newScene	Newly published scene, or null if the scene is unchanged
+	 * @param view		Area currently in view, or null if not yet known
+	 */
+	void update(final SceneSnapshot newScene, final Sector view) {
+		if (newScene != null) {
+			scene = newScene;
+		}
+		if (scene == null || (newScene == null && area != null && (view == null || area.contains(view)))) {
+			return;
+		}
+		area = view == null ? Sector.FULL_SPHERE : DeviceRenderablePool.expand(view);
+
+		visible.clear();
+		scene.findDevices(area, limit, visible);
+		double low = Math.log1p(scene.getMinCost()), high = Math.log1p(scene.getMaxCost());
+		for (int k = 0; k < visible.size(); k++) {
+			SceneSnapshot.DeviceState d = visible.get(k);
+			PointPlacemark marker;
+			if (k < markers.size()) {
+				marker = markers.get(k);
+				marker.setPosition(d.position);
+			} else {
+				marker = new PointPlacemark(d.position);
+				marker.setAltitudeMode(WorldWind.ABSOLUTE);
+				markers.add(marker);
+			}
+			marker.setAttributes(Double.isNaN(d.cost) ? missing : levels[levelOf(Math.log1p(d.cost), low, high)]);
+			marker.setValue(AVKey.DISPLAY_NAME, Double.isNaN(d.cost) ? d.name
+					: String.format(Locale.ROOT, "%s: %.1f us per cycle", d.name, d.cost / 1e3));
+			if (k >= shown) {
+				layer.addRenderable(marker);
+			}
+		}
+		for (int k = visible.size(); k < shown; k++) {
+			layer.removeRenderable(markers.get(k));
+		}
+		shown = visible.size();
+	}
+
+	private static int levelOf(final double v, final double low, final double high) {
+		if (!(high > low)) {
+			return 0;
+		}
+		return Math.max(0, Math.min(LEVELS - 1, (int) ((v - low) / (high - low) * LEVELS)));
+	}
+}
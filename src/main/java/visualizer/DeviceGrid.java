@@ -0,0 +1,186 @@
+package visualizer;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import visualizer.util.ClusteredSymbolLayer;
+
+/**
+ * Immutable uniform latitude/longitude grid over the devices of a snapshot, used to find the devices
+ * in a given area without examining every device.
+ *
+ * The grid covers the bounding box of the devices and is sized so that each cell holds a handful of
+ * devices on average. Devices are stored bucketed by cell in compressed-row form.
+ */
+class DeviceGrid {
+	/** Average number of devices per cell that the grid is sized for */
+	private static final int DEVICES_PER_CELL = 8;
+	/** Largest number of rows and columns */
+	private static final int MAX_SIDE = 1024;
+
+	private final List<SceneSnapshot.DeviceState> devices;
+	private final int side;
+	private final double minLat, minLon, cellLat, cellLon;
+	/** Index into {@link #order} of the first device of each cell, plus a final end marker */
+	private final int[] cellStart;
+	/** Device indices, sorted by cell */
+	private final int[] order;
+
+	DeviceGrid(final List<SceneSnapshot.DeviceState> devices) {
+		this.devices = devices;
+		double minLat = 90, maxLat = -90, minLon = 180, maxLon = -180;
+		for (SceneSnapshot.DeviceState d : devices) {
+			minLat = Math.min(minLat, d.position.getLatitude().degrees);
+			maxLat = Math.max(maxLat, d.position.getLatitude().degrees);
+			minLon = Math.min(minLon, d.position.getLongitude().degrees);
+			maxLon = Math.max(maxLon, d.position.getLongitude().degrees);
+		}
+		this.side = Math.max(1, Math.min(MAX_SIDE, (int) Math.ceil(Math.sqrt((double) devices.size() / DEVICES_PER_CELL))));
+		this.minLat = minLat;
+		this.minLon = minLon;
+		// Slightly oversized cells, so that the devices on the far edges fall inside the grid
+		this.cellLat = Math.max(1e-9, (maxLat - minLat) * (1 + 1e-9)) / side;
+		this.cellLon = Math.max(1e-9, (maxLon - minLon) * (1 + 1e-9)) / side;
+
+		cellStart = new int[side * side + 1];
+		order = new int[devices.size()];
+		int[] cells = new int[devices.size()];
+		for (int i = 0; i < cells.length; i++) {
+			SceneSnapshot.DeviceState d = devices.get(i);
+			cells[i] = row(d.position.getLatitude().degrees) * side + column(d.position.getLongitude().degrees);
+			cellStart[cells[i] + 1]++;
+		}
+		for (int c = 0; c < side * side; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] fill = new int[side * side];
+		for (int i = 0; i < cells.length; i++) {
+			order[cellStart[cells[i]] + fill[cells[i]]++] = i;
+		}
+	}
+
+	private int row(final double lat) {
+		return Math.max(0, Math.min(side - 1, (int) ((lat - minLat) / cellLat)));
+	}
+
+	private int column(final double lon) {
+		return Math.max(0, Math.min(side - 1, (int) ((lon - minLon) / cellLon)));
+	}
+
+	/** @return whether the grid has no cell in the area; if so, the other fields give no row or column for it */
+	private boolean outside(final Sector area) {
+		return devices.isEmpty() || area.getMaxLatitude().degrees < minLat || area.getMaxLongitude().degrees < minLon
+				|| area.getMinLatitude().degrees > minLat + side * cellLat || area.getMinLongitude().degrees > minLon + side * cellLon;
+	}
+
+	/**
+	 * Count the devices in the cells that an area overlaps, without examining them.
+	 * @param area	Area to search
+	 * @return number of devices in those cells, some of which may lie just outside the area
+	 */
+	int count(final Sector area) {
+		if (outside(area)) {
+			return 0;
+		}
+		int row0 = row(area.getMinLatitude().degrees), row1 = row(area.getMaxLatitude().degrees);
+		int col0 = column(area.getMinLongitude().degrees), col1 = column(area.getMaxLongitude().degrees);
+		int total = 0;
+		for (int r = row0; r <= row1; r++) {
+			total += cellStart[r * side + col1 + 1] - cellStart[r * side + col0];
+		}
+		return total;
+	}
+
+	/**
+	 * Summarize the devices in an area cell by cell: one aggregate per cell, at the centroid and with the
+	 * number of the cell's devices inside the area.
+	 * @param area	Area to search
+	 * @param out	List the aggregates are added to
+	 */
+	void aggregate(final Sector area, final List<ClusteredSymbolLayer.Aggregate> out) {
+		if (outside(area)) {
+			return;
+		}
+		int row0 = row(area.getMinLatitude().degrees), row1 = row(area.getMaxLatitude().degrees);
+		int col0 = column(area.getMinLongitude().degrees), col1 = column(area.getMaxLongitude().degrees);
+		for (int r = row0; r <= row1; r++) {
+			for (int c = col0; c <= col1; c++) {
+				int count = 0;
+				double lat = 0, lon = 0, elevation = 0;
+				for (int k = cellStart[r * side + c]; k < cellStart[r * side + c + 1]; k++) {
+					Position p = devices.get(order[k]).position;
+					if (area.contains(p)) {
+						count++;
+						lat += p.getLatitude().degrees;
+						lon += p.getLongitude().degrees;
+						elevation += p.getElevation();
+					}
+				}
+				if (count > 0) {
+					out.add(new ClusteredSymbolLayer.Aggregate(Position.fromDegrees(lat / count, lon / count,
+							elevation / count), count));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the devices in an area. If there are more than requested, those in the cells nearest
+	 * the middle of the area are preferred.
+	 * @param area	Area to search
+	 * @param limit	Largest number of devices to return
+	 * @param out	List the devices are added to
+	 */
+	void query(final Sector area, final int limit, final List<SceneSnapshot.DeviceState> out) {
+		if (outside(area)) {
+			return;
+		}
+		int row0 = row(area.getMinLatitude().degrees), row1 = row(area.getMaxLatitude().degrees);
+		int col0 = column(area.getMinLongitude().degrees), col1 = column(area.getMaxLongitude().degrees);
+		if (count(area) <= limit) {
+			for (int r = row0; r <= row1; r++) {
+				for (int k = cellStart[r * side + col0]; k < cellStart[r * side + col1 + 1]; k++) {
+					addIfInside(area, devices.get(order[k]), out);
+				}
+			}
+			return;
+		}
+		// Too many devices: take whole cells outward from the middle of the area until the limit is reached
+		final double midRow = (row0 + row1) / 2.0, midCol = (col0 + col1) / 2.0;
+		List<Integer> cells = new ArrayList<>((row1 - row0 + 1) * (col1 - col0 + 1));
+		for (int r = row0; r <= row1; r++) {
+			for (int c = col0; c <= col1; c++) {
+				if (cellStart[r * side + c + 1] > cellStart[r * side + c]) {
+					cells.add(r * side + c);
+				}
+			}
+		}
+		Collections.sort(cells, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				return Double.compare(distance(a), distance(b));
+			}
+
+			private double distance(final int cell) {
+				double dr = cell / side - midRow, dc = cell % side - midCol;
+				return dr * dr + dc * dc;
+			}
+		});
+		int start = out.size();
+		for (int cell : cells) {
+			for (int k = cellStart[cell]; k < cellStart[cell + 1] && out.size() - start < limit; k++) {
+				addIfInside(area, devices.get(order[k]), out);
+			}
+		}
+	}
+
+	private static void addIfInside(final Sector area, final SceneSnapshot.DeviceState d, final List<SceneSnapshot.DeviceState> out) {
+		if (area.contains(d.position)) {
+			out.add(d);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package visualizer;
+
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.layers.RenderableLayer;
+import gov.nasa.worldwind.symbology.TacticalSymbol;
+import gov.nasa.worldwind.symbology.TacticalSymbolAttributes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import visualizer.util.ClusteredSymbolLayer;
+import visualizer.util.NetworkConnectionVisualization;
+import visualizer.util.SymbolAttributeRamp;
+
+/**
+ * Shows the devices of published scenes with a pool of reusable renderables, assigned only to the
+ * devices in or near the current view.
+ *
+ * Each visible device is given a symbol and a link visualization from the pool; when a device leaves
+ * the view its renderables are taken out of their layers and kept for the next device that comes into
+ * view. The number of renderables, and the work of keeping them up to date, therefore depends on what
+ * is on screen rather than on the size of the swarm. When more devices than the limit are in view and the
+ * symbols are shown in a {@link ClusteredSymbolLayer}, no device is given renderables: the layer is fed
+ * the number of devices in each cell of the scene's grid instead, so that its glyphs count the whole
+ * swarm. Used only on the render thread.
+ */
+class DeviceRenderablePool {
+	/** Fraction of the view's extent added on each side, so that small camera moves need no reassignment */
+	private static final double MARGIN = 0.25;
+
+	/** Renderables showing one device */
+	private static class Slot {
+		private final TacticalSymbol symbol;
+		private final NetworkConnectionVisualization links;
+
+		private Slot(final TacticalSymbol symbol, final NetworkConnectionVisualization links) {
+			this.symbol = symbol;
+			this.links = links;
+		}
+	}
+
+	private final DeviceSymbolFactory factory;
+	private final RenderableLayer symbolLayer, linkLayer;
+	private final int limit;
+
+	private SceneSnapshot scene = null;
+	/** Area whose devices currently hold renderables */
+	private Sector area = null;
+	private Map<Object,Slot> assigned = new HashMap<>();
+	private Map<Object,Slot> reassigned = new HashMap<>();
+	private final Deque<Slot> free = new ArrayDeque<>();
+	private final List<SceneSnapshot.DeviceState> visible = new ArrayList<>();
+	private final List<ClusteredSymbolLayer.Aggregate> aggregates = new ArrayList<>();
+
+	/**
+	 * @param factory		Source of device symbols
+	 * @param symbolLayer	Layer the symbols are shown in
+	 * @param linkLayer		Layer the links are shown in
+	 * @param limit			Largest number of devices shown at once
+	 */
+	DeviceRenderablePool(final DeviceSymbolFactory factory, final RenderableLayer symbolLayer,
+			final RenderableLayer linkLayer, final int limit) {
+		this.factory = factory;
+		this.symbolLayer = symbolLayer;
+		this.linkLayer = linkLayer;
+		this.limit = limit;
+	}
+
+	/** @return number of renderable slots created so far, whether in use or not */
+	int getPoolSize() {
+		return assigned.size() + free.size();
+	}
+
+	/** @return number of devices currently shown */
+	int getShownCount() {
+		return assigned.size();
+	}
+
+	/**
+	 * Bring the renderables up to date with the latest scene and the current view.
+	 * @param newScene	Newly published scene, or null if the scene is unchanged
+	 * @param view		Area currently in view, or null if not yet known
+	 * @param ramp		Ramp used to color symbols by value, or null
+	 */
+	void update(final SceneSnapshot newScene, final Sector view, final SymbolAttributeRamp ramp) {
+		if (newScene != null) {
+			scene = newScene;
+		}
+		if (scene == null || (newScene == null && !needsReassignment(view))) {
+			return;
+		}
+		area = view == null ? Sector.FULL_SPHERE : expand(view);
+
+		visible.clear();
+		aggregates.clear();
+		if (symbolLayer instanceof ClusteredSymbolLayer && scene.countDevices(area) > limit) {
+			scene.aggregateDevices(area, aggregates);
+		} else {
+			scene.findDevices(area, limit, visible);
+		}
+		if (symbolLayer instanceof ClusteredSymbolLayer) {
+			((ClusteredSymbolLayer) symbolLayer).setAggregates(aggregates);
+		}
+		// Keep the renderables of devices still in view; release the rest
+		for (SceneSnapshot.DeviceState d : visible) {
+			Slot s = assigned.remove(d.id);
+			if (s != null) {
+				reassigned.put(d.id, s);
+			}
+		}
+		for (Slot s : assigned.values()) {
+			symbolLayer.removeRenderable(s.symbol);
+			linkLayer.removeRenderable(s.links);
+			free.push(s);
+		}
+		assigned.clear();
+		Map<Object,Slot> swap = assigned;
+		assigned = reassigned;
+		reassigned = swap;
+
+		for (SceneSnapshot.DeviceState d : visible) {
+			Slot s = assigned.get(d.id);
+			boolean fresh = s == null;
+			if (fresh) {
+				s = free.isEmpty() ? new Slot(factory.createSymbol(),
+						new NetworkConnectionVisualization(d.position, Collections.<Position>emptyList())) : free.pop();
+				s.symbol.setValue(AVKey.DISPLAY_NAME, d.name);
+				assigned.put(d.id, s);
+			}
+			if (fresh || newScene != null) {
+				s.symbol.setPosition(d.position);
+				s.links.setState(d.position, d.neighbors);
+				if (ramp != null) {
+					TacticalSymbolAttributes attrs = ramp.get(ramp.levelOf(d.value, scene.getMinValue(), scene.getMaxValue()));
+					if (s.symbol.getAttributes() != attrs) {
+						s.symbol.setAttributes(attrs);
+					}
+				}
+			}
+			if (fresh) {
+				// Added only once positioned, since the layers index renderables by location
+				symbolLayer.addRenderable(s.symbol);
+				linkLayer.addRenderable(s.links);
+			}
+		}
+	}
+
+	/**
+	 * The assignment is kept while the view stays within the area whose devices hold renderables,
+	 * unless the view has shrunk so much that most of those devices are out of sight.
+	 */
+	private boolean needsReassignment(final Sector view) {
+		if (view == null || area == null) {
+			return area == null;
+		}
+		if (!area.contains(view)) {
+			return true;
+		}
+		Sector expanded = expand(view);
+		return expanded.getDeltaLatDegrees() * expanded.getDeltaLonDegrees()
+				< 0.25 * area.getDeltaLatDegrees() * area.getDeltaLonDegrees();
+	}
+
+	/** @return the sector grown by the margin on each side */
+	static Sector expand(final Sector s) {
+		double dLat = s.getDeltaLatDegrees() * MARGIN, dLon = s.getDeltaLonDegrees() * MARGIN;
+		return Sector.fromDegreesAndClamp(s.getMinLatitude().degrees - dLat, s.getMaxLatitude().degrees + dLat,
+				s.getMinLongitude().degrees - dLon, s.getMaxLongitude().degrees + dLon);
+	}
+}
@@ -0,0 +1,12 @@
+package visualizer;
+
+import gov.nasa.worldwind.symbology.TacticalSymbol;
+
+/**
+ * Creates the symbols used to show devices. Symbols are pooled and handed from device to device
+ * as they come into and leave the view, so a symbol must not depend on the device it is first made for.
+ */
+public interface DeviceSymbolFactory {
+	/** @return a new symbol; its position, name and attributes will be set before it is shown */
+	TacticalSymbol createSymbol();
+}
@@ -0,0 +1,304 @@
+package visualizer;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.util.Logging;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import stream.Flow;
+
+/**
+ * Software renderer that turns scene snapshots into a sequence of PNG images, for runs on machines
+ * without a GPU or display.
+ *
+ * Devices and their links are drawn with Java2D over a simple basemap (an equirectangular projection
+ * with a latitude/longitude graticule). Because snapshots are immutable, both drawing and PNG encoding
+ * happen on a pool of background threads: {@link #offer(SceneSnapshot)} only enqueues the snapshot, and
+ * if the pool falls behind by more than a fixed backlog the frame is dropped rather than stalling the
+ * simulation.
+ */
+public class HeadlessFrameExporter implements Flow.Subscriber<SceneSnapshot> {
+	static {
+		// Without a window, WorldWind's configuration is first read by its logging or geometry classes
+		AppConfiguration.configure();
+	}
+
+	/** Number of frames that may wait to be drawn before further frames are dropped */
+	private static final int MAX_BACKLOG = 16;
+	/** Fraction of the device bounds added as a margin when fitting the view */
+	private static final double MARGIN = 0.1;
+	private static final int BACKGROUND = 0xF2EFE9;
+	private static final Color GRATICULE = new Color(0xC8C8C8);
+	private static final int LINK = 0xF080F0;
+	private static final int DEVICE = 0x1F4FD8;
+
+	private final File directory;
+	private final int width, height;
+	private final int interval;
+	private final ThreadPoolExecutor pool;
+	/** Geographic area shown in every frame; fitted to the first snapshot if not set explicitly */
+	private volatile Sector bounds = null;
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Create an exporter.
+	 * @param directory	Directory where frames are written; created if absent
+	 * @param width		Image width in pixels
+	 * @param height	Image height in pixels
+	 * @param interval	Export one frame every this many rounds
+	 * @param threads	Number of drawing and encoding threads
+	 */
+	public HeadlessFrameExporter(final File directory, final int width, final int height, final int interval, final int threads) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create frame directory " + directory);
+		}
+		this.directory = directory;
+		this.width = width;
+		this.height = height;
+		this.interval = Math.max(1, interval);
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_BACKLOG), new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						Thread t = new Thread(r, "frame-export-" + threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Fix the geographic area shown in the frames.
+	 * @param bounds	Area to show
+	 */
+	public void setBounds(final Sector bounds) {
+		this.bounds = bounds;
+	}
+
+	/** @return number of frames written so far */
+	public long getWrittenFrames() {
+		return written.get();
+	}
+
+	/** @return number of frames dropped because drawing and encoding fell behind */
+	public long getDroppedFrames() {
+		return dropped.get();
+	}
+
+	/**
+	 * Offer the state of a round for export. Never blocks.
+	 * @param scene	Snapshot of the round
+	 * @return false if the round was due for export but had to be dropped
+	 */
+	public boolean offer(final SceneSnapshot scene) {
+		if (scene.getRound() % interval != 0) {
+			return true;
+		}
+		if (bounds == null) {
+			bounds = fit(scene);
+		}
+		final Sector frameBounds = bounds;
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					export(scene, frameBounds);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	@Override
+	public void onSubscribe(final Flow.Subscription subscription) {
+		subscription.request(Long.MAX_VALUE);
+	}
+
+	@Override
+	public void onNext(final SceneSnapshot scene) {
+		offer(scene);
+	}
+
+	@Override
+	public void onError(final Throwable throwable) {
+		Logging.logger().warning("Scene stream failed: " + throwable);
+		pool.shutdown();
+	}
+
+	/** Let the frames already accepted finish, without waiting for them */
+	@Override
+	public void onComplete() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Finish exporting the frames already accepted and release the threads.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private void export(final SceneSnapshot scene, final Sector area) {
+		BufferedImage image = draw(scene, area);
+		File file = new File(directory, String.format("frame-%08d.png", scene.getRound()));
+		try {
+			ImageIO.write(image, "png", file);
+			written.incrementAndGet();
+		} catch (IOException e) {
+			Logging.logger().warning("Unable to write " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Draw one frame.
+	 * @param scene	Snapshot to draw
+	 * @param area	Geographic area covered by the image
+	 * @return the frame
+	 */
+	BufferedImage draw(final SceneSnapshot scene, final Sector area) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		Arrays.fill(pixels, BACKGROUND);
+
+		final double minLat = area.getMinLatitude().degrees, minLon = area.getMinLongitude().degrees;
+		final double xScale = width / area.getDeltaLonDegrees(), yScale = height / area.getDeltaLatDegrees();
+
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+			g.setStroke(new BasicStroke(1));
+
+			// Basemap: a graticule with roughly ten lines across the image
+			g.setColor(GRATICULE);
+			double step = niceStep(area.getDeltaLonDegrees() / 10);
+			for (double lon = Math.ceil(minLon / step) * step; lon <= area.getMaxLongitude().degrees; lon += step) {
+				int x = (int) ((lon - minLon) * xScale);
+				g.drawLine(x, 0, x, height - 1);
+			}
+			for (double lat = Math.ceil(minLat / step) * step; lat <= area.getMaxLatitude().degrees; lat += step) {
+				int y = height - 1 - (int) ((lat - minLat) * yScale);
+				g.drawLine(0, y, width - 1, y);
+			}
+		} finally {
+			g.dispose();
+		}
+
+		// Links and devices are written straight into the raster, which is far cheaper than going through Java2D
+		for (SceneSnapshot.DeviceState d : scene.getDevices()) {
+			int x0 = (int) ((d.position.getLongitude().degrees - minLon) * xScale);
+			int y0 = height - 1 - (int) ((d.position.getLatitude().degrees - minLat) * yScale);
+			for (Position nbr : d.neighbors) {
+				int x1 = (int) ((nbr.getLongitude().degrees - minLon) * xScale);
+				int y1 = height - 1 - (int) ((nbr.getLatitude().degrees - minLat) * yScale);
+				drawLine(pixels, x0, y0, x1, y1);
+			}
+		}
+		for (SceneSnapshot.DeviceState d : scene.getDevices()) {
+			int x = (int) ((d.position.getLongitude().degrees - minLon) * xScale);
+			int y = height - 1 - (int) ((d.position.getLatitude().degrees - minLat) * yScale);
+			for (int py = Math.max(0, y - 1); py <= Math.min(height - 1, y + 1); py++) {
+				for (int px = Math.max(0, x - 1); px <= Math.min(width - 1, x + 1); px++) {
+					pixels[py * width + px] = DEVICE;
+				}
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Draw a one-pixel link with Bresenham's algorithm, skipping links entirely outside the image.
+	 */
+	private void drawLine(final int[] pixels, final int x0, final int y0, final int x1, final int y1) {
+		if ((x0 < 0 && x1 < 0) || (y0 < 0 && y1 < 0) || (x0 >= width && x1 >= width) || (y0 >= height && y1 >= height)) {
+			return;
+		}
+		int dx = Math.abs(x1 - x0), dy = -Math.abs(y1 - y0);
+		int sx = x0 < x1 ? 1 : -1, sy = y0 < y1 ? 1 : -1;
+		int err = dx + dy;
+		int x = x0, y = y0;
+		while (true) {
+			if (x >= 0 && y >= 0 && x < width && y < height) {
+				pixels[y * width + x] = LINK;
+			}
+			if (x == x1 && y == y1) {
+				return;
+			}
+			int e2 = 2 * err;
+			if (e2 >= dy) {
+				err += dy;
+				x += sx;
+			}
+			if (e2 <= dx) {
+				err += dx;
+				y += sy;
+			}
+		}
+	}
+
+	/**
+	 * Compute an area that contains every device in a snapshot, with a margin, and whose
+	 * aspect ratio matches the image so that distances are not distorted.
+	 * @param scene	Snapshot to fit
+	 * @return area to show
+	 */
+	private Sector fit(final SceneSnapshot scene) {
+		double minLat = 90, maxLat = -90, minLon = 180, maxLon = -180;
+		for (SceneSnapshot.DeviceState d : scene.getDevices()) {
+			minLat = Math.min(minLat, d.position.getLatitude().degrees);
+			maxLat = Math.max(maxLat, d.position.getLatitude().degrees);
+			minLon = Math.min(minLon, d.position.getLongitude().degrees);
+			maxLon = Math.max(maxLon, d.position.getLongitude().degrees);
+		}
+		if (minLat > maxLat) {
+			return Sector.FULL_SPHERE;
+		}
+		double centerLat = (minLat + maxLat) / 2, centerLon = (minLon + maxLon) / 2;
+		double cosLat = Math.max(0.01, Math.cos(Math.toRadians(centerLat)));
+		// Half-extents in "ground" degrees, grown to match the image aspect ratio
+		double halfLat = Math.max(1e-4, (maxLat - minLat) / 2 * (1 + MARGIN));
+		double halfLon = Math.max(1e-4, (maxLon - minLon) / 2 * (1 + MARGIN)) * cosLat;
+		double aspect = (double) width / height;
+		if (halfLon / halfLat < aspect) {
+			halfLon = halfLat * aspect;
+		} else {
+			halfLat = halfLon / aspect;
+		}
+		halfLon /= cosLat;
+		return Sector.fromDegreesAndClamp(centerLat - halfLat, centerLat + halfLat, centerLon - halfLon, centerLon + halfLon);
+	}
+
+	/** @return a round graticule spacing (1, 2 or 5 times a power of ten) close to the requested spacing */
+	private static double niceStep(final double raw) {
+		double magnitude = Math.pow(10, Math.floor(Math.log10(raw)));
+		double normalized = raw / magnitude;
+		if (normalized < 2) {
+			return magnitude;
+		} else if (normalized < 5) {
+			return 2 * magnitude;
+		}
+		return 5 * magnitude;
+	}
+}
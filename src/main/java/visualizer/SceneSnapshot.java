@@ -0,0 +1,197 @@
+package visualizer;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import visualizer.util.ClusteredSymbolLayer;
+
+/**
+ * Immutable record of where every device is and whom it is linked to at the end of a simulation round.
+ *
+ * The simulation thread builds a snapshot and hands it to {@link WorldWindVisualization#publishScene(SceneSnapshot)},
+ * which only swaps an atomic reference. The render thread applies the latest snapshot to the device
+ * renderables at the start of its next frame, so the simulation never waits for rendering and a frame
+ * is never drawn from a partially updated scene. Devices are indexed by location when the snapshot is
+ * built, so that the render thread can find those in view without examining the whole swarm.
+ */
+public final class SceneSnapshot {
+	/** State of a single device */
+	static final class DeviceState {
+		/** Identity of the device, stable from round to round */
+		final Object id;
+		/** Name shown for the device, e.g., in its tool tip */
+		final String name;
+		final Position position;
+		final List<Position> neighbors;
+		/** Value computed by the device for display, or NaN if it has none */
+		final double value;
+		/** Mean time the device takes per cycle, in nanoseconds, or NaN if not profiled */
+		final double cost;
+
+		private DeviceState(final Object id, final String name, final Position position,
+				final List<Position> neighbors, final double value, final double cost) {
+			this.id = id;
+			this.name = name;
+			this.position = position;
+			this.neighbors = neighbors;
+			this.value = value;
+			this.cost = cost;
+		}
+	}
+
+	private final long round;
+	private final List<DeviceState> devices;
+	private final double minValue, maxValue, minCost, maxCost;
+	private final DeviceGrid grid;
+
+	private SceneSnapshot(final long round, final List<DeviceState> devices, final double minValue, final double maxValue,
+			final double minCost, final double maxCost) {
+		this.round = round;
+		this.devices = Collections.unmodifiableList(devices);
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+		this.minCost = minCost;
+		this.maxCost = maxCost;
+		this.grid = new DeviceGrid(this.devices);
+	}
+
+	/** @return simulation round at which the snapshot was taken */
+	public long getRound() {
+		return round;
+	}
+
+	/** @return smallest device value in the snapshot, or NaN if no device has a value */
+	public double getMinValue() {
+		return minValue;
+	}
+
+	/** @return largest device value in the snapshot, or NaN if no device has a value */
+	public double getMaxValue() {
+		return maxValue;
+	}
+
+	/** @return smallest mean cycle cost in the snapshot, in nanoseconds, or NaN if no device was profiled */
+	public double getMinCost() {
+		return minCost;
+	}
+
+	/** @return largest mean cycle cost in the snapshot, in nanoseconds, or NaN if no device was profiled */
+	public double getMaxCost() {
+		return maxCost;
+	}
+
+	/** @return number of devices in the snapshot */
+	public int size() {
+		return devices.size();
+	}
+
+	List<DeviceState> getDevices() {
+		return devices;
+	}
+
+	/**
+	 * Find the devices in an area.
+	 * @param area	Area to search
+	 * @param limit	Largest number of devices wanted; those nearest the middle of the area are preferred
+	 * @param out	List the devices are added to
+	 */
+	void findDevices(final Sector area, final int limit, final List<DeviceState> out) {
+		grid.query(area, limit, out);
+	}
+
+	/**
+	 * @param area	Area to search
+	 * @return number of devices in or near the area, as counted by the grid without examining them
+	 */
+	int countDevices(final Sector area) {
+		return grid.count(area);
+	}
+
+	/**
+	 * Summarize the devices in an area by grid cell, with the true number of devices of each.
+	 * @param area	Area to search
+	 * @param out	List the aggregates are added to
+	 */
+	void aggregateDevices(final Sector area, final List<ClusteredSymbolLayer.Aggregate> out) {
+		grid.aggregate(area, out);
+	}
+
+	/**
+	 * Accumulates device states for one round. A builder is used by a single thread and
+	 * must not be reused after {@link #build()}.
+	 */
+	public static final class Builder {
+		private final long round;
+		private final List<DeviceState> devices;
+		private double minValue = Double.NaN, maxValue = Double.NaN, minCost = Double.NaN, maxCost = Double.NaN;
+
+		/**
+		 * @param round			Simulation round being recorded
+		 * @param expectedSize	Expected number of devices
+		 */
+		public Builder(final long round, final int expectedSize) {
+			this.round = round;
+			this.devices = new ArrayList<>(expectedSize);
+		}
+
+		/**
+		 * Record the state of a device.
+		 * @param id		Identity of the device, which must be the same in every round
+		 * @param name		Name shown for the device
+		 * @param position	Position of the device
+		 * @param neighbors	Positions of the device's neighbors
+		 * @return this builder
+		 */
+		public Builder add(final Object id, final String name, final Position position, final List<Position> neighbors) {
+			return add(id, name, position, neighbors, Double.NaN);
+		}
+
+		/**
+		 * Record the state of a device, together with a value to be shown by its color and size.
+		 * @param id		Identity of the device, which must be the same in every round
+		 * @param name		Name shown for the device
+		 * @param position	Position of the device
+		 * @param neighbors	Positions of the device's neighbors
+		 * @param value		Value computed by the device; NaN or infinite values are treated as missing
+		 * @return this builder
+		 */
+		public Builder add(final Object id, final String name, final Position position,
+				final List<Position> neighbors, final double value) {
+			return add(id, name, position, neighbors, value, Double.NaN);
+		}
+
+		/**
+		 * Record the state of a device, together with a value and the device's cost of execution.
+		 * @param id		Identity of the device, which must be the same in every round
+		 * @param name		Name shown for the device
+		 * @param position	Position of the device
+		 * @param neighbors	Positions of the device's neighbors
+		 * @param value		Value computed by the device; NaN or infinite values are treated as missing
+		 * @param cost		Mean time the device takes per cycle, in nanoseconds; NaN if not profiled
+		 * @return this builder
+		 */
+		public Builder add(final Object id, final String name, final Position position,
+				final List<Position> neighbors, final double value, final double cost) {
+			double v = Double.isInfinite(value) ? Double.NaN : value;
+			if (!Double.isNaN(v)) {
+				minValue = Double.isNaN(minValue) ? v : Math.min(minValue, v);
+				maxValue = Double.isNaN(maxValue) ? v : Math.max(maxValue, v);
+			}
+			if (!Double.isNaN(cost)) {
+				minCost = Double.isNaN(minCost) ? cost : Math.min(minCost, cost);
+				maxCost = Double.isNaN(maxCost) ? cost : Math.max(maxCost, cost);
+			}
+			devices.add(new DeviceState(id, name, position, Collections.unmodifiableList(neighbors), v, cost));
+			return this;
+		}
+
+		/** @return the finished snapshot */
+		public SceneSnapshot build() {
+			return new SceneSnapshot(round, devices, minValue, maxValue, minCost, maxCost);
+		}
+	}
+}
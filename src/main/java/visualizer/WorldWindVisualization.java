@@ -6,16 +6,20 @@
 package visualizer;
 
 import gov.nasa.worldwind.Configuration;
+import gov.nasa.worldwind.Factory;
 import gov.nasa.worldwind.Model;
 import gov.nasa.worldwind.WorldWind;
 import gov.nasa.worldwind.WorldWindow;
 import gov.nasa.worldwind.avlist.AVKey;
 import gov.nasa.worldwind.awt.WorldWindowGLCanvas;
+import gov.nasa.worldwind.event.RenderingEvent;
 import gov.nasa.worldwind.event.RenderingExceptionListener;
+import gov.nasa.worldwind.event.RenderingListener;
 import gov.nasa.worldwind.event.SelectEvent;
 import gov.nasa.worldwind.event.SelectListener;
 import gov.nasa.worldwind.exception.WWAbsentRequirementException;
 import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.CompassLayer;
 import gov.nasa.worldwind.layers.Layer;
 import gov.nasa.worldwind.layers.LayerList;
@@ -23,6 +27,7 @@ import gov.nasa.worldwind.layers.RenderableLayer;
 import gov.nasa.worldwind.layers.ViewControlsLayer;
 import gov.nasa.worldwind.layers.ViewControlsSelectListener;
 import gov.nasa.worldwind.layers.WorldMapLayer;
+import gov.nasa.worldwind.render.DrawContext;
 import gov.nasa.worldwind.render.Renderable;
 import gov.nasa.worldwind.symbology.BasicTacticalSymbolAttributes;
 import gov.nasa.worldwind.symbology.SymbologyConstants;
@@ -30,20 +35,31 @@ import gov.nasa.worldwind.symbology.TacticalSymbol;
 import gov.nasa.worldwind.symbology.TacticalSymbolAttributes;
 import gov.nasa.worldwind.symbology.milstd2525.MilStd2525TacticalSymbol;
 import gov.nasa.worldwind.symbology.milstd2525.SymbolCode;
+import gov.nasa.worldwind.util.Logging;
 import gov.nasa.worldwind.util.StatisticsPanel;
 import gov.nasa.worldwind.util.StatusBar;
 import gov.nasa.worldwind.util.WWUtil;
 
+import stream.Flow;
 import visualizer.util.ClickAndGoSelectListener;
+import visualizer.util.ClusteredSymbolLayer;
 import visualizer.util.HighlightController;
 import visualizer.util.LayerPanel;
+import visualizer.util.RedrawGovernor;
+import visualizer.util.ScreenPickIndex;
+import visualizer.util.SpatialPickController;
+import visualizer.util.SpatialRenderableLayer;
+import visualizer.util.SymbolAttributeRamp;
 import visualizer.util.ToolTipController;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.Dimension;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
@@ -55,11 +71,11 @@ import javax.swing.JPanel;
  *
  * @version $Id: ApplicationTemplate.java 1171 2013-02-11 21:45:02Z dcollins $
  */
-public class WorldWindVisualization {
+public class WorldWindVisualization implements Flow.Subscriber<SceneSnapshot> {
 	static {
-		// Set location of config document: note - this may be overridden by a similar statement
-		// in any other class that previously invoked a WorldWind routine
-		System.setProperty("gov.nasa.worldwind.app.config.document", "config/protelisww.xml");
+		// Set location of config document: note - this has no effect if any other class already
+		// invoked a WorldWind routine
+		AppConfiguration.configure();
 
 		// OS-specific graphics customization
         System.setProperty("java.net.useSystemProxies", "true");
@@ -73,10 +89,27 @@ public class WorldWindVisualization {
         }
     }
 
+	/** Layers not needed for the first frame, which are loaded in the background once the window is up */
+	private static final String DEFERRED_LAYERS = "config/protelisdeferredlayers.xml";
+
 	/** Java window where the visualization and controls will appear */
     private final AppFrame frame;
     /** Set of layers specified dynamically by the user rather than in the configuration file */
-	private Map<String,RenderableLayer> extraLayers = new HashMap<>();
+	private Map<String,RenderableLayer> extraLayers = new ConcurrentHashMap<>();
+	/** Names of layers whose symbols are aggregated into clusters when zoomed out */
+	private Set<String> clusteredLayers = new HashSet<>();
+	/** Names of layers whose renderables are kept in a spatial index for frustum culling */
+	private Set<String> indexedLayers = new HashSet<>();
+	/** Most recent scene published by the simulation and not yet applied to the renderables */
+	private final AtomicReference<SceneSnapshot> pendingScene = new AtomicReference<>();
+	/** Renderables for the devices in view; null until {@link #showDevices} is called */
+	private volatile DeviceRenderablePool devicePool = null;
+	/** Markers showing the cost of the devices in view; null until {@link #showCosts} is called */
+	private volatile CostMarkers costMarkers = null;
+	/** Ramp used to show device values through symbol color and size; null to leave symbols unchanged */
+	private volatile SymbolAttributeRamp valueRamp = null;
+	/** Coalesces and paces every redraw of the window */
+	private final RedrawGovernor redrawGovernor;
     
 	/**
 	 * Create a new visualization window.
@@ -85,6 +118,16 @@ public class WorldWindVisualization {
 	 */
     public WorldWindVisualization(final String windowName) {
     	frame = start(windowName,AppFrame.class);
+    	redrawGovernor = new RedrawGovernor(frame.getWwd());
+    	frame.loadDeferredLayers(DEFERRED_LAYERS);
+    	// Published scenes are applied on the render thread, just before each frame is drawn
+    	frame.getWwd().addRenderingListener(new RenderingListener() {
+    		public void stageChanged(final RenderingEvent event) {
+    			if (RenderingEvent.BEFORE_RENDERING.equals(event.getStage())) {
+    				applyPendingScene();
+    			}
+    		}
+    	});
     }
     
     /**
@@ -97,6 +140,42 @@ public class WorldWindVisualization {
     	}
     }
     
+    /**
+     * Declare a set of layers whose tactical symbols will be grouped into zoom-dependent clusters.
+     * Must be called before the layers are first used, e.g., before {@link #orderLayers(String...)}.
+     * @param names  List of layer names
+     */
+    public void clusterLayers(final String ... names) {
+    	for (String n : names) {
+    		clusteredLayers.add(n);
+    	}
+    }
+    
+    /**
+     * Declare a set of layers whose renderables will be kept in a spatial index, so that regions
+     * outside the view are culled as a whole. Must be called before the layers are first used.
+     * @param names  List of layer names
+     */
+    public void indexLayers(final String ... names) {
+    	for (String n : names) {
+    		indexedLayers.add(n);
+    	}
+    }
+    
+    /**
+     * Report how many renderables of an indexed layer were drawn and culled in the last frame.
+     * @param layerName Layer to be queried
+     * @return {drawn, culled}, or null if the layer is not spatially indexed
+     */
+    public int[] getCullingCounts(final String layerName) {
+    	RenderableLayer layer = extraLayers.get(layerName);
+    	if (!(layer instanceof SpatialRenderableLayer)) {
+    		return null;
+    	}
+    	SpatialRenderableLayer indexed = (SpatialRenderableLayer) layer;
+    	return new int[] { indexed.getDrawnCount(), indexed.getCulledCount() };
+    }
+    
     /** 
      * Add a visualization element.
      * @param element	Visualization object to be added
@@ -130,7 +209,128 @@ public class WorldWindVisualization {
      * Inform the visualizer that the simulation has updated, and needs to be re-drawn.
      */
     public void triggerRedraw() {
-    	frame.getWwd().redraw();
+    	refreshIndexedLayers();
+    	redrawGovernor.requestRedraw();
+    }
+    
+    /**
+     * Hand the state of a simulation round to the visualizer and request a redraw.
+     * This never blocks: the snapshot replaces any earlier one that has not yet been drawn,
+     * and is applied to the device renderables by the render thread at the start of its next frame.
+     * @param scene	Snapshot of the device positions and links
+     */
+    public void publishScene(final SceneSnapshot scene) {
+    	pendingScene.set(scene);
+    	redrawGovernor.requestRedraw();
+    }
+    
+    /**
+     * Take every scene offered by a round stream; since {@link #publishScene(SceneSnapshot)} never blocks,
+     * how many scenes are skipped is decided by the buffer policy of the subscription alone.
+     */
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+    	subscription.request(Long.MAX_VALUE);
+    }
+    
+    @Override
+    public void onNext(final SceneSnapshot scene) {
+    	publishScene(scene);
+    }
+    
+    @Override
+    public void onError(final Throwable throwable) {
+    	Logging.logger().warning("Scene stream failed: " + throwable);
+    }
+    
+    @Override
+    public void onComplete() {
+    	// The last scene stays on screen
+    }
+    
+    /** @return frames drawn per second, measured over the last second or so */
+    public double getFps() {
+    	return redrawGovernor.getFps();
+    }
+    
+    /** @return number of redraw requests folded into a redraw that was already outstanding */
+    public long getDroppedRedrawCount() {
+    	return redrawGovernor.getDroppedRequestCount();
+    }
+    
+    /** @return governor through which the window is redrawn, e.g., to tune its pacing */
+    public RedrawGovernor getRedrawGovernor() {
+    	return redrawGovernor;
+    }
+    
+    /**
+     * Show the values carried by published scenes through the color and size of the device symbols.
+     * Each scene is scaled from its smallest to its largest value; devices without a value are drawn in gray.
+     * @param ramp	Attribute ramp to use, or null to stop coloring symbols by value
+     */
+    public void setValueColoring(final SymbolAttributeRamp ramp) {
+    	this.valueRamp = ramp;
+    }
+    
+    /**
+     * Show the devices of published scenes with pooled renderables: only devices in or near the view are
+     * given a symbol and a link visualization, which are recycled as the view moves.
+     * @param symbols		Source of device symbols
+     * @param symbolLayer	Layer for the symbols; if the layer doesn't exist, it will be created
+     * @param linkLayer		Layer for the links; if the layer doesn't exist, it will be created
+     * @param limit			Largest number of devices shown at once
+     */
+    public void showDevices(final DeviceSymbolFactory symbols, final String symbolLayer, final String linkLayer, final int limit) {
+    	devicePool = new DeviceRenderablePool(symbols, ensureLayer(symbolLayer), ensureLayer(linkLayer), limit);
+    }
+    
+    /**
+     * Show the cost of running each device, as measured by a profiler and carried by published scenes, with
+     * a dot colored from blue for the cheapest devices to red for the most expensive. Only devices in or near
+     * the view are shown.
+     * @param layerName	Layer for the dots; if the layer doesn't exist, it will be created
+     * @param limit		Largest number of devices shown at once
+     */
+    public void showCosts(final String layerName, final int limit) {
+    	costMarkers = new CostMarkers(ensureLayer(layerName), limit);
+    }
+    
+    /**
+     * Apply the most recently published scene, if any, and the current view to the device renderables.
+     * Called on the render thread.
+     */
+    private void applyPendingScene() {
+    	SceneSnapshot scene = pendingScene.getAndSet(null);
+    	DeviceRenderablePool pool = devicePool;
+    	CostMarkers costs = costMarkers;
+    	if (pool == null && costs == null) {
+    		return;
+    	}
+    	// The area drawn in the previous frame; the pool's margin covers any camera motion since then
+    	DrawContext dc = frame.getWwd().getSceneController().getDrawContext();
+    	Sector view = dc != null ? dc.getVisibleSector() : null;
+    	if (pool != null) {
+    		pool.update(scene, view, valueRamp);
+    	}
+    	if (costs != null) {
+    		costs.update(scene, view);
+    	}
+    	if (scene != null) {
+    		refreshIndexedLayers();
+    	}
+    }
+    
+    /**
+     * Bring the spatial indices of clustered and indexed layers up to date with their renderables.
+     */
+    private void refreshIndexedLayers() {
+    	for (RenderableLayer layer : extraLayers.values()) {
+    		if (layer instanceof ClusteredSymbolLayer) {
+    			((ClusteredSymbolLayer) layer).refresh();
+    		} else if (layer instanceof SpatialRenderableLayer) {
+    			((SpatialRenderableLayer) layer).refresh();
+    		}
+    	}
     }
     
     /**
@@ -138,7 +338,20 @@ public class WorldWindVisualization {
      */
     private RenderableLayer ensureLayer(final String layerName) {
     	if (!extraLayers.containsKey(layerName)) {
-    		RenderableLayer newLayer = new RenderableLayer();
+    		RenderableLayer newLayer;
+    		if (clusteredLayers.contains(layerName)) {
+    			// Symbols are resolved under the cursor on the CPU, skipping the GL pick pass
+    			ScreenPickIndex pickIndex = new ScreenPickIndex();
+    			frame.getPickController().addIndex(pickIndex);
+    			ClusteredSymbolLayer clustered = new ClusteredSymbolLayer();
+    			clustered.setPickIndex(pickIndex);
+    			newLayer = clustered;
+    		} else if (indexedLayers.contains(layerName)) {
+    			newLayer = new SpatialRenderableLayer();
+    			newLayer.setPickEnabled(false);
+    		} else {
+    			newLayer = new RenderableLayer();
+    		}
     		insertBeforeCompass(frame.getWwd(), newLayer);
     		extraLayers.put(layerName, newLayer);
     	}
@@ -230,8 +443,9 @@ public class WorldWindVisualization {
 		private static final long serialVersionUID = 8394322655971367590L;
 		private WorldWindow wwd;
 	    private StatusBar statusBar;
-//	    private ToolTipController toolTipController;
-//	    private HighlightController highlightController;
+	    private ToolTipController toolTipController;
+	    private HighlightController highlightController;
+	    private SpatialPickController pickController;
 	
 	    public AppPanel(final Dimension canvasSize, final boolean includeStatusBar) {
 	        super(new BorderLayout());
@@ -253,11 +467,11 @@ public class WorldWindVisualization {
 	            this.statusBar.setEventSource(wwd);
 	        }
 	
-	        // Add controllers to manage highlighting and tool tips.
-	        //this.toolTipController = 
-	        		new ToolTipController(this.getWwd(), AVKey.DISPLAY_NAME, null);
-	        //this.highlightController = 
-	        		new HighlightController(this.getWwd(), SelectEvent.ROLLOVER);
+	        // Add controllers to manage highlighting and tool tips, fed through a controller that
+	        // resolves simulation layers from CPU-side pick indices.
+	        this.toolTipController = new ToolTipController(this.getWwd(), AVKey.DISPLAY_NAME, null);
+	        this.highlightController = new HighlightController(this.getWwd(), SelectEvent.ROLLOVER);
+	        this.pickController = new SpatialPickController(this.getWwd(), toolTipController, highlightController);
 	    }
 	
 	    protected WorldWindow createWorldWindow() {
@@ -268,6 +482,10 @@ public class WorldWindVisualization {
 	        return wwd;
 	    }
 	
+	    public SpatialPickController getPickController() {
+	        return pickController;
+	    }
+	
 //	    public StatusBar getStatusBar() {
 //	        return statusBar;
 //	    }
@@ -341,6 +559,60 @@ public class WorldWindVisualization {
 	        this.setResizable(true);
 	    }
 	
+	    /**
+	     * Create the layers of a layer list on a background thread, then add them just below the world map.
+	     * @param configSource	Layer list document
+	     */
+	    public void loadDeferredLayers(final String configSource) {
+	        Thread loader = new Thread(new Runnable() {
+	            public void run() {
+	                final LayerList deferred = new LayerList();
+	                try {
+	                    Factory factory = (Factory) WorldWind.createConfigurationComponent(AVKey.LAYER_FACTORY);
+	                    Object created = factory.createFromConfigSource(configSource, null);
+	                    if (created instanceof LayerList) {
+	                        deferred.addAll((LayerList) created);
+	                    } else if (created instanceof LayerList[]) {
+	                        for (LayerList list : (LayerList[]) created) {
+	                            deferred.addAll(list);
+	                        }
+	                    }
+	                } catch (Exception e) {
+	                    Logging.logger().warning("Unable to load layers from " + configSource + ": " + e.getMessage());
+	                    return;
+	                }
+	                java.awt.EventQueue.invokeLater(new Runnable() {
+	                    public void run() {
+	                        addDeferredLayers(deferred);
+	                    }
+	                });
+	            }
+	        }, "deferred-layers");
+	        loader.setDaemon(true);
+	        loader.start();
+	    }
+
+	    private void addDeferredLayers(final LayerList deferred) {
+	        LayerList layers = this.getWwd().getModel().getLayers();
+	        int position = layers.size();
+	        for (Layer l : layers) {
+	            if (l instanceof WorldMapLayer) {
+	                position = layers.indexOf(l);
+	                break;
+	            }
+	        }
+	        for (Layer layer : deferred) {
+	            layers.add(position++, layer);
+	            if (layer instanceof SelectListener) {
+	                this.getWwd().addSelectListener((SelectListener) layer);
+	            }
+	        }
+	        if (this.layerPanel != null) {
+	            this.layerPanel.update(this.getWwd());
+	        }
+	        RedrawGovernor.redraw(this.getWwd());
+	    }
+
 	    protected AppPanel createAppPanel(final Dimension size, final boolean statusBar) {
 	        return new AppPanel(size, statusBar);
 	    }
@@ -349,6 +621,10 @@ public class WorldWindVisualization {
 	        return this.wwjPanel.getWwd();
 	    }
 	
+	    public SpatialPickController getPickController() {
+	        return this.wwjPanel.getPickController();
+	    }
+	
 //	    public Dimension getCanvasSize() {
 //	        return canvasSize;
 //	    }
@@ -0,0 +1,205 @@
+package visualizer.tiles;
+
+import gov.nasa.worldwind.Configuration;
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.util.Logging;
+import gov.nasa.worldwind.util.OGLUtil;
+import gov.nasa.worldwind.util.WWIO;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jogamp.opengl.util.texture.TextureData;
+
+/**
+ * Read-only store of imagery tiles packed into a single memory-mapped file, so that tiled image layers
+ * can be drawn without any network access.
+ *
+ * A pack is written by {@link TilePackBuilder} and consists of a header, an index mapping each tile's
+ * path in the WorldWind file cache (e.g., "Earth/Bing/5/12/12_40.png") to its offset in the file and
+ * its length, and the encoded tile images. The index is read into memory when the pack is opened; the
+ * images are read from the mapping, and decoded images are kept in a least-recently-used cache of
+ * bounded size so that tiles evicted from the GPU are not decoded again when they come back into view.
+ *
+ * The pack used by the imagery layers is named by the {@link #FILE_KEY} configuration property.
+ */
+public class TilePack {
+	/** Configuration property naming the pack file */
+	public static final String FILE_KEY = "visualizer.tiles.TilePackFile";
+	/** Configuration property which, when true, puts WorldWind in offline mode if the pack is present */
+	public static final String OFFLINE_KEY = "visualizer.tiles.Offline";
+	/** Configuration property giving the size of the decoded tile cache, in megabytes */
+	public static final String CACHE_SIZE_KEY = "visualizer.tiles.CacheSize";
+
+	static final int MAGIC = 0x54504B31; // "TPK1"
+	/** Size of each mapped segment of the file; the builder never lets a tile cross a segment boundary */
+	static final long SEGMENT_SIZE = 1L << 30;
+	private static final long DEFAULT_CACHE_SIZE = 256;
+
+	/** Location of one tile in the file */
+	private static class Entry {
+		private final long offset;
+		private final int length;
+
+		private Entry(final long offset, final int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static TilePack instance = null;
+	private static boolean instanceLoaded = false;
+
+	private final File file;
+	private final Map<String,Entry> index;
+	private final MappedByteBuffer[] segments;
+	private final long maxCacheBytes;
+	private long cacheBytes = 0;
+	/** Decoded tiles, in order of last use */
+	private final LinkedHashMap<String,TextureData> cache = new LinkedHashMap<>(256, 0.75f, true);
+
+	/**
+	 * Open a pack.
+	 * @param file			Pack file
+	 * @param maxCacheBytes	Budget for decoded tiles kept in memory, in bytes
+	 * @throws IOException if the file cannot be read or is not a tile pack
+	 */
+	public TilePack(final File file, final long maxCacheBytes) throws IOException {
+		this.file = file;
+		this.maxCacheBytes = maxCacheBytes;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a tile pack");
+			}
+			int count = in.readInt();
+			index = new HashMap<>(count * 4 / 3 + 1);
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				long offset = in.readLong();
+				int length = in.readInt();
+				index.put(key, new Entry(offset, length));
+			}
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int s = 0; s < segments.length; s++) {
+				long start = s * SEGMENT_SIZE;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+			}
+		}
+	}
+
+	/**
+	 * Get the pack configured for this application, opening it on first use.
+	 * @return the configured pack, or null if none is configured or it cannot be opened
+	 */
+	public static synchronized TilePack getInstance() {
+		if (!instanceLoaded) {
+			instanceLoaded = true;
+			String path = Configuration.getStringValue(FILE_KEY);
+			if (path != null && new File(path).isFile()) {
+				try {
+					long megabytes = Configuration.getLongValue(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE);
+					instance = new TilePack(new File(path), megabytes << 20);
+					Logging.logger().info("Serving " + instance.size() + " imagery tiles from " + path);
+					if (Configuration.getBooleanValue(OFFLINE_KEY, Boolean.FALSE)) {
+						WorldWind.setOfflineMode(true);
+					}
+				} catch (IOException e) {
+					Logging.logger().warning("Unable to open tile pack " + path + ": " + e.getMessage());
+				}
+			}
+		}
+		return instance;
+	}
+
+	/** @return the pack file */
+	public File getFile() {
+		return file;
+	}
+
+	/** @return number of tiles in the pack */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * @param path	Path of a tile in the WorldWind file cache
+	 * @return whether the pack holds the tile
+	 */
+	public boolean contains(final String path) {
+		return index.containsKey(path);
+	}
+
+	/**
+	 * Get the decoded image of a tile, decoding it if it is not already cached.
+	 * @param path		Path of the tile in the WorldWind file cache
+	 * @param mipmap	Whether the texture should have mipmaps
+	 * @return decoded tile, or null if the pack does not hold it or it cannot be decoded
+	 */
+	public TextureData getTextureData(final String path, final boolean mipmap) {
+		synchronized (cache) {
+			TextureData cached = cache.get(path);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		Entry e = index.get(path);
+		if (e == null) {
+			return null;
+		}
+		TextureData data;
+		try (InputStream in = WWIO.getInputStreamFromByteBuffer(slice(e))) {
+			data = OGLUtil.newTextureData(Configuration.getMaxCompatibleGLProfile(), in, mipmap);
+		} catch (IOException ex) {
+			Logging.logger().warning("Unable to decode tile " + path + " from " + file + ": " + ex.getMessage());
+			return null;
+		}
+		if (data != null) {
+			cache(path, data);
+		}
+		return data;
+	}
+
+	private ByteBuffer slice(final Entry e) {
+		// Duplicate so that concurrent readers do not share a position
+		ByteBuffer buffer = segments[(int) (e.offset / SEGMENT_SIZE)].duplicate();
+		int start = (int) (e.offset % SEGMENT_SIZE);
+		buffer.position(start);
+		buffer.limit(start + e.length);
+		return buffer.slice();
+	}
+
+	private void cache(final String path, final TextureData data) {
+		synchronized (cache) {
+			TextureData previous = cache.put(path, data);
+			if (previous != null) {
+				cacheBytes -= previous.getEstimatedMemorySize();
+			}
+			cacheBytes += data.getEstimatedMemorySize();
+			Iterator<TextureData> eldest = cache.values().iterator();
+			while (cacheBytes > maxCacheBytes && eldest.hasNext()) {
+				TextureData evicted = eldest.next();
+				if (evicted == data) {
+					break;
+				}
+				cacheBytes -= evicted.getEstimatedMemorySize();
+				eldest.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package visualizer.tiles;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds a {@link TilePack} from a directory of tiles laid out like the WorldWind file cache, e.g.,
+ * the cache of a machine that has already browsed the area of interest with network access.
+ *
+ * Usage: <code>TilePackBuilder TILE_DIRECTORY PACK_FILE</code>
+ */
+public class TilePackBuilder {
+	private static final String[] SUFFIXES = { ".dds", ".png", ".jpg", ".jpeg", ".gif", ".bmp" };
+
+	private final File root;
+	private final List<String> paths = new ArrayList<>();
+
+	/**
+	 * @param root	Directory holding the tiles; tiles are keyed by their path relative to this directory
+	 */
+	public TilePackBuilder(final File root) {
+		this.root = root;
+	}
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: TilePackBuilder TILE_DIRECTORY PACK_FILE");
+			System.exit(1);
+		}
+		TilePackBuilder builder = new TilePackBuilder(new File(args[0]));
+		int count = builder.write(new File(args[1]));
+		System.out.println("Packed " + count + " tiles into " + args[1]);
+	}
+
+	/**
+	 * Write every tile found under the root directory into a pack.
+	 * @param pack	File to write
+	 * @return number of tiles written
+	 * @throws IOException if a tile cannot be read or the pack cannot be written
+	 */
+	public int write(final File pack) throws IOException {
+		paths.clear();
+		scan(root, "");
+		Collections.sort(paths);
+
+		// Lay out the data section, starting a new mapped segment whenever a tile would straddle one
+		long position = 8;
+		for (String path : paths) {
+			position += 2 + path.getBytes(StandardCharsets.UTF_8).length + 12;
+		}
+		long[] offsets = new long[paths.size()];
+		int[] lengths = new int[paths.size()];
+		for (int i = 0; i < paths.size(); i++) {
+			long length = new File(root, paths.get(i)).length();
+			if (length >= TilePack.SEGMENT_SIZE) {
+				throw new IOException("Tile " + paths.get(i) + " is too large");
+			}
+			if (position % TilePack.SEGMENT_SIZE + length > TilePack.SEGMENT_SIZE) {
+				position += TilePack.SEGMENT_SIZE - position % TilePack.SEGMENT_SIZE;
+			}
+			offsets[i] = position;
+			lengths[i] = (int) length;
+			position += length;
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pack), 1 << 16))) {
+			out.writeInt(TilePack.MAGIC);
+			out.writeInt(paths.size());
+			// DataOutputStream.size() overflows past 2GB, so count the bytes written here
+			long written = 8;
+			for (int i = 0; i < paths.size(); i++) {
+				out.writeUTF(paths.get(i));
+				out.writeLong(offsets[i]);
+				out.writeInt(lengths[i]);
+				written += 2 + paths.get(i).getBytes(StandardCharsets.UTF_8).length + 12;
+			}
+			for (int i = 0; i < paths.size(); i++) {
+				for (; written < offsets[i]; written++) {
+					out.write(0);
+				}
+				byte[] bytes = Files.readAllBytes(new File(root, paths.get(i)).toPath());
+				if (bytes.length != lengths[i]) {
+					throw new IOException("Tile " + paths.get(i) + " changed while packing");
+				}
+				out.write(bytes);
+				written += bytes.length;
+			}
+		}
+		return paths.size();
+	}
+
+	private void scan(final File dir, final String prefix) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				scan(f, prefix + f.getName() + "/");
+			} else if (isTile(f.getName())) {
+				paths.add(prefix + f.getName());
+			}
+		}
+	}
+
+	private static boolean isTile(final String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		for (String suffix : SUFFIXES) {
+			if (lower.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,42 @@
+package visualizer.tiles;
+
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.avlist.AVList;
+import gov.nasa.worldwind.layers.BasicTiledImageLayer;
+import gov.nasa.worldwind.layers.TextureTile;
+
+import org.w3c.dom.Element;
+
+import com.jogamp.opengl.util.texture.TextureData;
+
+/**
+ * Tiled image layer that takes tiles missing from the WorldWind file cache from the configured
+ * {@link TilePack} before trying to download them.
+ */
+public class TilePackImageLayer extends BasicTiledImageLayer {
+	public TilePackImageLayer(final Element domElement, final AVList params) {
+		super(domElement, params);
+	}
+
+	@Override
+	protected void retrieveTexture(final TextureTile tile, final DownloadPostProcessor postProcessor) {
+		TilePack pack = TilePack.getInstance();
+		TextureData data = pack == null ? null : pack.getTextureData(tile.getPath(), isUseMipMaps());
+		if (data == null) {
+			super.retrieveTexture(tile, postProcessor);
+			return;
+		}
+		tile.setTextureData(data);
+		if (tile.getLevelNumber() != 0 || !isRetainLevelZeroTiles()) {
+			addTileToCache(tile);
+		}
+		getLevels().unmarkResourceAbsent(tile);
+		firePropertyChange(AVKey.LAYER, null, this);
+	}
+
+	/** Service metadata is not needed when tiles come from a pack, and fetching it would stall on an offline machine */
+	@Override
+	protected boolean isRetrieveResources() {
+		return TilePack.getInstance() == null && super.isRetrieveResources();
+	}
+}
@@ -0,0 +1,31 @@
+package visualizer.tiles;
+
+import gov.nasa.worldwind.avlist.AVList;
+import gov.nasa.worldwind.layers.BasicLayerFactory;
+import gov.nasa.worldwind.layers.Layer;
+import gov.nasa.worldwind.util.WWXML;
+
+import org.w3c.dom.Element;
+
+/**
+ * Layer factory that creates tiled image layers able to draw from the configured {@link TilePack}.
+ * It is installed through the <code>gov.nasa.worldwind.avkey.LayerFactory</code> configuration property,
+ * so the layer definitions in <code>config/protelislayers.xml</code> need no change.
+ */
+public class TilePackLayerFactory extends BasicLayerFactory {
+	@Override
+	protected Layer createTiledImageLayer(final Element domElement, final AVList params) {
+		String serviceName = WWXML.getText(domElement, "Service/@serviceName");
+		Layer layer;
+		if ("Offline".equals(serviceName) || "WWTileService".equals(serviceName)) {
+			layer = new TilePackImageLayer(domElement, params);
+		} else if ("OGC:WMS".equals(serviceName)) {
+			layer = new TilePackWMSLayer(domElement, params);
+		} else {
+			return super.createTiledImageLayer(domElement, params);
+		}
+		String actuate = WWXML.getText(domElement, "@actuate");
+		layer.setEnabled(actuate != null && actuate.equals("onLoad"));
+		return layer;
+	}
+}
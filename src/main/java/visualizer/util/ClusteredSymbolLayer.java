@@ -0,0 +1,373 @@
+package visualizer.util;
+
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.layers.RenderableLayer;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.Material;
+import gov.nasa.worldwind.render.PointPlacemark;
+import gov.nasa.worldwind.render.PointPlacemarkAttributes;
+import gov.nasa.worldwind.render.Renderable;
+import gov.nasa.worldwind.symbology.TacticalSymbol;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Level-of-detail layer for large numbers of tactical symbols.
+ *
+ * Symbols are indexed in a geographic quadtree: level L divides the globe into 2^L x 2^L cells,
+ * and each symbol is recorded in exactly one cell per level. When drawing, a level is chosen
+ * from the view altitude so that a cell covers roughly {@link #getClusterPixels()} pixels on screen;
+ * cells containing a single symbol draw that symbol, while all others are drawn as one aggregate
+ * glyph labeled with the number of symbols it contains.
+ *
+ * Groups of devices too numerous to be given a symbol each can be filed as {@link Aggregate}s, which
+ * count for their number of devices in the cells they fall in but are only ever drawn as part of a glyph.
+ *
+ * The index is updated incrementally by {@link #refresh()}: a symbol that has moved is only
+ * re-filed at the levels whose cell it has actually left. The renderables drawn are selected again only
+ * when the index has changed or the view calls for another level, so frames that merely move the camera
+ * reuse the previous selection. Index updates and frame selection are synchronized, so the simulation may
+ * refresh the layer while the GL thread is drawing it.
+ */
+public class ClusteredSymbolLayer extends RenderableLayer {
+	/** Finest quadtree level: cells are a few meters across */
+	public static final int MAX_LEVEL = 24;
+	/** Default on-screen cluster size, in pixels */
+	private static final int DEFAULT_CLUSTER_PIXELS = 40;
+	/** Approximate length of one degree of latitude, used to convert pixel size to cell size */
+	private static final double METERS_PER_DEGREE = 111320;
+
+	/** A number of devices shown only as part of a glyph, at their centroid */
+	public static final class Aggregate {
+		private final Position position;
+		private final int count;
+		private final long[] keys = new long[MAX_LEVEL + 1];
+
+		/**
+		 * @param position	Centroid of the devices
+		 * @param count		Number of devices, at least one
+		 */
+		public Aggregate(final Position position, final int count) {
+			this.position = position;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * One cell of the quadtree, tracking how many devices are inside it, how many of them have a symbol,
+	 * and where they are on average
+	 */
+	private static class Cluster {
+		private int count = 0, symbols = 0;
+		private double sumLat = 0, sumLon = 0, sumElevation = 0;
+		/** Aggregate glyph, created the first time the cluster is drawn */
+		private PointPlacemark glyph;
+
+		private void add(final Position p, final int weight) {
+			count += weight;
+			sumLat += weight * p.getLatitude().degrees;
+			sumLon += weight * p.getLongitude().degrees;
+			sumElevation += weight * p.getElevation();
+		}
+
+		private void remove(final Position p, final int weight) {
+			count -= weight;
+			sumLat -= weight * p.getLatitude().degrees;
+			sumLon -= weight * p.getLongitude().degrees;
+			sumElevation -= weight * p.getElevation();
+		}
+	}
+
+	/** Indexing state of one symbol: the position it was filed at and its cell key at each level */
+	private static class Entry {
+		private Position position;
+		private final long[] keys = new long[MAX_LEVEL + 1];
+	}
+
+	/** Cells of each quadtree level, by cell key */
+	private final List<Map<Long,Cluster>> levels = new ArrayList<>();
+	/** Indexing state of each symbol in the layer */
+	private final Map<TacticalSymbol,Entry> entries = new IdentityHashMap<>();
+	/** Aggregates filed in the index */
+	private final List<Aggregate> aggregates = new ArrayList<>();
+	/** Attributes shared by all aggregate glyphs */
+	private final PointPlacemarkAttributes glyphAttributes = new PointPlacemarkAttributes();
+	private int clusterPixels = DEFAULT_CLUSTER_PIXELS;
+	/** Screen-space index of the symbols and glyphs drawn, if picking is resolved on the CPU */
+	private ScreenPickIndex pickIndex = null;
+
+	/** Advanced whenever a cell of the index changes */
+	private long version = 0;
+	// Determined only when the index version or the selected level changes
+	private long activeVersion = -1L;
+	private int activeLevel = -1;
+	private final List<Renderable> active = new ArrayList<>();
+
+	public ClusteredSymbolLayer() {
+		for (int level = 0; level <= MAX_LEVEL; level++) {
+			levels.add(new HashMap<Long,Cluster>());
+		}
+		glyphAttributes.setUsePointAsDefaultImage(true);
+		glyphAttributes.setScale(12d);
+		glyphAttributes.setImageColor(new Color(0.3f, 0.5f, 1f, 0.8f));
+		glyphAttributes.setLabelMaterial(Material.WHITE);
+		glyphAttributes.setLabelScale(0.9);
+	}
+
+	/** @return approximate on-screen size of a cluster, in pixels */
+	public int getClusterPixels() {
+		return clusterPixels;
+	}
+
+	/**
+	 * Set the approximate on-screen size of a cluster: symbols closer than this are aggregated.
+	 * @param clusterPixels	cluster size, in pixels
+	 */
+	public void setClusterPixels(final int clusterPixels) {
+		this.clusterPixels = clusterPixels;
+	}
+
+	/**
+	 * Resolve picking of this layer's symbols and glyphs on the CPU rather than through the GL pick pass.
+	 * The index is rebuilt every frame the layer is drawn, and GL picking of the layer is disabled.
+	 * @param pickIndex	index to be maintained, or null to return to GL picking
+	 */
+	public void setPickIndex(final ScreenPickIndex pickIndex) {
+		if (this.pickIndex != null) {
+			this.pickIndex.clear();
+		}
+		this.pickIndex = pickIndex;
+		this.setPickEnabled(pickIndex == null);
+	}
+
+	@Override
+	public void setEnabled(final boolean enabled) {
+		super.setEnabled(enabled);
+		if (!enabled && pickIndex != null) {
+			pickIndex.clear();
+		}
+	}
+
+	@Override
+	public synchronized void addRenderable(final Renderable renderable) {
+		super.addRenderable(renderable);
+		if (renderable instanceof TacticalSymbol) {
+			index((TacticalSymbol) renderable);
+		}
+	}
+
+	@Override
+	public synchronized void addRenderable(final int index, final Renderable renderable) {
+		super.addRenderable(index, renderable);
+		if (renderable instanceof TacticalSymbol) {
+			index((TacticalSymbol) renderable);
+		}
+	}
+
+	@Override
+	public synchronized void removeRenderable(final Renderable renderable) {
+		super.removeRenderable(renderable);
+		Entry e = entries.remove(renderable);
+		if (e != null) {
+			for (int level = 0; level <= MAX_LEVEL; level++) {
+				leave(level, e.keys[level], e.position, 1, true);
+			}
+			version++;
+		}
+	}
+
+	@Override
+	public synchronized void removeAllRenderables() {
+		super.removeAllRenderables();
+		entries.clear();
+		aggregates.clear();
+		for (Map<Long,Cluster> cells : levels) {
+			cells.clear();
+		}
+		version++;
+	}
+
+	/**
+	 * Replace the aggregates filed in the index.
+	 * @param replacement	New aggregates, possibly none
+	 */
+	public synchronized void setAggregates(final List<Aggregate> replacement) {
+		if (aggregates.isEmpty() && replacement.isEmpty()) {
+			return;
+		}
+		version++;
+		for (Aggregate a : aggregates) {
+			for (int level = 0; level <= MAX_LEVEL; level++) {
+				leave(level, a.keys[level], a.position, a.count, false);
+			}
+		}
+		aggregates.clear();
+		for (Aggregate a : replacement) {
+			for (int level = 0; level <= MAX_LEVEL; level++) {
+				a.keys[level] = cellKey(a.position, level);
+				enter(level, a.keys[level], a.position, a.count, false);
+			}
+			aggregates.add(a);
+		}
+	}
+
+	/**
+	 * Bring the index up to date with the current positions of the symbols.
+	 * Only symbols that have moved are touched, and only at the levels where they changed cells.
+	 */
+	public synchronized void refresh() {
+		for (Map.Entry<TacticalSymbol,Entry> me : entries.entrySet()) {
+			Position p = me.getKey().getPosition();
+			Entry e = me.getValue();
+			if (p.equals(e.position)) {
+				continue;
+			}
+			// Quadtree cells nest, so once a level keeps its cell, every coarser level does as well
+			int level = MAX_LEVEL;
+			for (; level >= 0; level--) {
+				long key = cellKey(p, level);
+				if (key == e.keys[level]) {
+					break;
+				}
+				leave(level, e.keys[level], e.position, 1, true);
+				enter(level, key, p, 1, true);
+				e.keys[level] = key;
+			}
+			// Levels that kept their cell only need the centroid moved
+			for (; level >= 0; level--) {
+				Cluster c = levels.get(level).get(e.keys[level]);
+				c.remove(e.position, 1);
+				c.add(p, 1);
+			}
+			e.position = p;
+			version++;
+		}
+	}
+
+	@Override
+	protected void doPreRender(final DrawContext dc) {
+		super.doPreRender(dc, selectRenderables(dc));
+	}
+
+	@Override
+	protected void doPick(final DrawContext dc, final Point point) {
+		super.doPick(dc, selectRenderables(dc), point);
+	}
+
+	@Override
+	protected void doRender(final DrawContext dc) {
+		List<Renderable> visible = selectRenderables(dc);
+		if (pickIndex != null) {
+			pickIndex.rebuild(dc, visible);
+		}
+		super.doRender(dc, visible);
+	}
+
+	/**
+	 * Determine which individual symbols and aggregate glyphs are to be drawn this frame.
+	 * @param dc Current draw context
+	 * @return renderables for the current frame
+	 */
+	protected synchronized List<Renderable> selectRenderables(final DrawContext dc) {
+		int level = selectLevel(dc);
+		if (level == activeLevel && version == activeVersion) {
+			return active;
+		}
+		activeLevel = level;
+		activeVersion = version;
+		active.clear();
+
+		Map<Long,Cluster> cells = levels.get(level);
+		for (Map.Entry<TacticalSymbol,Entry> me : entries.entrySet()) {
+			if (level == MAX_LEVEL || cells.get(me.getValue().keys[level]).count == 1) {
+				active.add(me.getKey());
+			}
+		}
+		for (Cluster c : cells.values()) {
+			if (level < MAX_LEVEL && c.count > 1) {
+				active.add(glyphFor(c, c.count));
+			} else if (c.count > c.symbols) {
+				// Symbols drawn one by one, next to aggregated devices that have none
+				active.add(glyphFor(c, c.count - c.symbols));
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Pick the quadtree level whose cells cover about {@link #clusterPixels} on screen at the current view altitude.
+	 * @param dc Current draw context
+	 * @return level between 0 and {@link #MAX_LEVEL}
+	 */
+	protected int selectLevel(final DrawContext dc) {
+		double altitude = Math.max(1, dc.getView().getEyePosition().getElevation());
+		double cellDegrees = clusterPixels * dc.getView().computePixelSizeAtDistance(altitude) / METERS_PER_DEGREE;
+		int level = (int) Math.floor(Math.log(360 / cellDegrees) / Math.log(2));
+		return Math.max(0, Math.min(MAX_LEVEL, level));
+	}
+
+	private PointPlacemark glyphFor(final Cluster c, final int count) {
+		Position centroid = Position.fromDegrees(c.sumLat / c.count, c.sumLon / c.count, c.sumElevation / c.count);
+		if (c.glyph == null) {
+			c.glyph = new PointPlacemark(centroid);
+			c.glyph.setAltitudeMode(WorldWind.ABSOLUTE);
+			c.glyph.setAttributes(glyphAttributes);
+		} else {
+			c.glyph.setPosition(centroid);
+		}
+		c.glyph.setLabelText(Integer.toString(count));
+		return c.glyph;
+	}
+
+	private void index(final TacticalSymbol symbol) {
+		Entry e = new Entry();
+		e.position = symbol.getPosition();
+		for (int level = 0; level <= MAX_LEVEL; level++) {
+			e.keys[level] = cellKey(e.position, level);
+			enter(level, e.keys[level], e.position, 1, true);
+		}
+		entries.put(symbol, e);
+		version++;
+	}
+
+	private void enter(final int level, final long key, final Position p, final int weight, final boolean symbol) {
+		Map<Long,Cluster> cells = levels.get(level);
+		Cluster c = cells.get(key);
+		if (c == null) {
+			c = new Cluster();
+			cells.put(key, c);
+		}
+		c.add(p, weight);
+		c.symbols += symbol ? 1 : 0;
+	}
+
+	private void leave(final int level, final long key, final Position p, final int weight, final boolean symbol) {
+		Map<Long,Cluster> cells = levels.get(level);
+		Cluster c = cells.get(key);
+		c.remove(p, weight);
+		c.symbols -= symbol ? 1 : 0;
+		if (c.count == 0) {
+			cells.remove(key);
+		}
+	}
+
+	/**
+	 * Compute the key of the cell containing a position at a given quadtree level.
+	 * @param p		position to locate
+	 * @param level	quadtree level
+	 * @return row and column of the cell, packed into a long
+	 */
+	private static long cellKey(final Position p, final int level) {
+		long cells = 1L << level;
+		long row = Math.min(cells - 1, (long) ((p.getLatitude().degrees + 90) / 180 * cells));
+		long col = Math.min(cells - 1, (long) ((p.getLongitude().degrees + 180) / 360 * cells));
+		return (row << 32) | col;
+	}
+}
@@ -141,7 +141,7 @@ public class LayerPanel extends JPanel
             else
                 this.layer.setEnabled(false);
 
-            wwd.redraw();
+            RedrawGovernor.redraw(wwd);
         }
     }
 }
@@ -3,16 +3,19 @@ package visualizer.util;
 import gov.nasa.worldwind.WorldWind;
 import gov.nasa.worldwind.geom.Extent;
 import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.geom.Sphere;
 import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
 import gov.nasa.worldwind.pick.PickSupport;
 import gov.nasa.worldwind.render.DrawContext;
 import gov.nasa.worldwind.render.OrderedRenderable;
 
 import java.awt.Color;
 import java.awt.Point;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import com.jogamp.opengl.GL2;
 
@@ -22,24 +25,64 @@ import com.jogamp.opengl.GL2;
  * Derived on the cube example in the WorldWind examples package by pabercrombie.
  * The cube example is Copyright NASA, under the licensing of WorldWind
  */
-public class NetworkConnectionVisualization implements OrderedRenderable {
-    /** Geographic position of the device. */
-    private Position position;
-    /** Geographic positions of neighbors */
-    private Iterable<Position> neighbors;
+public class NetworkConnectionVisualization implements OrderedRenderable, SectorBounded {
+    /**
+     * Immutable simulation state of the device: it is replaced as a whole on every update, so that
+     * the render thread never sees a position from one update combined with neighbors from another.
+     */
+    private static final class State {
+        /** Geographic position of the device. */
+        private final Position position;
+        /** Geographic positions of neighbors */
+        private final List<Position> neighbors;
+        /** Simulation-state version, advanced whenever the position or neighbors change */
+        private final long version;
+
+        private State(final Position position, final List<Position> neighbors, final long version) {
+            this.position = position;
+            this.neighbors = neighbors;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Immutable Cartesian geometry computed from a {@link State}, valid for one globe and vertical exaggeration.
+     */
+    private static final class Geometry {
+        private final long version;
+        private final double exaggeration;
+        private final Globe globe;
+        private final Position position;
+        /** Cartesian position of the device */
+        private final Vec4 placePoint;
+        /** Cartesian positions of neighbors */
+        private final Vec4[] nbrPoints;
+        private final Extent extent;
+
+        private Geometry(final State state, final DrawContext dc, final Vec4 placePoint, final Vec4[] nbrPoints, final Extent extent) {
+            this.version = state.version;
+            this.exaggeration = dc.getVerticalExaggeration();
+            this.globe = dc.getGlobe();
+            this.position = state.position;
+            this.placePoint = placePoint;
+            this.nbrPoints = nbrPoints;
+            this.extent = extent;
+        }
+    }
+
+    /** Most recently published simulation state */
+    private volatile State state;
     
     /** Support object to help with pick resolution. */
     private PickSupport pickSupport = new PickSupport();
 
     // Determined each frame
     private long frameTimestamp = -1L;
-    /** Cartesian position of the device, computed from {@link #position}. */
-    private Vec4 placePoint;
-    /** Cartesian positions of neighbors, computed from {@link #neighbors} */
-    private Set<Vec4> nbrPoints = new HashSet<>();
     /** Distance from the eye point to the device. */
     private double eyeDistance;
-    private Extent extent;
+
+    // Determined only when the simulation state or the globe geometry changes
+    private Geometry geometry;
 
     /**
      * Create a visualization of the network connections of one device.  
@@ -49,8 +92,7 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
      * @param nbrs	Position of the devices it communicates with
      */
     public NetworkConnectionVisualization(final Position pos, final Iterable<Position> nbrs) {
-        this.position = pos;
-        this.neighbors = nbrs;
+        this.state = new State(pos, copyOf(nbrs), 0);
     }
     
     /** 
@@ -58,7 +100,10 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
      * @param pos	new position
      */
     public void setPosition(final Position pos) {
-    	this.position = pos;
+    	State s = this.state;
+    	if (!pos.equals(s.position)) {
+    		this.state = new State(pos, s.neighbors, s.version + 1);
+    	}
     }
     
     /** 
@@ -66,7 +111,72 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
      * @param nbrs	collection of new positions
      */
     public void setNeighbors(final Iterable<Position> nbrs) {
-    	this.neighbors = nbrs;
+    	State s = this.state;
+    	if (!sameNeighbors(s.neighbors, nbrs)) {
+    		this.state = new State(s.position, copyOf(nbrs), s.version + 1);
+    	}
+    }
+    
+    /**
+     * Update the position of a device and its neighbors together, so that they are always drawn consistently.
+     * @param pos	new position
+     * @param nbrs	collection of new neighbor positions
+     */
+    public void setState(final Position pos, final Iterable<Position> nbrs) {
+    	State s = this.state;
+    	if (!pos.equals(s.position) || !sameNeighbors(s.neighbors, nbrs)) {
+    		this.state = new State(pos, copyOf(nbrs), s.version + 1);
+    	}
+    }
+
+    /** @return whether the neighbor positions are those already held, in the same order */
+    private static boolean sameNeighbors(final List<Position> current, final Iterable<Position> nbrs) {
+    	int i = 0;
+    	for (Position nbr : nbrs) {
+    		if (i == current.size() || !nbr.equals(current.get(i))) {
+    			return false;
+    		}
+    		i++;
+    	}
+    	return i == current.size();
+    }
+
+    private static List<Position> copyOf(final Iterable<Position> nbrs) {
+    	List<Position> copy = new ArrayList<>();
+    	for (Position nbr : nbrs) {
+    		copy.add(nbr);
+    	}
+    	return Collections.unmodifiableList(copy);
+    }
+
+    @Override
+    public Sector getSector() {
+    	State s = this.state;
+    	Position position = s.position;
+    	double minLat = position.getLatitude().degrees, maxLat = minLat;
+    	double minLon = position.getLongitude().degrees, maxLon = minLon;
+    	for (Position nbr : s.neighbors) {
+    		minLat = Math.min(minLat, nbr.getLatitude().degrees);
+    		maxLat = Math.max(maxLat, nbr.getLatitude().degrees);
+    		minLon = Math.min(minLon, nbr.getLongitude().degrees);
+    		maxLon = Math.max(maxLon, nbr.getLongitude().degrees);
+    	}
+    	return Sector.fromDegrees(minLat, maxLat, minLon, maxLon);
+    }
+
+    @Override
+    public long getVersion() {
+    	return this.state.version;
+    }
+
+    @Override
+    public double getMaxElevation() {
+    	State s = this.state;
+    	double max = s.position.getElevation();
+    	for (Position nbr : s.neighbors) {
+    		max = Math.max(max, nbr.getElevation());
+    	}
+    	return max;
     }
 
     @Override
@@ -76,13 +186,13 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
         // 2) As a normal renderable. The network is added to the ordered renderable queue.
         // 3) As an OrderedRenderable. The network is drawn.
 
-        if (this.extent != null) {
+        if (this.geometry != null) {
         	// Ignore if not visible
             if (!this.intersectsFrustum(dc)) {
             	return;
             }
             // If the shape is less that a pixel in size, don't render it.
-            if (dc.isSmall(this.extent, 1)) {
+            if (dc.isSmall(this.geometry.extent, 1)) {
             	return;
             }
         }
@@ -100,15 +210,15 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
      * @return true if this network intersects the frustum, otherwise false.
      */
     protected boolean intersectsFrustum(final DrawContext dc) {
-        if (this.extent == null) {
+        if (this.geometry == null) {
             return true; // don't know the visibility, shape hasn't been computed yet
         }
         
         if (dc.isPickingMode()) {
-            return dc.getPickFrustums().intersectsAny(this.extent);
+            return dc.getPickFrustums().intersectsAny(this.geometry.extent);
         }
 
-        return dc.getView().getFrustumInModelCoordinates().intersects(this.extent);
+        return dc.getView().getFrustumInModelCoordinates().intersects(this.geometry.extent);
     }
 
     @Override
@@ -161,27 +271,18 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
      */
     protected void makeOrderedRenderable(final DrawContext dc) {
         // This method is called twice each frame: once during picking and once during rendering. We only need to
-        // compute the placePoint and eye distance once per frame, so check the frame timestamp to see if this is a
-        // new frame.
+        // compute the eye distance once per frame, so check the frame timestamp to see if this is a new frame.
         if (dc.getFrameTimeStamp() != this.frameTimestamp) {
-            // Convert the device's geographic position to a position in Cartesian coordinates.
-            this.placePoint = dc.computePointFromPosition(this.position,WorldWind.ABSOLUTE);
-            dc.getVerticalExaggeration();
+            // The Cartesian geometry only depends on the simulation state and the globe, so moving the camera
+            // does not require it to be recomputed.
+            // Read the published state once, so the whole frame is drawn from a single consistent update.
+            State s = this.state;
+            if (this.isGeometryStale(dc, s)) {
+                this.geometry = this.computeGeometry(dc, s);
+            }
 
             // Compute the distance from the eye to the device's position.
-            this.eyeDistance = dc.getView().getEyePoint().distanceTo3(this.placePoint);
-
-            // Compute a sphere that encloses the network. We'll use this sphere for intersection calculations to determine
-            // if the network is actually visible.
-            double maxDist = 1; // minimum must be better than zero
-            nbrPoints.clear();
-            for (Position nbr : neighbors) {
-            	Vec4 nbrPoint = dc.computePointFromPosition(nbr,WorldWind.ABSOLUTE);
-            	nbrPoints.add(nbrPoint);
-            	double nbrDist = nbrPoint.distanceTo3(placePoint);
-            	maxDist = Math.max(maxDist,nbrDist);
-            }
-            this.extent = new Sphere(this.placePoint, maxDist);
+            this.eyeDistance = dc.getView().getEyePoint().distanceTo3(this.geometry.placePoint);
 
             this.frameTimestamp = dc.getFrameTimeStamp();
         }
@@ -192,6 +293,42 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
         dc.addOrderedRenderable(this);
     }
 
+    /**
+     * Determines whether the cached Cartesian geometry is out of date, i.e., whether the device or
+     * its neighbors have moved or the globe and vertical exaggeration have changed since it was computed.
+     * @param dc Current draw context.
+     * @param s State to be drawn.
+     * @return true if {@link #computeGeometry(DrawContext, State)} needs to be called
+     */
+    private boolean isGeometryStale(final DrawContext dc, final State s) {
+        Geometry g = this.geometry;
+        return g == null
+            || g.version != s.version
+            || g.exaggeration != dc.getVerticalExaggeration()
+            || g.globe != dc.getGlobe();
+    }
+
+    /**
+     * Convert the device and neighbor positions to Cartesian coordinates and compute the extent of the network.
+     * @param dc Current draw context.
+     * @param s State to be drawn.
+     * @return geometry for the state
+     */
+    private Geometry computeGeometry(final DrawContext dc, final State s) {
+        // Convert the device's geographic position to a position in Cartesian coordinates.
+        Vec4 placePoint = dc.computePointFromPosition(s.position,WorldWind.ABSOLUTE);
+
+        // Compute a sphere that encloses the network. We'll use this sphere for intersection calculations to determine
+        // if the network is actually visible.
+        double maxDist = 1; // minimum must be better than zero
+        Vec4[] nbrPoints = new Vec4[s.neighbors.size()];
+        for (int i = 0; i < nbrPoints.length; i++) {
+        	nbrPoints[i] = dc.computePointFromPosition(s.neighbors.get(i),WorldWind.ABSOLUTE);
+        	maxDist = Math.max(maxDist,nbrPoints[i].distanceTo3(placePoint));
+        }
+        return new Geometry(s, dc, placePoint, nbrPoints, new Sphere(placePoint, maxDist));
+    }
+
     /**
      * Set up drawing state, and draw the network. This method is called when the 
      * network is rendered in ordered rendering mode.
@@ -205,7 +342,7 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
             GL2 gl = dc.getGL().getGL2(); // GL initialization checks for GL2 compatibility.
             if (dc.isPickingMode()) {
                 Color pickColor = dc.getUniquePickColor();
-                pickCandidates.addPickableObject(pickColor.getRGB(), this, this.position);
+                pickCandidates.addPickableObject(pickColor.getRGB(), this, this.geometry.position);
                 gl.glColor3ub((byte) pickColor.getRed(), (byte) pickColor.getGreen(), (byte) pickColor.getBlue());
             } else {
             	// magenta links
@@ -226,9 +363,10 @@ public class NetworkConnectionVisualization implements OrderedRenderable {
         // Note: draw the network in OpenGL immediate mode for simplicity. Real applications may want
     	// to use vertex arrays or vertex buffer objects to achieve better performance.
         GL2 gl = dc.getGL().getGL2(); // GL initialization checks for GL2 compatibility.
+        Vec4 placePoint = this.geometry.placePoint;
         gl.glBegin(GL2.GL_LINES);
         try {
-        	for (Vec4 nbr : nbrPoints) {
+        	for (Vec4 nbr : this.geometry.nbrPoints) {
         		gl.glVertex3d(placePoint.x,placePoint.y,placePoint.z);
         		gl.glVertex3d(nbr.x,nbr.y,nbr.z);
         	}
@@ -0,0 +1,198 @@
+package visualizer.util;
+
+import gov.nasa.worldwind.WorldWindow;
+import gov.nasa.worldwind.event.RenderingEvent;
+import gov.nasa.worldwind.event.RenderingListener;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces redraw requests for a WorldWindow and paces them by the measured cost of a frame.
+ *
+ * At most one redraw is outstanding at a time: requests arriving while a frame is scheduled or
+ * being drawn are folded into a single follow-up redraw once that frame is on screen. Redraws are
+ * further spaced so that the render thread spends no more than {@link #getTargetLoad()} of its time
+ * drawing, leaving the rest for input handling and the simulation.
+ *
+ * The governor for a window is stored in the window's attributes, so code that only has the window
+ * can use {@link #redraw(WorldWindow)} in place of {@link WorldWindow#redraw()}.
+ */
+public class RedrawGovernor {
+	/** Attribute key under which the governor is stored in its WorldWindow */
+	public static final String KEY = "visualizer.util.RedrawGovernor";
+	/** Default fraction of time the render thread may spend drawing */
+	private static final double DEFAULT_TARGET_LOAD = 0.75;
+	/** Default cap on the redraw rate, in frames per second */
+	private static final double DEFAULT_MAX_FPS = 60;
+	/** Weight of the latest frame in the running average of the frame cost */
+	private static final double COST_SMOOTHING = 0.2;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final WorldWindow wwd;
+	private final ScheduledExecutorService scheduler;
+	private volatile double targetLoad = DEFAULT_TARGET_LOAD;
+	private volatile double maxFps = DEFAULT_MAX_FPS;
+
+	/** True from when a redraw is scheduled until the next frame is swapped to the screen */
+	private final AtomicBoolean outstanding = new AtomicBoolean(false);
+	/** True if a request arrived while a redraw was outstanding */
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	// Frame measurements, written only on the render thread
+	private long frameStart = 0;
+	private volatile long lastFrameStart = 0;
+	private volatile double frameCost = 0;
+	private volatile double fps = 0;
+	private long fpsWindowStart = 0;
+	private int fpsWindowFrames = 0;
+
+	private final Runnable issue = new Runnable() {
+		public void run() {
+			wwd.redraw();
+		}
+	};
+
+	/**
+	 * Create a governor and install it on a window.
+	 * @param wwd	Window whose redraws will be governed
+	 */
+	public RedrawGovernor(final WorldWindow wwd) {
+		this.wwd = wwd;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "redraw-governor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		wwd.addRenderingListener(new RenderingListener() {
+			public void stageChanged(final RenderingEvent event) {
+				if (RenderingEvent.BEFORE_RENDERING.equals(event.getStage())) {
+					frameStarted();
+				} else if (RenderingEvent.AFTER_BUFFER_SWAP.equals(event.getStage())) {
+					frameFinished();
+				}
+			}
+		});
+		wwd.setValue(KEY, this);
+	}
+
+	/**
+	 * Request a redraw of a window, through its governor if it has one.
+	 * @param wwd	Window to be redrawn
+	 */
+	public static void redraw(final WorldWindow wwd) {
+		Object governor = wwd.getValue(KEY);
+		if (governor instanceof RedrawGovernor) {
+			((RedrawGovernor) governor).requestRedraw();
+		} else {
+			wwd.redraw();
+		}
+	}
+
+	/**
+	 * Ask for the window to be redrawn. Never blocks; may be called from any thread.
+	 */
+	public void requestRedraw() {
+		requests.incrementAndGet();
+		if (!outstanding.compareAndSet(false, true)) {
+			pending.set(true);
+			coalesced.incrementAndGet();
+			// The outstanding frame may have finished before it could see the pending flag
+			if (!outstanding.compareAndSet(false, true)) {
+				return;
+			}
+			pending.set(false);
+		}
+		schedule();
+	}
+
+	private void schedule() {
+		long interval = (long) Math.max(NANOS_PER_SECOND / maxFps, frameCost / targetLoad);
+		long delay = lastFrameStart + interval - System.nanoTime();
+		if (delay <= 0) {
+			wwd.redraw();
+		} else {
+			scheduler.schedule(issue, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void frameStarted() {
+		frameStart = System.nanoTime();
+		lastFrameStart = frameStart;
+	}
+
+	private void frameFinished() {
+		long now = System.nanoTime();
+		if (frameStart != 0) {
+			double cost = now - frameStart;
+			frameCost = frameCost == 0 ? cost : frameCost + COST_SMOOTHING * (cost - frameCost);
+		}
+		fpsWindowFrames++;
+		if (fpsWindowStart == 0) {
+			fpsWindowStart = now;
+		} else if (now - fpsWindowStart >= NANOS_PER_SECOND) {
+			fps = fpsWindowFrames * (double) NANOS_PER_SECOND / (now - fpsWindowStart);
+			fpsWindowStart = now;
+			fpsWindowFrames = 0;
+		}
+		// The frame reflects every request made before it started; later ones need another
+		outstanding.set(false);
+		if (pending.getAndSet(false) && outstanding.compareAndSet(false, true)) {
+			schedule();
+		}
+	}
+
+	/** @return frames drawn per second, measured over the last second or so */
+	public double getFps() {
+		return fps;
+	}
+
+	/** @return running average of the time taken to draw a frame, in milliseconds */
+	public double getFrameCostMillis() {
+		return frameCost / 1e6;
+	}
+
+	/** @return number of redraw requests received */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** @return number of redraw requests folded into a redraw that was already outstanding */
+	public long getDroppedRequestCount() {
+		return coalesced.get();
+	}
+
+	/** @return fraction of time the render thread may spend drawing */
+	public double getTargetLoad() {
+		return targetLoad;
+	}
+
+	/**
+	 * Set the fraction of time the render thread may spend drawing.
+	 * @param targetLoad	fraction between 0 (exclusive) and 1
+	 */
+	public void setTargetLoad(final double targetLoad) {
+		this.targetLoad = Math.max(0.01, Math.min(1, targetLoad));
+	}
+
+	/** @return cap on the redraw rate, in frames per second */
+	public double getMaxFps() {
+		return maxFps;
+	}
+
+	/**
+	 * Set the cap on the redraw rate.
+	 * @param maxFps	frames per second
+	 */
+	public void setMaxFps(final double maxFps) {
+		this.maxFps = Math.max(1, maxFps);
+	}
+}
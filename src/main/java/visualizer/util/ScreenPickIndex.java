@@ -0,0 +1,169 @@
+package visualizer.util;
+
+import gov.nasa.worldwind.Locatable;
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.Renderable;
+import gov.nasa.worldwind.symbology.TacticalSymbol;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CPU-side index of where renderables were drawn on screen, answering "what is under the cursor"
+ * without a GL pick pass.
+ *
+ * Layers call {@link #rebuild(DrawContext, Iterable)} while rendering, which projects every located
+ * renderable into screen coordinates and buckets it into a uniform grid of {@link #CELL_PIXELS}-sized
+ * cells. The grid is immutable once built and is published through a volatile reference, so
+ * {@link #pick(Point)} may be called from the event thread at any time and only inspects the few
+ * cells around the cursor.
+ */
+public class ScreenPickIndex {
+	/** Size of the grid cells, in pixels */
+	private static final int CELL_PIXELS = 32;
+	/** Default distance within which a renderable counts as being under the cursor, in pixels */
+	private static final int DEFAULT_PICK_RADIUS = 8;
+
+	/** Projected renderables, bucketed by grid cell in compressed-row form */
+	private static class Grid {
+		private final int columns, rows;
+		/** Index into {@link #order} of the first renderable of each cell, plus a final end marker */
+		private final int[] cellStart;
+		/** Renderable indices, sorted by cell */
+		private final int[] order;
+		private final float[] xs, ys;
+		private final Object[] items;
+
+		private Grid(final int columns, final int rows, final List<Object> items, final float[] xs, final float[] ys) {
+			this.columns = columns;
+			this.rows = rows;
+			this.items = items.toArray();
+			this.xs = xs;
+			this.ys = ys;
+			this.cellStart = new int[columns * rows + 1];
+			this.order = new int[this.items.length];
+			// Counting sort of the renderables by cell
+			for (int i = 0; i < this.items.length; i++) {
+				cellStart[cellOf(xs[i], ys[i]) + 1]++;
+			}
+			for (int c = 0; c < columns * rows; c++) {
+				cellStart[c + 1] += cellStart[c];
+			}
+			int[] fill = new int[columns * rows];
+			for (int i = 0; i < this.items.length; i++) {
+				int c = cellOf(xs[i], ys[i]);
+				order[cellStart[c] + fill[c]++] = i;
+			}
+		}
+
+		private int cellOf(final float x, final float y) {
+			return ((int) y / CELL_PIXELS) * columns + ((int) x / CELL_PIXELS);
+		}
+	}
+
+	private volatile Grid grid = null;
+	private int pickRadius = DEFAULT_PICK_RADIUS;
+
+	/** @return distance within which a renderable counts as being under the cursor, in pixels */
+	public int getPickRadius() {
+		return pickRadius;
+	}
+
+	/**
+	 * Set the distance within which a renderable counts as being under the cursor.
+	 * Must be no more than {@link #CELL_PIXELS}.
+	 * @param pickRadius	radius in pixels
+	 */
+	public void setPickRadius(final int pickRadius) {
+		this.pickRadius = Math.min(CELL_PIXELS, pickRadius);
+	}
+
+	/**
+	 * Re-index the renderables drawn in the current frame.
+	 * Renderables that cannot be located or that project outside the viewport are ignored.
+	 * @param dc			Current draw context
+	 * @param renderables	Renderables drawn this frame
+	 */
+	public void rebuild(final DrawContext dc, final Iterable<? extends Renderable> renderables) {
+		Rectangle viewport = dc.getView().getViewport();
+		List<Object> items = new ArrayList<>();
+		float[] xs = new float[64], ys = new float[64];
+		for (Renderable r : renderables) {
+			Position p = positionOf(r);
+			if (p == null) {
+				continue;
+			}
+			Vec4 screen = dc.getView().project(dc.computePointFromPosition(p, WorldWind.ABSOLUTE));
+			if (screen == null || screen.z < 0 || screen.z > 1) {
+				continue; // behind the eye or beyond the far plane
+			}
+			// Screen coordinates have their origin at the bottom left; AWT coordinates at the top left
+			float x = (float) (screen.x - viewport.x);
+			float y = (float) (viewport.height - (screen.y - viewport.y) - 1);
+			if (x < 0 || y < 0 || x >= viewport.width || y >= viewport.height) {
+				continue;
+			}
+			if (items.size() == xs.length) {
+				xs = Arrays.copyOf(xs, xs.length * 2);
+				ys = Arrays.copyOf(ys, ys.length * 2);
+			}
+			xs[items.size()] = x;
+			ys[items.size()] = y;
+			items.add(r);
+		}
+		int columns = Math.max(1, (viewport.width + CELL_PIXELS - 1) / CELL_PIXELS);
+		int rows = Math.max(1, (viewport.height + CELL_PIXELS - 1) / CELL_PIXELS);
+		grid = new Grid(columns, rows, items, xs, ys);
+	}
+
+	/** Forget all indexed renderables, e.g., when their layer is disabled */
+	public void clear() {
+		grid = null;
+	}
+
+	/**
+	 * Find the renderable drawn closest to a screen point.
+	 * @param point	Screen point in AWT coordinates, e.g., the mouse position
+	 * @return closest renderable within the pick radius, or null if there is none
+	 */
+	public Object pick(final Point point) {
+		Grid g = grid;
+		if (g == null || point == null) {
+			return null;
+		}
+		int cx = point.x / CELL_PIXELS, cy = point.y / CELL_PIXELS;
+		double bestDistance = (double) pickRadius * pickRadius;
+		Object best = null;
+		for (int row = Math.max(0, cy - 1); row <= Math.min(g.rows - 1, cy + 1); row++) {
+			for (int col = Math.max(0, cx - 1); col <= Math.min(g.columns - 1, cx + 1); col++) {
+				int cell = row * g.columns + col;
+				for (int k = g.cellStart[cell]; k < g.cellStart[cell + 1]; k++) {
+					int i = g.order[k];
+					double dx = g.xs[i] - point.x, dy = g.ys[i] - point.y;
+					double d = dx * dx + dy * dy;
+					if (d <= bestDistance) {
+						bestDistance = d;
+						best = g.items[i];
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private static Position positionOf(final Renderable r) {
+		if (r instanceof TacticalSymbol) {
+			return ((TacticalSymbol) r).getPosition();
+		}
+		if (r instanceof Locatable) {
+			return ((Locatable) r).getPosition();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,18 @@
+package visualizer.util;
+
+import gov.nasa.worldwind.geom.Sector;
+
+/**
+ * A renderable whose geographic footprint can be described by a sector and an elevation ceiling,
+ * allowing it to be placed in the spatial index of a {@link SpatialRenderableLayer}.
+ */
+public interface SectorBounded {
+	/** @return smallest sector containing everything the renderable draws */
+	Sector getSector();
+
+	/** @return highest elevation, in meters, of anything the renderable draws */
+	double getMaxElevation();
+
+	/** @return version of the renderable's footprint, advanced whenever its sector or elevation may have changed */
+	long getVersion();
+}
@@ -0,0 +1,74 @@
+package visualizer.util;
+
+import gov.nasa.worldwind.WorldWindow;
+import gov.nasa.worldwind.event.SelectEvent;
+import gov.nasa.worldwind.event.SelectListener;
+import gov.nasa.worldwind.pick.PickedObject;
+import gov.nasa.worldwind.pick.PickedObjectList;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Resolves rollover and hover events against {@link ScreenPickIndex}es before passing them on,
+ * so that layers excluded from the GL pick pass can still be highlighted and show tool tips.
+ *
+ * The delegate listeners (e.g., a {@link ToolTipController} and a {@link HighlightController}) are
+ * detached from the World Window and receive events only through this controller: when an index
+ * has a renderable under the cursor it becomes the top object of the event, otherwise the
+ * event from the GL pick pass is forwarded unchanged.
+ */
+public class SpatialPickController implements SelectListener {
+	private final List<ScreenPickIndex> indices = new CopyOnWriteArrayList<>();
+	private final List<SelectListener> delegates;
+
+	/**
+	 * Create a controller for a World Window.
+	 * @param wwd		World Window to monitor
+	 * @param delegates	Listeners to receive the resolved events; they are removed from the World Window
+	 */
+	public SpatialPickController(final WorldWindow wwd, final SelectListener ... delegates) {
+		this.delegates = Arrays.asList(delegates);
+		for (SelectListener d : delegates) {
+			wwd.removeSelectListener(d);
+		}
+		wwd.addSelectListener(this);
+	}
+
+	/**
+	 * Add an index to be consulted on rollover and hover.
+	 * @param index	Index of a layer's renderables
+	 */
+	public void addIndex(final ScreenPickIndex index) {
+		indices.add(index);
+	}
+
+	@Override
+	public void selected(final SelectEvent event) {
+		SelectEvent resolved = event;
+		if (event.isRollover() || event.isHover()) {
+			Object picked = pick(event);
+			if (picked != null) {
+				PickedObject top = new PickedObject(event.getPickPoint(), 0, picked, null, null, 0, false);
+				top.setOnTop();
+				PickedObjectList objects = new PickedObjectList();
+				objects.add(top);
+				resolved = new SelectEvent(event.getSource(), event.getEventAction(), event.getPickPoint(), objects);
+			}
+		}
+		for (SelectListener d : delegates) {
+			d.selected(resolved);
+		}
+	}
+
+	private Object pick(final SelectEvent event) {
+		for (ScreenPickIndex index : indices) {
+			Object picked = index.pick(event.getPickPoint());
+			if (picked != null) {
+				return picked;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,351 @@
+package visualizer.util;
+
+import gov.nasa.worldwind.geom.Box;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.layers.RenderableLayer;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.render.Renderable;
+import gov.nasa.worldwind.symbology.TacticalSymbol;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renderable layer that keeps its contents in a geographic quadtree, so that whole regions
+ * outside of the view frustum can be rejected with a single test rather than by asking every
+ * renderable in turn.
+ *
+ * Tactical symbols are indexed by their position and {@link SectorBounded} renderables by their
+ * sector; any other renderable is simply drawn every frame. Each renderable is kept in the deepest
+ * node whose sector contains it. {@link #refresh()} only locates again the renderables that have changed,
+ * by version for {@link SectorBounded} ones and by position for symbols, and moves only those that no
+ * longer belong in their node. Index updates and frame traversal are synchronized, so the simulation may
+ * refresh the layer while the GL thread is drawing it.
+ *
+ * The number of renderables drawn and culled in the last frame is available from
+ * {@link #getDrawnCount()} and {@link #getCulledCount()}, and is also reported to the
+ * WorldWind statistics panel when it is enabled.
+ */
+public class SpatialRenderableLayer extends RenderableLayer {
+	/** Depth of the finest nodes: about 600 meters across at the equator */
+	private static final int MAX_DEPTH = 16;
+	/** Nodes shallower than this cover too much of the globe for their bounding boxes to be useful */
+	private static final int MIN_CULLING_DEPTH = 2;
+	private static final String DRAWN_KEY = "SpatialRenderableLayer.Drawn";
+	private static final String CULLED_KEY = "SpatialRenderableLayer.Culled";
+
+	/** One node of the quadtree */
+	private static class Node {
+		private final Node parent;
+		private final Sector sector;
+		private final Sector[] quadrants;
+		private final int depth;
+		private final Node[] children = new Node[4];
+		/** Renderables filed at this node */
+		private final List<Renderable> items = new ArrayList<>();
+		/** Number of renderables filed at this node or any of its descendants */
+		private int count = 0;
+
+		// Determined only when the globe geometry or the layer's elevation ceiling changes
+		private Box extent;
+		private Globe extentGlobe;
+		private double extentExaggeration = Double.NaN;
+		private double extentMaxElevation = Double.NaN;
+
+		private Node(final Node parent, final Sector sector, final int depth) {
+			this.parent = parent;
+			this.sector = sector;
+			this.depth = depth;
+			this.quadrants = depth < MAX_DEPTH ? sector.subdivide() : null;
+		}
+	}
+
+	/** Indexing state of one renderable: the node it is filed at, and what it was filed by */
+	private static class Entry {
+		private Node node;
+		/** Version of a {@link SectorBounded} renderable, or position of a symbol, when last located */
+		private long version;
+		private Position position;
+		private double elevation;
+	}
+
+	private final Node root = new Node(null, Sector.FULL_SPHERE, 0);
+	private final Map<Renderable,Entry> entries = new IdentityHashMap<>();
+	/** Renderables that cannot be located, and are therefore always drawn */
+	private final List<Renderable> unindexed = new ArrayList<>();
+	/** Number of indexed renderables at each elevation, to follow the highest as renderables move */
+	private final TreeMap<Double,Integer> elevations = new TreeMap<>();
+	/** Highest elevation of any indexed renderable, and at least 0, used as the ceiling of node bounding boxes */
+	private double maxElevation = 0;
+
+	// Determined each frame
+	private final List<Renderable> active = new ArrayList<>();
+	private int drawnCount = 0;
+	private int culledCount = 0;
+
+	/** @return number of renderables that passed culling in the last rendered frame */
+	public int getDrawnCount() {
+		return drawnCount;
+	}
+
+	/** @return number of renderables rejected with their quadtree node in the last rendered frame */
+	public int getCulledCount() {
+		return culledCount;
+	}
+
+	@Override
+	public synchronized void addRenderable(final Renderable renderable) {
+		super.addRenderable(renderable);
+		index(renderable);
+	}
+
+	@Override
+	public synchronized void addRenderable(final int index, final Renderable renderable) {
+		super.addRenderable(index, renderable);
+		index(renderable);
+	}
+
+	@Override
+	public synchronized void removeRenderable(final Renderable renderable) {
+		super.removeRenderable(renderable);
+		Entry e = entries.remove(renderable);
+		if (e != null) {
+			unfile(renderable, e.node);
+			removeElevation(e.elevation);
+		} else {
+			unindexed.remove(renderable);
+		}
+	}
+
+	@Override
+	public synchronized void removeAllRenderables() {
+		super.removeAllRenderables();
+		for (Map.Entry<Renderable,Entry> me : entries.entrySet()) {
+			unfile(me.getKey(), me.getValue().node);
+		}
+		entries.clear();
+		unindexed.clear();
+		elevations.clear();
+		maxElevation = 0;
+	}
+
+	/**
+	 * Bring the index up to date with the current locations of the renderables. Only renderables that
+	 * have changed are located again, and only those that have left their node or now fit inside one of
+	 * the node's children are re-filed.
+	 */
+	public synchronized void refresh() {
+		for (Map.Entry<Renderable,Entry> me : entries.entrySet()) {
+			Renderable r = me.getKey();
+			Entry e = me.getValue();
+			if (r instanceof SectorBounded) {
+				// Read before the footprint, so that a change made meanwhile is caught by the next refresh
+				long version = ((SectorBounded) r).getVersion();
+				if (version == e.version) {
+					continue;
+				}
+				e.version = version;
+			} else {
+				Position p = ((TacticalSymbol) r).getPosition();
+				if (p.equals(e.position)) {
+					continue;
+				}
+				e.position = p;
+			}
+			removeElevation(e.elevation);
+			e.elevation = maxElevationOf(r);
+			addElevation(e.elevation);
+			Sector sector = sectorOf(r);
+			if (e.node.sector.contains(sector) && !fitsQuadrant(e.node, sector)) {
+				continue;
+			}
+			unfile(r, e.node);
+			e.node = file(r, sector);
+		}
+	}
+
+	@Override
+	protected void doPreRender(final DrawContext dc) {
+		super.doPreRender(dc, selectRenderables(dc));
+	}
+
+	@Override
+	protected void doPick(final DrawContext dc, final Point point) {
+		super.doPick(dc, selectRenderables(dc), point);
+	}
+
+	@Override
+	protected void doRender(final DrawContext dc) {
+		List<Renderable> visible = selectRenderables(dc);
+		dc.setPerFrameStatistic(DRAWN_KEY, "Simulation renderables drawn", drawnCount);
+		dc.setPerFrameStatistic(CULLED_KEY, "Simulation renderables culled", culledCount);
+		super.doRender(dc, visible);
+	}
+
+	/**
+	 * Collect the renderables in quadtree nodes that intersect the current view or pick frustum.
+	 * @param dc Current draw context
+	 * @return renderables that may be visible
+	 */
+	protected synchronized List<Renderable> selectRenderables(final DrawContext dc) {
+		active.clear();
+		active.addAll(unindexed);
+		int culled = collect(dc, root);
+		if (!dc.isPickingMode()) {
+			drawnCount = active.size();
+			culledCount = culled;
+		}
+		return active;
+	}
+
+	/**
+	 * Add the renderables of a subtree to {@link #active} if the subtree is in view.
+	 * @param dc	Current draw context
+	 * @param node	Root of the subtree
+	 * @return number of renderables culled within the subtree
+	 */
+	private int collect(final DrawContext dc, final Node node) {
+		if (node.count == 0) {
+			return 0;
+		}
+		if (node.depth >= MIN_CULLING_DEPTH && !intersectsFrustum(dc, extentOf(dc, node))) {
+			return node.count;
+		}
+		active.addAll(node.items);
+		int culled = 0;
+		for (Node child : node.children) {
+			if (child != null) {
+				culled += collect(dc, child);
+			}
+		}
+		return culled;
+	}
+
+	private static boolean intersectsFrustum(final DrawContext dc, final Box extent) {
+		if (dc.isPickingMode()) {
+			return dc.getPickFrustums().intersectsAny(extent);
+		}
+		return dc.getView().getFrustumInModelCoordinates().intersects(extent);
+	}
+
+	private Box extentOf(final DrawContext dc, final Node node) {
+		if (node.extent == null || node.extentGlobe != dc.getGlobe()
+				|| node.extentExaggeration != dc.getVerticalExaggeration() || node.extentMaxElevation != maxElevation) {
+			node.extent = Sector.computeBoundingBox(dc.getGlobe(), dc.getVerticalExaggeration(), node.sector,
+					dc.getGlobe().getMinElevation(), maxElevation);
+			node.extentGlobe = dc.getGlobe();
+			node.extentExaggeration = dc.getVerticalExaggeration();
+			node.extentMaxElevation = maxElevation;
+		}
+		return node.extent;
+	}
+
+	private void index(final Renderable renderable) {
+		Entry e = new Entry();
+		if (renderable instanceof SectorBounded) {
+			e.version = ((SectorBounded) renderable).getVersion();
+		} else if (renderable instanceof TacticalSymbol) {
+			e.position = ((TacticalSymbol) renderable).getPosition();
+		}
+		Sector sector = sectorOf(renderable);
+		if (sector == null) {
+			unindexed.add(renderable);
+			return;
+		}
+		e.elevation = maxElevationOf(renderable);
+		addElevation(e.elevation);
+		e.node = file(renderable, sector);
+		entries.put(renderable, e);
+	}
+
+	private void addElevation(final double elevation) {
+		Integer n = elevations.get(elevation);
+		elevations.put(elevation, n == null ? 1 : n + 1);
+		maxElevation = Math.max(0, elevations.lastKey());
+	}
+
+	private void removeElevation(final double elevation) {
+		int n = elevations.get(elevation);
+		if (n == 1) {
+			elevations.remove(elevation);
+		} else {
+			elevations.put(elevation, n - 1);
+		}
+		maxElevation = elevations.isEmpty() ? 0 : Math.max(0, elevations.lastKey());
+	}
+
+	/**
+	 * Place a renderable in the deepest node containing its sector, creating nodes as needed.
+	 * @param renderable	renderable to be filed
+	 * @param sector		sector of the renderable
+	 * @return node the renderable was filed at
+	 */
+	private Node file(final Renderable renderable, final Sector sector) {
+		Node node = root;
+		node.count++;
+		boolean descended = true;
+		while (descended && node.depth < MAX_DEPTH) {
+			descended = false;
+			for (int q = 0; q < 4; q++) {
+				if (node.quadrants[q].contains(sector)) {
+					if (node.children[q] == null) {
+						node.children[q] = new Node(node, node.quadrants[q], node.depth + 1);
+					}
+					node = node.children[q];
+					node.count++;
+					descended = true;
+					break;
+				}
+			}
+		}
+		node.items.add(renderable);
+		return node;
+	}
+
+	private static void unfile(final Renderable renderable, final Node node) {
+		node.items.remove(renderable);
+		for (Node n = node; n != null; n = n.parent) {
+			n.count--;
+		}
+	}
+
+	private static boolean fitsQuadrant(final Node node, final Sector sector) {
+		if (node.quadrants == null) {
+			return false;
+		}
+		for (Sector q : node.quadrants) {
+			if (q.contains(sector)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param renderable	renderable to locate
+	 * @return sector covered by the renderable, or null if it cannot be located
+	 */
+	private static Sector sectorOf(final Renderable renderable) {
+		if (renderable instanceof SectorBounded) {
+			return ((SectorBounded) renderable).getSector();
+		}
+		if (renderable instanceof TacticalSymbol) {
+			Position p = ((TacticalSymbol) renderable).getPosition();
+			return new Sector(p.getLatitude(), p.getLatitude(), p.getLongitude(), p.getLongitude());
+		}
+		return null;
+	}
+
+	private static double maxElevationOf(final Renderable renderable) {
+		if (renderable instanceof SectorBounded) {
+			return ((SectorBounded) renderable).getMaxElevation();
+		}
+		return ((TacticalSymbol) renderable).getPosition().getElevation();
+	}
+}
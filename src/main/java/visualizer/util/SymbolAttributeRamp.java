@@ -0,0 +1,71 @@
+package visualizer.util;
+
+import gov.nasa.worldwind.render.Material;
+import gov.nasa.worldwind.symbology.BasicTacticalSymbolAttributes;
+import gov.nasa.worldwind.symbology.TacticalSymbolAttributes;
+
+import java.awt.Color;
+
+/**
+ * A small, fixed pool of tactical symbol attributes forming a quantized color and size ramp.
+ *
+ * Values are mapped onto one of {@link #getLevels()} shared attribute objects, so coloring
+ * any number of symbols allocates nothing, and WorldWind only ever needs one icon texture
+ * per level. Symbols with no value are given a separate neutral attribute object.
+ */
+public class SymbolAttributeRamp {
+	private final TacticalSymbolAttributes[] levels;
+	private final TacticalSymbolAttributes missing;
+
+	/**
+	 * Create a ramp running from blue (low values) through green to red (high values).
+	 * @param levels	Number of distinct colors
+	 * @param minScale	Symbol scale for the lowest values
+	 * @param maxScale	Symbol scale for the highest values
+	 */
+	public SymbolAttributeRamp(final int levels, final double minScale, final double maxScale) {
+		this.levels = new TacticalSymbolAttributes[Math.max(1, levels)];
+		for (int i = 0; i < this.levels.length; i++) {
+			float f = this.levels.length == 1 ? 0 : (float) i / (this.levels.length - 1);
+			TacticalSymbolAttributes attrs = new BasicTacticalSymbolAttributes();
+			// Hue from 240 degrees (blue) down to 0 degrees (red)
+			attrs.setInteriorMaterial(new Material(Color.getHSBColor((1 - f) * 2f / 3f, 0.8f, 0.95f)));
+			attrs.setScale(minScale + f * (maxScale - minScale));
+			this.levels[i] = attrs;
+		}
+		missing = new BasicTacticalSymbolAttributes();
+		missing.setInteriorMaterial(new Material(Color.LIGHT_GRAY));
+		missing.setScale(minScale);
+	}
+
+	/** @return number of distinct levels in the ramp */
+	public int getLevels() {
+		return levels.length;
+	}
+
+	/**
+	 * Quantize a value to a level of the ramp.
+	 * @param value	Value to be shown; NaN if the device has no value
+	 * @param min	Value mapped to the lowest level
+	 * @param max	Value mapped to the highest level
+	 * @return level, or -1 for a missing value
+	 */
+	public int levelOf(final double value, final double min, final double max) {
+		if (Double.isNaN(value)) {
+			return -1;
+		}
+		if (!(max > min)) {
+			return 0;
+		}
+		int level = (int) ((value - min) / (max - min) * levels.length);
+		return Math.max(0, Math.min(levels.length - 1, level));
+	}
+
+	/**
+	 * @param level	Level returned by {@link #levelOf(double, double, double)}
+	 * @return shared attributes for the level; must not be modified
+	 */
+	public TacticalSymbolAttributes get(final int level) {
+		return level < 0 ? missing : levels[level];
+	}
+}
@@ -104,14 +104,14 @@ public class ToolTipController implements SelectListener, Disposable
 
             this.hideToolTip();
             this.lastRolloverObject = null;
-            this.wwd.redraw();
+            RedrawGovernor.redraw(this.wwd);
         }
 
         if (getRolloverText(event) != null)
         {
             this.lastRolloverObject = event.getTopObject();
             this.showToolTip(event, getRolloverText(event).replace("\\n", "\n"));
-            this.wwd.redraw();
+            RedrawGovernor.redraw(this.wwd);
         }
     }
 
@@ -124,14 +124,14 @@ public class ToolTipController implements SelectListener, Disposable
 
             this.hideToolTip();
             this.lastHoverObject = null;
-            this.wwd.redraw();
+            RedrawGovernor.redraw(this.wwd);
         }
 
         if (getHoverText(event) != null)
         {
             this.lastHoverObject = event.getTopObject();
             this.showToolTip(event, getHoverText(event).replace("\\n", "\n"));
-            this.wwd.redraw();
+            RedrawGovernor.redraw(this.wwd);
         }
     }
 
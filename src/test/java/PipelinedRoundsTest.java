@@ -0,0 +1,143 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import stream.BufferPolicy;
+import stream.Flow;
+import visualizer.SceneSnapshot;
+
+/**
+ * Checks that {@link Simulation#runRounds(int)} gives the same results as as many calls to
+ * {@link Simulation#runRound()}.
+ */
+public class PipelinedRoundsTest {
+	private static final int EDGE = 12;
+	private static final long SEED = 42;
+	/** Sizes of the batches of pipelined rounds, so that batch boundaries fall at several rounds */
+	private static final int[] BATCHES = { 1, 2, 3, 5, 8, 11 };
+
+	/** Records a stream as text, one line per item */
+	private static class Recorder<T> implements Flow.Subscriber<T> {
+		private final List<String> items = Collections.synchronizedList(new ArrayList<String>());
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private volatile Throwable error = null;
+
+		@Override
+		public void onSubscribe(final Flow.Subscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(final T item) {
+			if (item instanceof SceneSnapshot) {
+				SceneSnapshot scene = (SceneSnapshot) item;
+				items.add(scene.getRound() + " " + scene.size() + " " + scene.getMinValue() + " " + scene.getMaxValue());
+			} else {
+				items.add(((RoundStatistics.Summary) item).toCsv());
+			}
+		}
+
+		@Override
+		public void onError(final Throwable throwable) {
+			error = throwable;
+			completed.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+
+		private List<String> await() throws InterruptedException {
+			assertTrue("stream completed", completed.await(1, TimeUnit.MINUTES));
+			assertNull(error);
+			return new ArrayList<>(items);
+		}
+	}
+
+	/** Everything a run produced: device states after each batch, scenes and statistics of each round */
+	private static class Run {
+		private final List<String> states = new ArrayList<>();
+		private List<String> scenes, statistics;
+	}
+
+	private static Run run(final boolean pipelined, final boolean quiescence) throws Exception {
+		Simulation simulation = new Simulation("hello", EDGE, 0.002, 500, SEED, null);
+		simulation.setQuiescence(quiescence);
+		simulation.setStatistics(new RoundStatistics(8, RoundStatistics.exported("distance"),
+				RoundStatistics.neighborCount(), RoundStatistics.latitude(), RoundStatistics.longitude(),
+				RoundStatistics.altitude()));
+		Recorder<SceneSnapshot> scenes = new Recorder<>();
+		simulation.getRounds().subscribe(scenes, BufferPolicy.block(1 << 16));
+		Recorder<RoundStatistics.Summary> statistics = new Recorder<>();
+		simulation.getStatistics().subscribe(statistics, BufferPolicy.block(1 << 16));
+
+		Run run = new Run();
+		for (int batch : BATCHES) {
+			if (pipelined) {
+				simulation.runRounds(batch);
+			} else {
+				for (int i = 0; i < batch; i++) {
+					simulation.runRound();
+				}
+			}
+			run.states.add(state(simulation));
+		}
+		simulation.getRounds().close();
+		simulation.getStatistics().close();
+		run.scenes = scenes.await();
+		run.statistics = statistics.await();
+		return run;
+	}
+
+	/** @return environment, position, value and neighborhood of every device */
+	private static String state(final Simulation simulation) {
+		StringBuilder state = new StringBuilder("round ").append(simulation.getRound());
+		for (int i = 0; i < simulation.getDevices().size(); i++) {
+			SimpleDevice d = simulation.getDevices().get(i);
+			state.append('\n').append(d.getDeviceUID())
+				.append(" distance=").append(d.getExecutionEnvironment().get("distance"))
+				.append(" leader=").append(d.getExecutionEnvironment().has("leader"))
+				.append(" value=").append(d.getVM().getCurrentValue())
+				.append(" position=").append(d.getPosition())
+				.append(" neighbors=").append(simulation.getNeighborCount(i));
+		}
+		return state.toString();
+	}
+
+	private static void assertSameRuns(final boolean quiescence) throws Exception {
+		Run sequential = run(false, quiescence);
+		Run pipelined = run(true, quiescence);
+		int rounds = 0;
+		for (int batch : BATCHES) {
+			rounds += batch;
+		}
+		assertEquals(rounds, sequential.scenes.size());
+		assertEquals(rounds, sequential.statistics.size());
+		for (int b = 0; b < BATCHES.length; b++) {
+			assertEquals("devices after batch " + b, sequential.states.get(b), pipelined.states.get(b));
+		}
+		for (int r = 0; r < rounds; r++) {
+			assertEquals("scene of round " + (r + 1), sequential.scenes.get(r), pipelined.scenes.get(r));
+			assertEquals("statistics of round " + (r + 1), sequential.statistics.get(r), pipelined.statistics.get(r));
+		}
+	}
+
+	@Test
+	public void sameResultsWithoutQuiescence() throws Exception {
+		assertSameRuns(false);
+	}
+
+	@Test
+	public void sameResultsWithQuiescence() throws Exception {
+		assertSameRuns(true);
+	}
+}
@@ -0,0 +1,170 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.protelis.lang.datatype.impl.ArrayTupleImpl;
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Round trips of shared state through {@link StateCodec}.
+ */
+public class StateCodecTest {
+	private static final IntegerUID SENDER = new IntegerUID(7);
+
+	/** Code paths of a real program, as devices share them */
+	private static List<CodePath> paths;
+
+	@BeforeClass
+	public static void collectPaths() throws Exception {
+		Simulation simulation = new Simulation("hello", 2, 0.002, 500, 0, null);
+		simulation.runRound();
+		paths = new ArrayList<>(simulation.getDevices().get(0).accessNetworkManager().getSendCache().keySet());
+		assertTrue("hello shares at least two code paths", paths.size() >= 2);
+	}
+
+	/** Encode one value under one code path and decode it again */
+	private static Object roundTrip(final Object value) throws IOException {
+		StateCodec.Encoder encoder = new StateCodec.Encoder();
+		ByteBuffer message = encoder.encode(SENDER, Collections.singletonMap(paths.get(0), value));
+		int length = message.remaining();
+		if (StateCodec.isNative(value)) {
+			assertEquals("size of " + value, length - header(value), StateCodec.sizeOf(value));
+		} else {
+			assertEquals(-1, StateCodec.sizeOf(value));
+		}
+		StateCodec.Decoder decoder = new StateCodec.Decoder();
+		Map<CodePath, Object> state = decoder.decode(message);
+		assertFalse("whole message read", message.hasRemaining());
+		assertEquals(SENDER, decoder.getSender());
+		assertEquals(Collections.singleton(paths.get(0)), state.keySet());
+		return state.get(paths.get(0));
+	}
+
+	/** @return bytes of a message holding the value that are not taken by the value itself */
+	private static int header(final Object value) throws IOException {
+		return new StateCodec.Encoder().encode(SENDER, Collections.singletonMap(paths.get(0), (Object) null)).remaining() - 1;
+	}
+
+	private static void assertRoundTrip(final Object value) throws IOException {
+		Object decoded = roundTrip(value);
+		assertEquals(value, decoded);
+		assertEquals(value.getClass(), decoded.getClass());
+	}
+
+	@Test
+	public void numbers() throws IOException {
+		for (Object v : new Object[] { 0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE,
+				0L, -1L, Long.MAX_VALUE, Long.MIN_VALUE,
+				0.0, -0.0, 1.5, Double.MAX_VALUE, Double.MIN_VALUE, Double.POSITIVE_INFINITY, Double.NaN,
+				0f, -2.25f, Float.MAX_VALUE, Float.NaN }) {
+			assertRoundTrip(v);
+		}
+	}
+
+	@Test
+	public void shortAndByteKeepTheirType() throws IOException {
+		for (Object v : new Object[] { (short) 0, Short.MAX_VALUE, Short.MIN_VALUE, (byte) 0, Byte.MAX_VALUE, Byte.MIN_VALUE }) {
+			assertFalse(StateCodec.isNative(v));
+			assertRoundTrip(v);
+		}
+	}
+
+	@Test
+	public void booleansStringsAndNull() throws IOException {
+		assertRoundTrip(Boolean.TRUE);
+		assertRoundTrip(Boolean.FALSE);
+		assertRoundTrip("");
+		assertRoundTrip("hello");
+		assertRoundTrip("été 漢字 😀");
+		assertNull(roundTrip(null));
+	}
+
+	@Test
+	public void tuples() throws IOException {
+		assertRoundTrip(new ArrayTupleImpl());
+		assertRoundTrip(new ArrayTupleImpl(1, 2.0, "three", true));
+		ArrayTupleImpl nested = new ArrayTupleImpl(new ArrayTupleImpl(1.0, new ArrayTupleImpl()), new IntegerUID(3), null);
+		assertTrue(StateCodec.isNative(nested));
+		assertRoundTrip(nested);
+		ArrayTupleImpl fallback = new ArrayTupleImpl(1.0, (short) 2);
+		assertFalse(StateCodec.isNative(fallback));
+		assertRoundTrip(fallback);
+	}
+
+	@Test
+	public void uids() throws IOException {
+		for (int uid : new int[] { 0, 1, -1, 1000000, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+			assertRoundTrip(new IntegerUID(uid));
+		}
+	}
+
+	@Test
+	public void severalPaths() throws IOException {
+		Map<CodePath, Object> state = new HashMap<>();
+		for (int i = 0; i < paths.size(); i++) {
+			state.put(paths.get(i), (double) i);
+		}
+		StateCodec.Encoder encoder = new StateCodec.Encoder();
+		StateCodec.Decoder decoder = new StateCodec.Decoder();
+		for (int round = 0; round < 3; round++) {
+			assertEquals(state, decoder.decode(encoder.encode(SENDER, state)));
+		}
+		assertEquals(paths.size(), encoder.getDictionarySize());
+	}
+
+	@Test
+	public void redefinitionAfterLostMessage() throws IOException {
+		StateCodec.Encoder encoder = new StateCodec.Encoder();
+		StateCodec.Decoder decoder = new StateCodec.Decoder(false);
+		Map<CodePath, Object> first = Collections.singletonMap(paths.get(0), (Object) 1.0);
+		Map<CodePath, Object> second = new HashMap<>(first);
+		second.put(paths.get(1), 2.0);
+
+		// The message defining the first path is lost
+		encoder.encode(SENDER, first);
+		try {
+			decoder.decode(encoder.encode(SENDER, second));
+			fail("decoded a message referring to a path defined in a lost message");
+		} catch (IOException e) {
+			// expected
+		}
+
+		encoder.redefineAll();
+		assertEquals(second, decoder.decode(encoder.encode(SENDER, second)));
+		// Definitions are not repeated once redefined
+		int redefined = encoder.encode(SENDER, second).remaining();
+		encoder.redefineAll();
+		assertTrue(encoder.encode(SENDER, second).remaining() > redefined);
+		assertEquals(second, decoder.decode(encoder.encode(SENDER, second)));
+	}
+
+	@Test
+	public void untrustedDecoderRefusesSerializedValues() throws IOException {
+		for (Object v : new Object[] { (short) 1, new Date(0), new ArrayTupleImpl(1.0, new Date(0)) }) {
+			Map<CodePath, Object> state = Collections.singletonMap(paths.get(0), v);
+			try {
+				new StateCodec.Decoder(false).decode(new StateCodec.Encoder().encode(SENDER, state));
+				fail("untrusted decoder accepted " + v);
+			} catch (IOException e) {
+				// expected
+			}
+			assertEquals(state, new StateCodec.Decoder().decode(new StateCodec.Encoder().encode(SENDER, state)));
+		}
+		// Native values are still accepted
+		Map<CodePath, Object> state = Collections.singletonMap(paths.get(0), (Object) new ArrayTupleImpl(1.0, "a"));
+		assertEquals(state, new StateCodec.Decoder(false).decode(new StateCodec.Encoder().encode(SENDER, state)));
+	}
+}